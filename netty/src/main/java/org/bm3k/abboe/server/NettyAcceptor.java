@@ -0,0 +1,82 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Accepts neighbors for {@link TransportMode#NETTY}: a single thread accepts connections, and a fixed group of
+ * event loops (-iothreads) does all reading and writing of the resulting {@link NettyTransport}s, with buffers from
+ * a pooled allocator. Each neighbor stays in the same event loop for its whole lifetime.
+ */
+public class NettyAcceptor implements NeighborAcceptor {
+
+    private final Logger log = LoggerFactory.getLogger(NettyAcceptor.class);
+
+    private EventLoopGroup acceptGroup;
+    private EventLoopGroup ioGroup;
+    private Channel serverChannel;
+    private volatile Consumer<NeighborTransport> handler;
+
+    @Override
+    public void bind(int port, int ioThreads) throws IOException {
+        acceptGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("netty-accept", true));
+        ioGroup = new NioEventLoopGroup(ioThreads, new DefaultThreadFactory("netty", true));
+        ServerBootstrap bootstrap = new ServerBootstrap()
+            .group(acceptGroup, ioGroup)
+            .channel(NioServerSocketChannel.class)
+            // connections wait in the backlog until startAccepting
+            .option(ChannelOption.AUTO_READ, false)
+            .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            // reading starts once the neighbor connection is ready for it, see NettyTransport#startReading
+            .childOption(ChannelOption.AUTO_READ, false)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    handler.accept(new NettyTransport(channel));
+                }
+            });
+        ChannelFuture bound = bootstrap.bind(port).awaitUninterruptibly();
+        if (!bound.isSuccess()) {
+            close();
+            throw new IOException("Failed binding to port " + port, bound.cause());
+        }
+        serverChannel = bound.channel();
+        log.info("Bound to port {}, with {} I/O threads", getLocalPort(), ioThreads);
+    }
+
+    @Override
+    public int getLocalPort() {
+        return ((InetSocketAddress)serverChannel.localAddress()).getPort();
+    }
+
+    @Override
+    public void startAccepting(Consumer<NeighborTransport> handler) {
+        this.handler = handler;
+        serverChannel.config().setAutoRead(true);
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        acceptGroup.shutdownGracefully();
+        ioGroup.shutdownGracefully();
+    }
+}
@@ -0,0 +1,459 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bm3k.abboe.common.BusinessObjectReader;
+import org.bm3k.abboe.common.BusinessObjectReader.PayloadSink;
+import org.bm3k.abboe.common.BusinessObjectReader.StreamingListener;
+import org.bm3k.abboe.common.InvalidBusinessObjectException;
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.FileRegion;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Transport on a Netty channel, served by one of the event loops of a {@link NettyAcceptor}. As with
+ * {@link NioTransport}, no threads are dedicated to a single neighbor, and all reading and writing happens
+ * in the event loop of the channel; other threads only ever touch the {@link SendQueue} and schedule tasks.
+ *
+ * Received bytes are framed by a {@link PacketFrameDecoder}, and the resulting objects passed to the listener
+ * just as a {@link BusinessObjectReader} would. Packets are taken from the send queue only while the channel is
+ * writable (that is, below the high water mark of its outbound buffer), and nothing is taken after a bulk packet
+ * until it has been written, so that the urgent lane of the queue still works.
+ */
+class NettyTransport extends ChannelInboundHandlerAdapter implements NeighborTransport {
+
+    private final Logger log = LoggerFactory.getLogger(NettyTransport.class);
+
+    private final SocketChannel channel;
+    private final String addr;
+    private final InetAddress inetAddress;
+    private final int port;
+    private String name;
+
+    private SendQueue sendQueue;
+    private SenderListener senderListener;
+    /** true when the event loop has been asked to write, or it is waiting for the channel to become writable */
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    /** A bulk packet has been written, but not yet flushed out; accessed in the event loop only */
+    private boolean bulkInFlight;
+    /** Payload of the last packet written is being streamed; accessed in the event loop only */
+    private StreamedPayload.Cursor streamCursor;
+    private final Runnable streamWakeUp;
+    private final ChannelFutureListener bulkWritten;
+    private final ChannelFutureListener writeFailed;
+    private volatile boolean senderFinished;
+
+    private BusinessObjectReader.Listener readerListener;
+    private PacketFrameDecoder frameDecoder;
+    private boolean readerFinished;
+    /** Where the payload currently being streamed goes; null if buffered into {@link #buffered} instead */
+    private PayloadSink sink;
+    private BusinessObjectMetadata streamedMetadata;
+    private byte[] buffered;
+    private int streamedRemaining;
+
+    NettyTransport(SocketChannel channel) {
+        this.channel = channel;
+        InetSocketAddress remoteAddress = channel.remoteAddress();
+        this.addr = remoteAddress.toString();
+        this.name = addr;
+        this.inetAddress = remoteAddress.getAddress();
+        this.port = remoteAddress.getPort();
+        this.streamWakeUp = () -> channel.eventLoop().execute(() -> handleWritable());
+        this.bulkWritten = future -> {
+            bulkInFlight = false;
+            handleWritable();
+        };
+        this.writeFailed = future -> {
+            if (!future.isSuccess() && !senderFinished) {
+                log.error("Failed sending to " + name, future.cause());
+                finishSending();
+            }
+        };
+        channel.pipeline().addLast(this);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return addr;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return inetAddress;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void startSending(SendQueue queue, SenderListener listener) {
+        this.sendQueue = queue;
+        this.senderListener = listener;
+    }
+
+    @Override
+    public void startReading(BusinessObjectReader.Listener listener) {
+        channel.eventLoop().execute(() -> {
+            readerListener = listener;
+            int threshold = listener instanceof StreamingListener ? ((StreamingListener)listener).getStreamingThreshold() : Integer.MAX_VALUE;
+            frameDecoder = new PacketFrameDecoder(threshold);
+            channel.pipeline().addBefore(channel.pipeline().context(this).name(), null, frameDecoder);
+            channel.config().setAutoRead(true);
+        });
+    }
+
+    @Override
+    public void packetQueued() {
+        requestWrite();
+    }
+
+    @Override
+    public void requestStop() {
+        sendQueue.requestStop();
+        requestWrite();
+    }
+
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            channel.eventLoop().execute(() -> handleWritable());
+        }
+    }
+
+    /**
+     * Write packets from the send queue until the channel is no longer writable, a bulk packet is in flight,
+     * or a streamed payload needs to wait for more bytes, then flush. Called in the event loop only; resumed by
+     * {@link #channelWritabilityChanged}, the bulk packet having been written, or the streamed payload, respectively.
+     */
+    private void handleWritable() {
+        if (senderFinished) {
+            return;
+        }
+        boolean written = false;
+        try {
+            while (channel.isWritable() && !bulkInFlight) {
+                if (streamCursor != null) {
+                    ByteBuffer chunk = streamCursor.poll(streamWakeUp);
+                    if (chunk != null) {
+                        // the cursor may reuse the buffer of the chunk, so copy it to a pooled buffer
+                        ByteBuf copy = channel.alloc().ioBuffer(chunk.remaining());
+                        copy.writeBytes(chunk);
+                        channel.write(copy).addListener(writeFailed);
+                        written = true;
+                    }
+                    else if (streamCursor.isDone()) {
+                        streamCursor.close();
+                        streamCursor = null;
+                        // completes once the whole payload has been written
+                        bulkInFlight = true;
+                        channel.write(Unpooled.EMPTY_BUFFER).addListener(bulkWritten);
+                        written = true;
+                    }
+                    else {
+                        // wait for the payload to arrive; writeRequested stays set until then
+                        break;
+                    }
+                    continue;
+                }
+
+                OutboundPacket packet = sendQueue.poll();
+                if (packet == null) {
+                    if (sendQueue.isDone()) {
+                        finishSending();
+                        return;
+                    }
+                    writeRequested.set(false);
+                    if ((sendQueue.isEmpty() && !sendQueue.isStopRequested()) || !writeRequested.compareAndSet(false, true)) {
+                        // either nothing to do, or someone else already scheduled writing
+                        break;
+                    }
+                    continue;
+                }
+                write(packet);
+                written = true;
+            }
+        }
+        catch (IOException e) {
+            log.error("Failed sending to " + name, e);
+            finishSending();
+            return;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    private void write(OutboundPacket packet) {
+        ChannelFuture future;
+        if (packet.payload != null) {
+            future = channel.write(Unpooled.wrappedBuffer(packet.metadata, OutboundPacket.NULL_BYTE, packet.payload));
+        }
+        else {
+            future = channel.write(Unpooled.wrappedBuffer(packet.metadata, OutboundPacket.NULL_BYTE));
+            if (packet.streamed != null) {
+                streamCursor = packet.streamed.open();
+            }
+            else if (packet.stored != null) {
+                future = channel.write(new StoredRegion(packet.stored));
+            }
+        }
+        future.addListener(writeFailed);
+        if (!packet.isUrgent() && streamCursor == null) {
+            // do not take anything after a bulk packet, so that urgent packets queued meanwhile can overtake
+            bulkInFlight = true;
+            future.addListener(bulkWritten);
+        }
+    }
+
+    /** Notify listener once everything already written has been flushed out, as the channel may be closed right away */
+    private void finishSending() {
+        if (senderFinished) {
+            return;
+        }
+        senderFinished = true;
+        sendQueue.clear();
+        if (streamCursor != null) {
+            streamCursor.close();
+            streamCursor = null;
+        }
+        channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(future -> senderListener.senderFinished());
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (channel.isWritable() && sendQueue != null) {
+            handleWritable();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (readerFinished) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        try {
+            if (msg instanceof BusinessObject) {
+                readerListener.objectReceived((BusinessObject)msg);
+            }
+            else if (msg instanceof PacketFrameDecoder.StreamStart) {
+                streamedMetadata = ((PacketFrameDecoder.StreamStart)msg).metadata;
+                streamedRemaining = streamedMetadata.getSize();
+                sink = ((StreamingListener)readerListener).streamStarted(streamedMetadata);
+                if (sink == null) {
+                    buffered = new byte[streamedRemaining];
+                }
+            }
+            else {
+                payloadChunk((ByteBuf)msg);
+            }
+        }
+        catch (IOException e) {
+            stopReading();
+            readerListener.handle(e);
+        }
+        catch (InvalidBusinessObjectException e) {
+            stopReading();
+            readerListener.handle(e);
+        }
+        catch (RuntimeException e) {
+            stopReading();
+            readerListener.handle(e);
+        }
+        finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void payloadChunk(ByteBuf chunk) throws IOException {
+        int n = chunk.readableBytes();
+        if (sink != null) {
+            sink.write(chunk.nioBuffer());
+        }
+        else {
+            chunk.readBytes(buffered, buffered.length - streamedRemaining, n);
+        }
+        streamedRemaining -= n;
+        if (streamedRemaining > 0) {
+            return;
+        }
+        sink = null;
+        if (buffered != null) {
+            // as an object the listener did not want streamed would have been received in one piece
+            BOB builder = BOB.newBuilder().metadata(streamedMetadata);
+            if (streamedMetadata.getOfficialType() != null) {
+                builder.payload(buffered);
+            }
+            else {
+                log.warn("Cannot process payload. Metadata: " + streamedMetadata);
+            }
+            buffered = null;
+            readerListener.objectReceived(builder.build());
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (readerListener == null || readerFinished) {
+            return;
+        }
+        stopReading();
+        if (frameDecoder.endOfStreamError instanceof IOException) {
+            readerListener.handle((IOException)frameDecoder.endOfStreamError);
+        }
+        else if (frameDecoder.endOfStreamError != null) {
+            readerListener.handle((InvalidBusinessObjectException)frameDecoder.endOfStreamError);
+        }
+        else {
+            readerListener.noMoreObjects();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (readerListener == null || readerFinished) {
+            return;
+        }
+        stopReading();
+        Throwable e = cause instanceof DecoderException && cause.getCause() != null ? cause.getCause() : cause;
+        if (e instanceof IOException) {
+            if (e.getMessage() != null && e.getMessage().equals("Connection reset")) {
+                readerListener.connectionReset();
+            }
+            else {
+                readerListener.handle((IOException)e);
+            }
+        }
+        else if (e instanceof InvalidBusinessObjectException) {
+            readerListener.handle((InvalidBusinessObjectException)e);
+        }
+        else if (e instanceof RuntimeException) {
+            readerListener.handle((RuntimeException)e);
+        }
+        else {
+            readerListener.handle(new RuntimeException(e));
+        }
+    }
+
+    private void stopReading() {
+        readerFinished = true;
+        if (sink != null) {
+            sink.failed();
+            sink = null;
+        }
+        buffered = null;
+        channel.config().setAutoRead(false);
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        // does not wait, as this may well be called in the event loop
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public void flush() {
+        // everything has already been flushed by the time sender has finished
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /** A stored payload, transferred from its file straight to the socket; released once written (or failed) */
+    private static final class StoredRegion extends AbstractReferenceCounted implements FileRegion {
+        private final StoredPayload stored;
+        private long transferred;
+
+        StoredRegion(StoredPayload stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public long position() {
+            return 0;
+        }
+
+        @Override
+        public long count() {
+            return stored.length;
+        }
+
+        @Override
+        public long transferred() {
+            return transferred;
+        }
+
+        @Override
+        @Deprecated
+        public long transfered() {
+            return transferred;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long position) throws IOException {
+            long written = stored.transferTo(position, stored.length - position, target);
+            transferred += written;
+            return written;
+        }
+
+        @Override
+        protected void deallocate() {
+            stored.release();
+        }
+
+        @Override
+        public FileRegion retain() {
+            super.retain();
+            return this;
+        }
+
+        @Override
+        public FileRegion retain(int increment) {
+            super.retain(increment);
+            return this;
+        }
+
+        @Override
+        public FileRegion touch() {
+            return this;
+        }
+
+        @Override
+        public FileRegion touch(Object hint) {
+            return this;
+        }
+    }
+}
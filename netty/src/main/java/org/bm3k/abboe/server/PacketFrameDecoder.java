@@ -0,0 +1,79 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.bm3k.abboe.common.InvalidBusinessObjectException;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.bm3k.abboe.objects.PacketDecoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Splits the bytes received from a neighbor into packets (json metadata, null byte, payload of "size" bytes), running a
+ * {@link PacketDecoder} directly on the cumulated receive buffer. Produces:
+ * <ul>
+ *   <li>a {@link BusinessObject} for each complete packet;</li>
+ *   <li>for a packet with a payload larger than the streaming threshold, a {@link StreamStart}, followed by
+ *       the payload as {@link ByteBuf} chunks, as it arrives. The chunks are slices of the receive buffer, not copies.</li>
+ * </ul>
+ */
+class PacketFrameDecoder extends ByteToMessageDecoder {
+
+    private final PacketDecoder decoder = new PacketDecoder();
+    /** Why the stream ended where it did not end a packet; null if it did. Set once the channel has become inactive. */
+    Exception endOfStreamError;
+
+    /** @param streamingThreshold payloads larger than this are passed on as chunks */
+    PacketFrameDecoder(int streamingThreshold) {
+        decoder.setStreamingThreshold(streamingThreshold);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws IOException, InvalidBusinessObjectException {
+        // a view of the readable bytes, starting at position 0
+        ByteBuffer buf = in.nioBuffer();
+        if (decoder.isStreamingPayload()) {
+            ByteBuffer chunk = decoder.nextPayloadChunk(buf);
+            if (chunk != null) {
+                out.add(in.readRetainedSlice(chunk.remaining()));
+            }
+            return;
+        }
+
+        PacketDecoder.Packet packet = decoder.next(buf);
+        if (packet != null && packet.isPayloadPending()) {
+            decoder.streamPayload();
+            out.add(new StreamStart(packet.getMetadata()));
+        }
+        else if (packet != null) {
+            out.add(packet.toBusinessObject());
+        }
+        // even without a packet, metadata of a packet waiting for its payload may have been consumed
+        in.skipBytes(buf.position());
+    }
+
+    @Override
+    protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        // everything complete has already been decoded
+        try {
+            decoder.endOfStream(in.nioBuffer());
+        }
+        catch (IOException | InvalidBusinessObjectException e) {
+            endOfStreamError = e;
+        }
+    }
+
+    /** Metadata of an object whose payload follows in chunks */
+    static final class StreamStart {
+        final BusinessObjectMetadata metadata;
+
+        StreamStart(BusinessObjectMetadata metadata) {
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.bm3k.abboe.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.bm3k.abboe.objects.BusinessObjectUtils;
+import org.bm3k.abboe.objects.PacketDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading and writing of objects: whole packets from a stream of mixed payload sizes (both with the stream-based
+ * {@link BusinessObjectUtils#readPacket} and the {@link PacketDecoder} used by the NIO transport), encoding
+ * with {@link BusinessObject#toBytes()}, and parsing metadata.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    /** Objects in the stream read by a single invocation */
+    static final int STREAM_OBJECTS = 100;
+
+    private byte[] stream;
+    private List<BusinessObject> objects;
+    private BusinessObject message;
+    private BusinessObject image;
+    private byte[] messageMetadata;
+    private PacketDecoder decoder;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        objects = SampleObjects.mixed(STREAM_OBJECTS, 1);
+        stream = SampleObjects.toStream(objects);
+        message = objects.get(0);
+        image = objects.get(17);
+        messageMetadata = message.getMetadata().toString().getBytes(StandardCharsets.UTF_8);
+        decoder = new PacketDecoder();
+        buffer = ByteBuffer.allocate(stream.length);
+    }
+
+    @Benchmark
+    public int readPacketMixed(Blackhole bh) throws Exception {
+        ByteArrayInputStream is = new ByteArrayInputStream(stream);
+        int n = 0;
+        Object packet;
+        while ((packet = BusinessObjectUtils.readPacket(is)) != null) {
+            bh.consume(packet);
+            n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int decodePacketMixed(Blackhole bh) throws Exception {
+        buffer.clear();
+        buffer.put(stream);
+        buffer.flip();
+        int n = 0;
+        PacketDecoder.Packet packet;
+        while ((packet = decoder.next(buffer)) != null) {
+            bh.consume(packet.toBusinessObject());
+            n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public byte[] toBytesMessage() {
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public byte[] toBytesImage() {
+        return image.toBytes();
+    }
+
+    @Benchmark
+    public void toBytesMixed(Blackhole bh) {
+        for (BusinessObject bo: objects) {
+            bh.consume(bo.toBytes());
+        }
+    }
+
+    @Benchmark
+    public Set<String> metadataGetNatures() throws Exception {
+        return new BusinessObjectMetadata(messageMetadata).getNatures();
+    }
+}
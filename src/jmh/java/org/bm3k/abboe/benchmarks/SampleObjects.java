@@ -0,0 +1,89 @@
+package org.bm3k.abboe.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectEventType;
+
+import com.google.common.net.MediaType;
+
+/**
+ * A reproducible mix of objects resembling actual traffic of an ABBOE: mostly small messages and events,
+ * with the occasional image and chunk of audio.
+ */
+public class SampleObjects {
+
+    public static final int SMALL_PAYLOAD = 120;
+    public static final int IMAGE_PAYLOAD = 20 * 1024;
+    public static final int AUDIO_PAYLOAD = 512 * 1024;
+
+    /** Subscriptions typical of the clients seen in the wild */
+    public static final String[][] SUBSCRIPTIONS = {
+        { "*" },
+        { "@*" },
+        { "#message", "@routing/*", "@ping" },
+        { "*", "!#audio", "!image/*" },
+        { "image/*", "#tv", "@services/*" },
+        { "audio/*", "@abboe/*" },
+        { "@*", "#message*", "text/*", "!#chat" },
+    };
+
+    /** @param n number of objects; out of each 20, 12 are messages, 5 events, 2 images and 1 audio */
+    public static List<BusinessObject> mixed(int n, long seed) {
+        Random random = new Random(seed);
+        List<BusinessObject> result = new ArrayList<BusinessObject>(n);
+        for (int i = 0; i < n; i++) {
+            int k = i % 20;
+            if (k < 12) {
+                result.add(message(random));
+            }
+            else if (k < 17) {
+                result.add(BOB.newBuilder().event(BusinessObjectEventType.ROUTING_SUBSCRIBE_NOTIFICATION)
+                        .route("client-" + random.nextInt(100), "server-" + random.nextInt(5)).build());
+            }
+            else if (k < 19) {
+                result.add(BOB.newBuilder().type(MediaType.JPEG).natures("image", "tv")
+                        .payload(randomBytes(random, IMAGE_PAYLOAD)).build());
+            }
+            else {
+                result.add(BOB.newBuilder().type(MediaType.create("audio", "mpeg")).natures("audio")
+                        .payload(randomBytes(random, AUDIO_PAYLOAD)).build());
+            }
+        }
+        return result;
+    }
+
+    public static BusinessObject message(Random random) {
+        StringBuilder text = new StringBuilder(SMALL_PAYLOAD);
+        for (int j = 0; j < SMALL_PAYLOAD; j++) {
+            text.append((char)('a' + random.nextInt(26)));
+        }
+        return BOB.newBuilder().natures("message", "chat").attribute("channel", "general")
+                .route("client-" + random.nextInt(100)).payload(text).build();
+    }
+
+    /** Objects as they would appear on the wire, one after another */
+    public static byte[] toStream(List<BusinessObject> objects) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            for (BusinessObject bo: objects) {
+                bytes.write(bo.toBytes());
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Un-possible", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int n) {
+        byte[] bytes = new byte[n];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,62 @@
+package org.bm3k.abboe.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bm3k.abboe.common.SubscriptionIndex;
+import org.bm3k.abboe.common.Subscriptions;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Resolving the subscribers of the mixed sample objects, matching {@link Subscriptions#pass} of each
+ * subscriber in turn versus a single {@link SubscriptionIndex} lookup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SubscriptionsBenchmark {
+
+    @Param({"10", "100"})
+    public int subscribers;
+
+    private List<BusinessObject> objects;
+    private List<Subscriptions> subscriptions;
+    private SubscriptionIndex<Subscriptions> index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        objects = SampleObjects.mixed(20, 1);
+        subscriptions = new ArrayList<Subscriptions>(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            subscriptions.add(new Subscriptions(SampleObjects.SUBSCRIPTIONS[i % SampleObjects.SUBSCRIPTIONS.length]));
+        }
+        index = new SubscriptionIndex<Subscriptions>(subscriptions, s -> s);
+    }
+
+    @Benchmark
+    public void pass(Blackhole bh) {
+        for (BusinessObject bo: objects) {
+            for (Subscriptions s: subscriptions) {
+                bh.consume(s.pass(bo));
+            }
+        }
+    }
+
+    @Benchmark
+    public void indexMatch(Blackhole bh) {
+        for (BusinessObject bo: objects) {
+            bh.consume(index.match(bo));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bm3k.abboe.benchmarks.SampleObjects;
+import org.bm3k.abboe.common.Biomine3000Args;
+import org.bm3k.abboe.common.BusinessObjectReader;
+import org.bm3k.abboe.common.ServerAddress;
+import org.bm3k.abboe.common.Subscriptions;
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link ABBOEServer#forward} of the mixed sample objects to N neighbors connected through in-memory transports,
+ * which just discard whatever gets queued. Every tenth neighbor is a server subscribing to everything; clients
+ * have the subscriptions of {@link SampleObjects#SUBSCRIPTIONS}.
+ *
+ * Objects are copied before forwarding, as forwarding modifies the route of the object.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ForwardBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int neighbors;
+
+    private ABBOEServer server;
+    private List<BusinessObject> objects;
+    private NeighborConnection source;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Biomine3000Args args = new Biomine3000Args(new String[0]);
+        ServerAddress address = new ServerAddress("localhost", 0, "benchmark-server", "java");
+        server = new ABBOEServer(args, address, Collections.<ServerAddress>emptyList(), false);
+        for (int i = 0; i < neighbors; i++) {
+            NeighborConnection neighbor = new NeighborConnection(server, new NullTransport(i));
+            if (i % 10 == 0) {
+                neighbor.role = ABBOEServer.Role.SERVER;
+                neighbor.routingId = "server-" + i;
+                neighbor.subscriptions = new Subscriptions("*");
+            }
+            else {
+                neighbor.role = ABBOEServer.Role.CLIENT;
+                neighbor.routingId = "client-" + i;
+                String[] rules = SampleObjects.SUBSCRIPTIONS[i % SampleObjects.SUBSCRIPTIONS.length];
+                neighbor.subscriptions = new Subscriptions(rules);
+            }
+        }
+        server.neighbors.refresh();
+        source = server.neighbors.list().get(1);
+        objects = SampleObjects.mixed(20, 1);
+    }
+
+    @Benchmark
+    public void forwardMixed() throws Exception {
+        for (BusinessObject bo: objects) {
+            server.forward(copy(bo), source);
+        }
+    }
+
+    private static BusinessObject copy(BusinessObject bo) throws Exception {
+        BusinessObjectMetadata meta = new BusinessObjectMetadata(bo.getMetadata().toString().getBytes(StandardCharsets.UTF_8));
+        BOB builder = BOB.newBuilder().metadata(meta);
+        if (bo.getPayload() != null) {
+            builder.payload(bo.getPayload());
+        }
+        return builder.build();
+    }
+
+    /** Sends everything to nowhere, synchronously */
+    private static class NullTransport implements NeighborTransport {
+        private final int port;
+        private SendQueue queue;
+        private SenderListener listener;
+
+        NullTransport(int port) {
+            this.port = port;
+        }
+
+        public String getRemoteAddress() {
+            return "null:" + port;
+        }
+
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void startSending(SendQueue queue, SenderListener listener) {
+            this.queue = queue;
+            this.listener = listener;
+        }
+
+        public void startReading(BusinessObjectReader.Listener listener) {
+        }
+
+        public void packetQueued() {
+            while (queue.poll() != null) {
+                // discard
+            }
+        }
+
+        public void requestStop() {
+            queue.requestStop();
+            listener.senderFinished();
+        }
+
+        public void shutdownOutput() throws IOException {
+        }
+
+        public void flush() {
+        }
+
+        public void close() throws IOException {
+        }
+
+        public void setName(String name) {
+        }
+    }
+}
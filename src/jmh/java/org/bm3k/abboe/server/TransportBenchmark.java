@@ -0,0 +1,105 @@
+package org.bm3k.abboe.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bm3k.abboe.common.Biomine3000Args;
+import org.bm3k.abboe.common.ClientUtils;
+import org.bm3k.abboe.common.ServerAddress;
+import org.bm3k.abboe.common.Subscriptions;
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Round trip of a small object from one client through a real {@link ABBOEServer} to another client over loopback,
+ * with a number of idle clients connected as well, for comparing the transports (and the number of threads they need,
+ * reported at setup). Idle clients subscribe to images, which are never sent.
+ *
+ * The classic transport needs two threads per client, so for more than a few thousand clients, run only the others:
+ * gradle jmh -PjmhArgs='Transport -p transport=nio,netty -p idleClients=20000' (mind the limit on open files).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+
+    @Param({"classic", "nio", "netty"})
+    public String transport;
+
+    @Param({"100", "1000"})
+    public int idleClients;
+
+    private final List<Socket> sockets = new ArrayList<>();
+    private OutputStream sender;
+    private InputStream receiver;
+    private byte[] object;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // the same object over and over again, so no deduplication; nor caching for new clients, just forwarding
+        Biomine3000Args args = new Biomine3000Args(new String[] { "-transport", transport, "-dedupwindowms", "0", "-recentobjects", "0" });
+        ServerAddress address = new ServerAddress("localhost", 0, "benchmark-server", "java");
+        ABBOEServer server = new ABBOEServer(args, address, Collections.<ServerAddress>emptyList(), false);
+        int port = server.startListening();
+
+        for (int i = 0; i < idleClients; i++) {
+            connect(port, new Subscriptions("image/*"));
+        }
+        Socket senderSocket = connect(port, new Subscriptions(""));
+        sender = senderSocket.getOutputStream();
+        Socket receiverSocket = connect(port, new Subscriptions("text/*"));
+        receiver = new BufferedInputStream(receiverSocket.getInputStream());
+        object = BOB.newBuilder().payload("Right away Michael.").nature("benchmark").build().toBytes();
+        System.out.println("\n" + transport + " transport with " + (idleClients + 2) + " clients: " + Thread.activeCount() + " threads");
+    }
+
+    /** Connect a client, and wait until subscribed */
+    private Socket connect(int port, Subscriptions subscriptions) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        sockets.add(socket);
+        socket.getOutputStream().write(ClientUtils.makeSubscriptionEvent(subscriptions).toBytes());
+        BusinessObject reply = BusinessObjectUtils.readObject(socket.getInputStream());
+        if (reply == null) {
+            throw new IOException("Server closed connection instead of replying to subscription");
+        }
+        return socket;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket: sockets) {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public BusinessObject roundTrip() throws Exception {
+        sender.write(object);
+        sender.flush();
+        while (true) {
+            BusinessObject bo = BusinessObjectUtils.readObject(receiver);
+            // skipping the welcome messages of the server
+            if (bo.hasNature("benchmark")) {
+                return bo;
+            }
+        }
+    }
+}
@@ -133,6 +133,19 @@ public class ABBOEConnection {
         this.sender.send(object.toBytes());
     }       
         
+    private void sendPong(BusinessObject ping) {
+        BusinessObject pong = BOB.newBuilder()
+                .event(BusinessObjectEventType.PONG)
+                .attribute("in-reply-to", ping.getMetadata().getString("id"))
+                .build();
+        try {
+            send(pong);
+        }
+        catch (IOException e) {
+            log.error("Failed sending pong", e);
+        }
+    }
+        
     public void sendClientListRequest() throws IOException {
         String reqId = Biomine3000Utils.generateUID();
         BusinessObjectMetadata meta = new BusinessObjectMetadata();
@@ -341,6 +354,11 @@ public class ABBOEConnection {
 
         @Override
         public void objectReceived(BusinessObject bo) {
+            if (bo.isEvent(BusinessObjectEventType.PING)) {
+                // the server pings idle clients to find out if they are still there
+                sendPong(bo);
+                return;
+            }
             objectHandler.handleObject(bo);        
         }    
         
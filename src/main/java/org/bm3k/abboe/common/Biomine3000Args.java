@@ -6,7 +6,7 @@ import util.CmdLineArgs2;
 
 public class Biomine3000Args extends CmdLineArgs2 {
     
-	private static String[] FLAGS = { "no-servers-file" }; 
+	private static String[] FLAGS = { "no-servers-file", "no-legacy-routes", "hoptimestamps", "evict-unanswering" }; 
 	
     /** Logging configured automatically by this constructor, based on args! */
     public Biomine3000Args(String[] args) throws IllegalArgumentsException {
@@ -30,6 +30,31 @@ public class Biomine3000Args extends CmdLineArgs2 {
     	return hasFlag("no-servers-file");    			
     }
     
+    /** 
+     * flag -no-legacy-routes: do not remove the routing id of the receiver from the route of each forwarded object, 
+     * allowing the server to encode an object only once for all receivers.
+     */
+    public boolean noLegacyRoutes() {
+        return hasFlag("no-legacy-routes");
+    }
+    
+    /** 
+     * flag -hoptimestamps: add "routing-id@epoch millis" of this server to array "hops" of each object forwarded,
+     * for measuring latencies of objects across the mesh.
+     */
+    public boolean hopTimestamps() {
+        return hasFlag("hoptimestamps");
+    }
+    
+    /** 
+     * flag -evict-unanswering: evict also neighbors that have never answered a ping, once they miss -pingmisses pings,
+     * so that one dying before answering its first ping does not linger. Off by default, as clients that never 
+     * answer pings and only listen would be evicted as well.
+     */
+    public boolean evictUnanswering() {
+        return hasFlag("evict-unanswering");
+    }
+    
     /** opt -user, or env var "USER", or "anonymos"*/  
     public String getUser() {
         // try opt
@@ -95,7 +120,8 @@ public class Biomine3000Args extends CmdLineArgs2 {
      * opt -peerconnectretryinterval, or env var "PEER_CONNECT_RETRY_INTERVAL", 
      * or {@link Biomine3000Constants#DEFAULT_PEER_CONNECT_RETRY_INTERVAL}
      * 
-     * @return reconnect interval in seconds. Negative value (typically -1) means no retrying.
+     * @return maximum reconnect interval in seconds, up to which the interval grows exponentially from a second.
+     *         Negative value (typically -1) means no retrying.
      */
     public Integer getPeerConnectRetryInterval() {
         Integer interval = getInt("peerconnectretryinterval");
@@ -113,6 +139,244 @@ public class Biomine3000Args extends CmdLineArgs2 {
         return interval;
     }
     
+    /** 
+     * opt -transport: "classic" for dedicated reader and sender threads for each neighbor,
+     * "nio" for multiplexing all neighbors over a small pool of selector threads, or "netty" for doing the same
+     * with Netty event loops (needs the abboe-netty module on the class path).
+     * 
+     * @return null if not specified
+     */
+    public String getTransport() {
+        return get("transport");
+    }
+    
+    /** 
+     * opt -metadatacodec: "streaming" for parsing metadata lazily, keeping it as the received bytes,
+     * or "json" for parsing everything up front with org.json.
+     * 
+     * @return null if not specified
+     */
+    public String getMetadataCodec() {
+        return get("metadatacodec");
+    }
+    
+    /** 
+     * opt -threads: "platform" for ordinary threads, or "virtual" for running readers, senders and other blocking
+     * tasks in virtual threads (needs JDK 21 or later).
+     * 
+     * @return null if not specified
+     */
+    public String getThreadMode() {
+        return get("threads");
+    }
+    
+    /** opt -iothreads, or number of available processors. Only relevant for the nio and netty transports. */
+    public int getIoThreads() {
+        Integer nThreads = getInt("iothreads");
+        if (nThreads == null) {
+            nThreads = Runtime.getRuntime().availableProcessors();
+        }
+        return nThreads;
+    }
+    
+    /** opt -sendqueueobjects, or {@link Biomine3000Constants#DEFAULT_SEND_QUEUE_OBJECTS} */
+    public int getSendQueueObjects() {
+        Integer n = getInt("sendqueueobjects");
+        return n != null ? n : Biomine3000Constants.DEFAULT_SEND_QUEUE_OBJECTS;
+    }
+    
+    /** 
+     * opt -sendqueuemb, or {@link Biomine3000Constants#DEFAULT_SEND_QUEUE_MEGABYTES} 
+     * 
+     * @return bytes
+     */
+    public long getSendQueueBytes() {
+        Integer mb = getInt("sendqueuemb");
+        if (mb == null) {
+            mb = Biomine3000Constants.DEFAULT_SEND_QUEUE_MEGABYTES;
+        }
+        return mb * 1024L * 1024L;
+    }
+    
+    /** 
+     * opt -overloadpolicy: one of "drop-oldest", "drop-newest", "drop-by-priority" or "disconnect",  
+     * or {@link Biomine3000Constants#DEFAULT_OVERLOAD_POLICY}. Neighbors may override this in their subscription.
+     */
+    public String getOverloadPolicy() {
+        String policy = get("overloadpolicy");
+        return policy != null ? policy : Biomine3000Constants.DEFAULT_OVERLOAD_POLICY;
+    }
+    
+    /** 
+     * opt -streamthresholdmb, or {@link Biomine3000Constants#DEFAULT_STREAMING_THRESHOLD_MEGABYTES}: objects with
+     * larger payloads are forwarded cut-through, streaming the payload to destinations while it is still being 
+     * received, instead of buffering it whole first. Negative value means never.  
+     * 
+     * @return bytes, or -1 for never
+     */
+    public long getStreamingThreshold() {
+        Integer mb = getInt("streamthresholdmb");
+        if (mb == null) {
+            mb = Biomine3000Constants.DEFAULT_STREAMING_THRESHOLD_MEGABYTES;
+        }
+        return mb >= 0 ? mb * 1024L * 1024L : -1;
+    }
+    
+    /** 
+     * opt -spooldir: keep large payloads queued for sending in memory-mapped files under this directory, 
+     * instead of the heap.
+     * 
+     * @return null if not specified
+     */
+    public String getSpoolDir() {
+        return get("spooldir");
+    }
+    
+    /** 
+     * opt -spoolthresholdkb, or {@link Biomine3000Constants#DEFAULT_SPOOL_THRESHOLD_KILOBYTES}: payloads at least
+     * this large are spooled, if there is a spool directory. 
+     * 
+     * @return bytes
+     */
+    public int getSpoolThreshold() {
+        Integer kb = getInt("spoolthresholdkb");
+        if (kb == null) {
+            kb = Biomine3000Constants.DEFAULT_SPOOL_THRESHOLD_KILOBYTES;
+        }
+        return kb * 1024;
+    }
+    
+    /** 
+     * opt -objectlogdir: keep a durable log of forwarded content in this directory, for replaying it to 
+     * neighbors that ask for it when subscribing.
+     * 
+     * @return null if not specified
+     */
+    public String getObjectLogDir() {
+        return get("objectlogdir");
+    }
+    
+    /** 
+     * opt -objectlogmb, or {@link Biomine3000Constants#DEFAULT_OBJECT_LOG_MEGABYTES}: oldest content is deleted 
+     * from the object log when it grows larger than this.
+     * 
+     * @return bytes
+     */
+    public long getObjectLogMaxBytes() {
+        Integer mb = getInt("objectlogmb");
+        if (mb == null) {
+            mb = Biomine3000Constants.DEFAULT_OBJECT_LOG_MEGABYTES;
+        }
+        return mb * 1024L * 1024L;
+    }
+    
+    /** 
+     * opt -objectlogsyncms, or {@link Biomine3000Constants#DEFAULT_OBJECT_LOG_SYNC_MILLIS}: how often the 
+     * object log is synced to disk.
+     * 
+     * @return milliseconds
+     */
+    public int getObjectLogSyncInterval() {
+        Integer millis = getInt("objectlogsyncms");
+        if (millis == null) {
+            millis = Biomine3000Constants.DEFAULT_OBJECT_LOG_SYNC_MILLIS;
+        }
+        return millis;
+    }
+    
+    /** 
+     * opt -recentobjects, or {@link Biomine3000Constants#DEFAULT_RECENT_OBJECTS}: number of recent content objects to keep 
+     * of each channel and type, for sending to new clients; 0 to keep none.
+     */
+    public int getRecentObjects() {
+        Integer n = getInt("recentobjects");
+        if (n == null) {
+            n = Biomine3000Constants.DEFAULT_RECENT_OBJECTS;
+        }
+        return n;
+    }
+    
+    /** 
+     * opt -recentobjectsmb, or {@link Biomine3000Constants#DEFAULT_RECENT_OBJECTS_MEGABYTES}: bound of all recent 
+     * content objects kept.
+     * 
+     * @return bytes
+     */
+    public long getRecentObjectsBytes() {
+        Integer mb = getInt("recentobjectsmb");
+        if (mb == null) {
+            mb = Biomine3000Constants.DEFAULT_RECENT_OBJECTS_MEGABYTES;
+        }
+        return mb * 1024L * 1024L;
+    }
+    
+    /** 
+     * opt -dedupwindowms, or {@link Biomine3000Constants#DEFAULT_DEDUP_WINDOW_MILLIS}: drop objects already forwarded 
+     * within this time (arriving again through another path); 0 to not check. Objects are told apart by id, or
+     * lacking one, by content, but only when coming from another server.
+     * 
+     * @return milliseconds
+     */
+    public int getDedupWindow() {
+        Integer millis = getInt("dedupwindowms");
+        if (millis == null) {
+            millis = Biomine3000Constants.DEFAULT_DEDUP_WINDOW_MILLIS;
+        }
+        return millis;
+    }
+    
+    /** 
+     * opt -pinginterval, or {@link Biomine3000Constants#DEFAULT_PING_INTERVAL_SEC}: ping neighbors from which nothing 
+     * has been received for this long; 0 to not ping at all.
+     * 
+     * @return seconds
+     */
+    public int getPingInterval() {
+        Integer seconds = getInt("pinginterval");
+        if (seconds == null) {
+            seconds = Biomine3000Constants.DEFAULT_PING_INTERVAL_SEC;
+        }
+        return seconds;
+    }
+    
+    /** 
+     * opt -pingmisses, or {@link Biomine3000Constants#DEFAULT_PING_MISSES}: evict a neighbor that leaves this many 
+     * consecutive pings unanswered (one ping interval each), sending nothing else in the meantime either, provided 
+     * that it has answered a ping before (see {@link #evictUnanswering()}).
+     */
+    public int getPingMisses() {
+        Integer n = getInt("pingmisses");
+        if (n == null) {
+            n = Biomine3000Constants.DEFAULT_PING_MISSES;
+        }
+        return n;
+    }
+    
+    /** 
+     * opt -peerstartupdeadline, or {@link Biomine3000Constants#DEFAULT_PEER_STARTUP_DEADLINE_SEC}: seconds after which 
+     * to start accepting clients even if some peers are still being contacted; negative to wait for all of them.
+     */
+    public int getPeerStartupDeadline() {
+        Integer n = getInt("peerstartupdeadline");
+        if (n == null) {
+            n = Biomine3000Constants.DEFAULT_PEER_STARTUP_DEADLINE_SEC;
+        }
+        return n;
+    }
+    
+    /** 
+     * opt -flushdelay, or {@link Biomine3000Constants#DEFAULT_FLUSH_DELAY_MICROS}: microseconds a small object
+     * written to a neighbor may wait in the output buffer for more to share the socket write with; 0 to write out
+     * as soon as nothing more is queued. Applies to the socket transport.
+     */
+    public int getFlushDelay() {
+        Integer n = getInt("flushdelay");
+        if (n == null) {
+            n = Biomine3000Constants.DEFAULT_FLUSH_DELAY_MICROS;
+        }
+        return n;
+    }
+    
     /** @return null if host == || port == null */
     public ServerAddress getServerAddress() {
     	String host = getHost();
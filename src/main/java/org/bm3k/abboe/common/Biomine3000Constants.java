@@ -24,6 +24,48 @@ public class Biomine3000Constants {
     
     /** default peer connect retry interval in seconds */
     public static final int DEFAULT_PEER_CONNECT_RETRY_INTERVAL = 60;
+    
+    /** default time to wait for all peers to be contacted before accepting clients anyway, in seconds */
+    public static final int DEFAULT_PEER_STARTUP_DEADLINE_SEC = 10;
+    
+    /** default maximum number of objects queued for sending to a single neighbor */
+    public static final int DEFAULT_SEND_QUEUE_OBJECTS = 10000;
+    
+    /** default maximum number of bytes queued for sending to a single neighbor, in megabytes */
+    public static final int DEFAULT_SEND_QUEUE_MEGABYTES = 64;
+    
+    /** default size of payloads above which objects are forwarded cut-through, in megabytes */
+    public static final int DEFAULT_STREAMING_THRESHOLD_MEGABYTES = 16;
+    
+    /** default size of payloads above which they are kept in the spool directory while queued, in kilobytes */
+    public static final int DEFAULT_SPOOL_THRESHOLD_KILOBYTES = 256;
+    
+    /** default maximum size of the object log, in megabytes */
+    public static final int DEFAULT_OBJECT_LOG_MEGABYTES = 1024;
+    
+    /** default interval of syncing the object log to disk, in milliseconds */
+    public static final int DEFAULT_OBJECT_LOG_SYNC_MILLIS = 1000;
+    
+    /** default number of recent content objects kept of each channel and type, for sending to new clients */
+    public static final int DEFAULT_RECENT_OBJECTS = 3;
+    
+    /** default bound of all recent content objects kept, in megabytes */
+    public static final int DEFAULT_RECENT_OBJECTS_MEGABYTES = 32;
+    
+    /** default time within which an object arriving again is dropped as a duplicate, in milliseconds */
+    public static final int DEFAULT_DEDUP_WINDOW_MILLIS = 10000;
+    
+    /** default time a neighbor may stay silent before being pinged, in seconds */
+    public static final int DEFAULT_PING_INTERVAL_SEC = 30;
+    
+    /** default number of consecutive pings a neighbor may leave unanswered before being evicted */
+    public static final int DEFAULT_PING_MISSES = 3;
+    
+    /** default time small objects may wait for more to be written out together with, in microseconds */
+    public static final int DEFAULT_FLUSH_DELAY_MICROS = 50;
+    
+    /** default policy when the send queue of a neighbor is full */
+    public static final String DEFAULT_OVERLOAD_POLICY = "drop-oldest";
 }
 
 
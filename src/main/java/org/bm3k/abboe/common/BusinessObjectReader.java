@@ -4,19 +4,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
-
-import org.bm3k.abboe.objects.BOB;
 import org.bm3k.abboe.objects.BusinessObject;
 import org.bm3k.abboe.objects.BusinessObjectMetadata;
-import org.bm3k.abboe.objects.BusinessObjectUtils;
+import org.bm3k.abboe.objects.PacketDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.net.MediaType;
-
-import util.collections.Pair;
-
 /**
  * Thread for reading business objects from a stream and notifying a single registered {@link Listener} 
  * about received objects.
@@ -25,7 +20,10 @@ import util.collections.Pair;
  * input stream once done (one of handle(XXXexception) methods called, or noMoreObjects() called.
  * noMoreObjects() WILL NOT be called if execution ends to an exception!
  * 
- * TODO: generalize this to obtain a generic PacketReader.
+ * Reads the stream in bulk and decodes packets using a {@link PacketDecoder}; thus this reader may 
+ * consume more bytes from the stream than belong to the object being processed at any given moment.
+ * 
+ * A {@link StreamingListener} gets large payloads in chunks as they arrive, instead of whole objects.
  */
 public class BusinessObjectReader implements Runnable {
     private final Logger log = LoggerFactory.getLogger(BusinessObjectReader.class);    
@@ -51,47 +49,39 @@ public class BusinessObjectReader implements Runnable {
     	
         dbg("Starting run()");        
         
+        PacketDecoder decoder = new PacketDecoder();
+        PacketDispatcher dispatcher = new PacketDispatcher(decoder, listener);
         try {
             // log("Reading packet...");
             this.state = State.READING_PACKET;
-            Pair<BusinessObjectMetadata, byte[]> packet = BusinessObjectUtils.readPacket(is);
-        
-            while (packet != null) {                                
-                BusinessObjectMetadata meta = packet.getObj1();
-                byte[] payload;
-                
-                if (meta.hasPayload()) {
-                	MediaType type = meta.getOfficialType();
-                	byte[] data = packet.getObj2();
-                    if (type != null) {
-                        payload = data;
-                    }
-                    else { 
-                    	log.warn("Cannot process payload. Metadata: "+meta);
-                    	payload = null;
-                    }                                       
-                }
-                else {
-                	// no payload
-                	payload = null;
-                }
-                                               
-                BusinessObject bo = BOB.newBuilder()
-                    .metadata(meta)
-                    .payload(payload)
-                    .build();
-                                               
+            ByteBuffer buf = decoder.allocateBuffer();
+            
+            while (true) {
                 this.state = State.EXECUTING_LISTENER_OBJECT_RECEIVED;
-                listener.objectReceived(bo);                                        
-                
+                boolean dispatched = dispatcher.dispatchNext(buf);
                 // log("Reading packet...");
                 this.state = State.READING_PACKET;
-                packet = BusinessObjectUtils.readPacket(is);
+                if (dispatched) {
+                    continue;
+                }
+                
+                // need more bytes
+                buf = decoder.prepareForReading(buf);
+                int n = is.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                if (n > 0) {
+                    buf.position(buf.position() + n);
+                }
+                buf.flip();
+                if (n < 0) {
+                    dispatcher.endOfStream(buf);
+                    break;
+                }
             }
                         
             listener.noMoreObjects();
         }
         catch (SocketException e) {
+            dispatcher.failed();
             log.warn("Got SocketException {}", e);
             if (e.getMessage().equals("Connection reset")) {
                 // message hardcoded in ORACLE java's SocketInputStream read method... TODO: check that this works in other
@@ -104,10 +94,12 @@ public class BusinessObjectReader implements Runnable {
             }
         }
         catch (IOException e) {        	        
+            dispatcher.failed();
             log.warn("Got IOException", e);
             listener.handle(e);
         }
         catch (InvalidBusinessObjectException e) {
+            dispatcher.failed();
             log.warn("Got InvalidBusinessObjectException {}", e);
             listener.handle(e);
         }        
@@ -232,6 +224,32 @@ public class BusinessObjectReader implements Runnable {
         
     }
     
+    /** 
+     * Listener that wants large payloads streamed to it chunk by chunk as they arrive, instead of having them
+     * buffered whole before {@link #objectReceived(BusinessObject)}, e.g. for forwarding them cut-through.
+     */
+    public interface StreamingListener extends Listener {
+        /** Payloads larger than this many bytes are offered to {@link #streamStarted(BusinessObjectMetadata)} */
+        public int getStreamingThreshold();
+        
+        /**
+         * Metadata of an object with a large payload has been received, and the payload is about to follow. 
+         * 
+         * @return where to write the payload, or null to have the object buffered and delivered to
+         * {@link #objectReceived(BusinessObject)} as usual.
+         */
+        public PayloadSink streamStarted(BusinessObjectMetadata metadata);
+    }
+    
+    /** Receives the payload of a single object in chunks, see {@link StreamingListener} */
+    public interface PayloadSink {
+        /** Next bytes of the payload. The chunk is only valid during the call. */
+        public void write(ByteBuffer chunk) throws IOException;
+        
+        /** Reading failed or stream ended before the whole payload was written; nothing more will be written. */
+        public void failed();
+    }
+    
     public enum State {
         NOT_STARTED,
         READING_PACKET,
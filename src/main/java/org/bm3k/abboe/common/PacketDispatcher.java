@@ -0,0 +1,86 @@
+package org.bm3k.abboe.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.bm3k.abboe.common.BusinessObjectReader.Listener;
+import org.bm3k.abboe.common.BusinessObjectReader.PayloadSink;
+import org.bm3k.abboe.common.BusinessObjectReader.StreamingListener;
+import org.bm3k.abboe.objects.PacketDecoder;
+
+/**
+ * Delivers packets decoded by a {@link PacketDecoder} to a {@link BusinessObjectReader.Listener}, handing
+ * large payloads to a {@link StreamingListener} chunk by chunk. Shared by the blocking {@link BusinessObjectReader}
+ * and the non-blocking server transport, which just differ in how they fill the receive buffer.
+ *
+ * Not thread-safe, as the decoder.
+ */
+public class PacketDispatcher {
+
+    private final PacketDecoder decoder;
+    private final Listener listener;
+    /** Where the payload currently being streamed goes */
+    private PayloadSink sink;
+
+    public PacketDispatcher(PacketDecoder decoder, Listener listener) {
+        this.decoder = decoder;
+        this.listener = listener;
+        if (listener instanceof StreamingListener) {
+            decoder.setStreamingThreshold(((StreamingListener)listener).getStreamingThreshold());
+        }
+    }
+
+    /**
+     * Deliver next object, or next chunk of a payload being streamed, from buf (in read mode).
+     *
+     * @return false if more bytes are needed for doing anything.
+     */
+    public boolean dispatchNext(ByteBuffer buf) throws IOException, InvalidBusinessObjectException {
+        if (decoder.isStreamingPayload()) {
+            ByteBuffer chunk = decoder.nextPayloadChunk(buf);
+            if (chunk == null) {
+                return false;
+            }
+            sink.write(chunk);
+            if (!decoder.isStreamingPayload()) {
+                sink = null;
+            }
+            return true;
+        }
+
+        PacketDecoder.Packet packet = decoder.next(buf);
+        if (packet == null) {
+            return false;
+        }
+
+        if (packet.isPayloadPending()) {
+            sink = ((StreamingListener)listener).streamStarted(packet.getMetadata());
+            if (sink != null) {
+                decoder.streamPayload();
+            }
+            else {
+                decoder.bufferPayload();
+            }
+            return true;
+        }
+
+        listener.objectReceived(packet.toBusinessObject());
+        return true;
+    }
+
+    /** As {@link PacketDecoder#endOfStream(ByteBuffer)}; also notifies the sink of a payload left incomplete. */
+    public void endOfStream(ByteBuffer buf) throws IOException, InvalidBusinessObjectException {
+        if (sink != null) {
+            failed();
+        }
+        decoder.endOfStream(buf);
+    }
+
+    /** Reading has failed; notify the sink of a payload left incomplete, if any */
+    public void failed() {
+        if (sink != null) {
+            sink.failed();
+            sink = null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.bm3k.abboe.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+
+/**
+ * The {@link Subscriptions} of any number of subscribers compiled into a single lookup structure,
+ * so that the subscribers to which an object passes can be resolved in one pass over the natures,
+ * event and type of the object, instead of matching every rule of every subscriber separately.
+ *
+ * There is one trie for each type of rule (nature, event, content type), keyed by the pattern of the rule;
+ * a rule with a wildcard suffix is stored at the node of its prefix, and matches all values
+ * passing through that node. Each rule remembers its position in the rule list of its subscriber,
+ * so that the last matching rule can still determine pass / no pass, exactly as in
+ * {@link Subscriptions#pass(BusinessObject)}.
+ *
+ * Immutable once built; to change subscriptions, build a new index.
+ */
+public class SubscriptionIndex<T> {
+
+    private final List<T> subscribers;
+    private final Node natures = new Node();
+    private final Node events = new Node();
+    private final Node types = new Node();
+
+    public SubscriptionIndex(Collection<T> subscribers, Function<? super T, Subscriptions> subscriptionsOf) {
+        this.subscribers = new ArrayList<T>(subscribers);
+        for (int i = 0; i < this.subscribers.size(); i++) {
+            Subscriptions subscriptions = subscriptionsOf.apply(this.subscribers.get(i));
+            List<SubscriptionRule> rules = subscriptions.rules;
+            for (int pos = 0; pos < rules.size(); pos++) {
+                SubscriptionRule rule = rules.get(pos);
+                Node root;
+                switch (rule.getType()) {
+                    case NATURE: root = natures; break;
+                    case EVENT: root = events; break;
+                    case CONTENTTYPE: root = types; break;
+                    default: throw new RuntimeException("Un-possible");
+                }
+                root.add(rule.getPattern(), rule.isWildcard(), new Posting(i, pos, !rule.negated()));
+            }
+        }
+    }
+
+    public static <T> SubscriptionIndex<T> empty() {
+        return new SubscriptionIndex<T>(Collections.<T>emptyList(), null);
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return subscribers to which bo passes, in the order given when building the index.
+     */
+    public List<T> match(BusinessObject bo) {
+        int n = subscribers.size();
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+
+        Matches matches = new Matches(n);
+        BusinessObjectMetadata meta = bo.getMetadata();
+
+        for (String nature: meta.getNatures()) {
+            natures.collect(nature, matches);
+        }
+
+        String event = meta.getEvent();
+        if (event != null) {
+            events.collect(event, matches);
+        }
+
+        String type = meta.getType();
+        if (type != null) {
+            types.collect(type, matches);
+        }
+        else {
+            // only a plain "*" matches missing type
+            types.collectWildcards(matches);
+        }
+
+        List<T> result = new ArrayList<T>();
+        for (int i = 0; i < n; i++) {
+            if (matches.pass[i]) {
+                result.add(subscribers.get(i));
+            }
+        }
+        return result;
+    }
+
+    /** Last matching rule of each subscriber so far */
+    private static class Matches {
+        /** position of last matching rule + 1; 0 if no match */
+        final int[] last;
+        final boolean[] pass;
+
+        Matches(int n) {
+            last = new int[n];
+            pass = new boolean[n];
+        }
+
+        void add(Posting[] postings, int count) {
+            for (int i = 0; i < count; i++) {
+                Posting p = postings[i];
+                if (p.position >= last[p.subscriber]) {
+                    last[p.subscriber] = p.position + 1;
+                    pass[p.subscriber] = p.pass;
+                }
+            }
+        }
+    }
+
+    /** A single rule of a single subscriber */
+    private static class Posting {
+        final int subscriber;
+        final int position;
+        final boolean pass;
+
+        Posting(int subscriber, int position, boolean pass) {
+            this.subscriber = subscriber;
+            this.position = position;
+            this.pass = pass;
+        }
+    }
+
+    private static class Node {
+        private static final Posting[] NO_POSTINGS = new Posting[0];
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /** sorted */
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        /** rules whose pattern ends exactly here */
+        Posting[] exact = NO_POSTINGS;
+        int nExact;
+        /** rules whose pattern ends here, followed by a wildcard */
+        Posting[] wildcard = NO_POSTINGS;
+        int nWildcard;
+
+        void add(String pattern, boolean isWildcard, Posting posting) {
+            Node node = this;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.getOrCreateChild(pattern.charAt(i));
+            }
+            if (isWildcard) {
+                if (node.nWildcard == node.wildcard.length) {
+                    node.wildcard = Arrays.copyOf(node.wildcard, Math.max(4, node.nWildcard * 2));
+                }
+                node.wildcard[node.nWildcard++] = posting;
+            }
+            else {
+                if (node.nExact == node.exact.length) {
+                    node.exact = Arrays.copyOf(node.exact, Math.max(4, node.nExact * 2));
+                }
+                node.exact[node.nExact++] = posting;
+            }
+        }
+
+        private Node getOrCreateChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertAt = -i - 1;
+            Node child = new Node();
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = child;
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        /** Collect all rules matching value, walking the trie along value */
+        void collect(String value, Matches matches) {
+            Node node = this;
+            int len = value.length();
+            for (int i = 0; ; i++) {
+                matches.add(node.wildcard, node.nWildcard);
+                if (i == len) {
+                    matches.add(node.exact, node.nExact);
+                    return;
+                }
+                int k = Arrays.binarySearch(node.keys, value.charAt(i));
+                if (k < 0) {
+                    return;
+                }
+                node = node.children[k];
+            }
+        }
+
+        void collectWildcards(Matches matches) {
+            matches.add(wildcard, nWildcard);
+        }
+    }
+}
@@ -67,6 +67,19 @@ public class SubscriptionRule {
          return negated;
      }
      
+     Type getType() {
+         return type;
+     }
+     
+     /** Without prefixes and wildcard suffix */
+     String getPattern() {
+         return pattern;
+     }
+     
+     boolean isWildcard() {
+         return wildcard;
+     }
+     
     /** 
      * Check whether a given value (a event, contenttype or nature) matches the rule text.
      * @return false for null values
@@ -123,7 +136,7 @@ public class SubscriptionRule {
          return ruleStr;
      }
      
-     private enum Type { 
+     enum Type { 
          EVENT, NATURE, CONTENTTYPE;
      }                  
      
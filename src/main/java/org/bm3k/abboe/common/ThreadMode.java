@@ -0,0 +1,101 @@
+package org.bm3k.abboe.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * How the blocking work of the ABBOE (readers and senders of the classic transport, peer connectors, timers and
+ * such) gets its threads. All such threads are started through {@link #start(String, Runnable)}, so that
+ * names are kept for diagnostics whichever mode is used.
+ */
+public enum ThreadMode {
+    /** An ordinary platform thread for each task */
+    PLATFORM("platform"),
+    /**
+     * A virtual thread for each task (JDK 21 or later), so that blocking I/O of tens of thousands of
+     * neighbors only costs a few carrier threads. Looked up reflectively, as we still build for Java 8.
+     */
+    VIRTUAL("virtual");
+
+    /** Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.unstarted(Runnable); null if not supported */
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME;
+    private static final MethodHandle UNSTARTED;
+
+    static {
+        MethodHandle ofVirtual = null, name = null, unstarted = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualBuilder));
+            name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+            unstarted = lookup.findVirtual(builder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+        }
+        catch (ReflectiveOperationException e) {
+            // older JDK
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    String name;
+
+    ThreadMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return {@link #PLATFORM} for null name
+     * @throws IllegalArgumentException for unknown name, or {@link #VIRTUAL} on a JDK without virtual threads
+     */
+    public static ThreadMode byName(String name) {
+        if (name == null) {
+            return PLATFORM;
+        }
+        for (ThreadMode mode: values()) {
+            if (mode.name.equals(name)) {
+                if (mode == VIRTUAL && !isVirtualSupported()) {
+                    throw new IllegalArgumentException("Virtual threads need JDK 21 or later; running on " + System.getProperty("java.version"));
+                }
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown thread mode: " + name);
+    }
+
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /** Thread that will run task once started; may be renamed later with {@link Thread#setName(String)} */
+    public Thread newThread(String name, Runnable task) {
+        if (this == PLATFORM) {
+            return new Thread(task, name);
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(), name);
+            return (Thread)UNSTARTED.invoke(builder, task);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            // none declared by these methods
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return the started thread */
+    public Thread start(String name, Runnable task) {
+        Thread thread = newThread(name, task);
+        thread.start();
+        return thread;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
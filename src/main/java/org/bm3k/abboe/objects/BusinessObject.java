@@ -1,11 +1,19 @@
 package org.bm3k.abboe.objects;
 
+import java.nio.ByteBuffer;
+
 import com.google.common.net.MediaType;
 
 public interface BusinessObject {
 	BusinessObjectMetadata getMetadata();
 
 	byte[] toBytes();
+	
+	/** 
+	 * Same as {@link #toBytes()}, without concatenating: metadata, the null byte and payload (if any) 
+	 * as separate read-only buffers, to be written one after another. 
+	 */
+	ByteBuffer[] toByteBuffers();
 
     byte[] getPayload();
     
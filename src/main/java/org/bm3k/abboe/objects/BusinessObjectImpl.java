@@ -1,6 +1,6 @@
 package org.bm3k.abboe.objects;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import com.google.common.net.MediaType;
 
@@ -48,6 +48,8 @@ public class BusinessObjectImpl implements BusinessObject {
     private BusinessObjectMetadata metadata;
     
     private byte[] payload;
+    
+    private static final byte[] NULL_BYTE = { 0 };
               
     /**
      * Builder constructor, the main constructor.
@@ -98,22 +100,12 @@ public class BusinessObjectImpl implements BusinessObject {
     /**
 	 * Represent business object as transmittable toBytes. Returns a byte array containing both the header and payload,
 	 * separated by a null character, as emphasized elsewhere. Note that in order to avoid laying memory to waste,
-	 * some byte iterator or other more abstract representation should be used to avoid copying the payload toBytes...
+	 * {@link #toByteBuffers()} should be used instead where possible, to avoid copying the payload toBytes...
 	 *
-	 * Also, the content is not cached, so calling this multiple times will result in multiple memory initializations.
-	 * 
-	 * Alas, somewhere, in some time, there might exist a garbage collector, which should make copying the toBytes
-	 * acceptable for now.
+	 * The encoded metadata is cached by the metadata itself (until modified), but the result is always a new array.
 	 */  
 	public final byte[] toBytes() {
-	    byte[] jsonBytes = null;
-	    try {
-            jsonBytes = metadata.toString().getBytes("UTF-8");           
-        }
-        catch (UnsupportedEncodingException e) {
-            // the unthinkable has occurred
-            throw new RuntimeException("phintsan has arrived to Helsinki OPEN plätkä tournament");
-        }
+	    byte[] jsonBytes = metadata.toBytes();
 	    
 	    byte[] bytes;
 	    if (payload != null && metadata.getType() != null) {
@@ -129,6 +121,18 @@ public class BusinessObjectImpl implements BusinessObject {
 	    }
 	    	    	    	   	    	    	    	    
 	    return bytes;
+	}
+	
+	@Override
+	public ByteBuffer[] toByteBuffers() {
+	    ByteBuffer json = ByteBuffer.wrap(metadata.toBytes()).asReadOnlyBuffer();
+	    ByteBuffer nul = ByteBuffer.wrap(NULL_BYTE).asReadOnlyBuffer();
+	    if (payload != null && metadata.getType() != null) {
+	        return new ByteBuffer[] { json, nul, ByteBuffer.wrap(payload).asReadOnlyBuffer() };
+	    }
+	    else {
+	        return new ByteBuffer[] { json, nul };
+	    }
 	}				
 	
 	public String toString() {
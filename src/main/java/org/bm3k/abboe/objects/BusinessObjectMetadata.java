@@ -1,6 +1,7 @@
 package org.bm3k.abboe.objects;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import com.google.common.net.MediaType;
@@ -30,15 +31,29 @@ import util.JSONUtils;
  *   -should business objects be immutable?
  *   -How should information about standard mime types be utilized?
  *  
+ * Metadata parsed by the {@link MetadataCodec#STREAMING} codec is kept as the received bytes for as long as
+ * possible: values needed for routing (event, type, natures, route, to, size) are decoded on demand, and can also
+ * be set without touching the rest of the document. Anything else, most notably {@link #asJSON()}, converts
+ * the metadata into a JSONObject for good.
  */
 public class BusinessObjectMetadata {
            
+    private static volatile MetadataCodec codec = MetadataCodec.byName(System.getProperty("abboe.metadata.codec"));
     
     private BusinessObject obj;
     
+    /** Exactly one of json and raw is non-null */
     private JSONObject json;
+    private RawMetadata raw;
+    /** 
+     * Result of {@link #toBytes()}, cached until modified. Everything that modifies the metadata must clear this;
+     * once the JSONObject has been {@link #exposed} to outsiders, nothing is cached any more.
+     */
+    private volatile byte[] encoded;
+    private boolean exposed;
 
     public void setObject(BusinessObject obj) {
+        encoded = null;
         this.obj = obj;
     }
     
@@ -47,20 +62,62 @@ public class BusinessObjectMetadata {
      * when the characters are not encoded as UTF-8.
      */
     public BusinessObjectMetadata (byte[] bytes) throws InvalidBusinessObjectMetadataException {
+        this(codec.decode(bytes));
+    }
 
-        try {            
-            json = new JSONObject(new String(bytes, "UTF-8"));
-        }
-        catch (UnsupportedEncodingException e) {
-            // the unthinkable has occurred; UTF-8 not supported by this very java instance
-            throw new RuntimeException("Arkku has abandoned vim in favor of Eclipse");
-        }                                         
-        catch (JSONException e) {
-            // failure due to callers folly of providing invalid JSON text
-            throw new InvalidBusinessObjectMetadataException(e);
+    /**
+     * Construct from JSON represented as UTF-8 coded bytes between position and limit of buffer,
+     * which may be a heap or direct buffer. Position of the buffer is not changed.
+     */
+    public BusinessObjectMetadata(ByteBuffer bytes) throws InvalidBusinessObjectMetadataException {
+        this(codec.decode(bytes));
+    }
+    
+    /** 
+     * As {@link #BusinessObjectMetadata(byte[])}, without an extra copy of the metadata. 
+     * The bytes may be kept by reference, so they must not be modified afterwards. 
+     */
+    public static BusinessObjectMetadata decode(byte[] bytes) throws InvalidBusinessObjectMetadataException {
+        return codec.decode(bytes);
+    }
+    
+    /** As {@link #BusinessObjectMetadata(ByteBuffer)}, without an extra copy of the metadata */
+    public static BusinessObjectMetadata decode(ByteBuffer bytes) throws InvalidBusinessObjectMetadataException {
+        return codec.decode(bytes);
+    }
+    
+    /** Codec used for parsing metadata from now on */
+    public static void setCodec(MetadataCodec codec) {
+        BusinessObjectMetadata.codec = codec;
+    }
+    
+    public static MetadataCodec getCodec() {
+        return codec;
+    }
+    
+    private BusinessObjectMetadata(BusinessObjectMetadata decoded) {
+        this.json = decoded.json;
+        this.raw = decoded.raw;
+    }
+    
+    BusinessObjectMetadata(RawMetadata raw) {
+        this.raw = raw;
+    }
+    
+    /** Convert to JSONObject for good, if not already */
+    private JSONObject json() {
+        if (json == null) {
+            try {
+                json = new JSONObject(new String(raw.encode(null), StandardCharsets.UTF_8));
+            }
+            catch (JSONException e) {
+                throw new RuntimeException("Un-possible", e);
+            }
+            raw = null;
         }
+        return json;
     }
-
+    
     
     
     public boolean hasPayload() {
@@ -75,7 +132,7 @@ public class BusinessObjectMetadata {
         json = new JSONObject();                              
     }   
     
-    private BusinessObjectMetadata(JSONObject json) {                          
+    BusinessObjectMetadata(JSONObject json) {                          
         this.json = json;                              
     }
 
@@ -100,7 +157,7 @@ public class BusinessObjectMetadata {
      */    
     public LegacySubscriptions getLegacySubscriptions() throws InvalidBusinessObjectMetadataException {
         try {
-            Object json = this.json.opt("subscriptions");
+            Object json = json().opt("subscriptions");
             if (json == null) {
                 return null;
             }
@@ -115,6 +172,14 @@ public class BusinessObjectMetadata {
     
     /** @return empty list if no natures */
     public Set<String> getNatures() {
+        if (raw != null) {
+            Set<String> natures = raw.natures();
+            if (natures != null) {
+                return natures;
+            }
+        }
+        
+    	JSONObject json = json();
     	JSONArray arr = json.optJSONArray("nature");
     	if (arr == null) {
     		arr = json.optJSONArray("natures");
@@ -148,6 +213,22 @@ public class BusinessObjectMetadata {
     }
     
     public void addNature(String nature) {
+        encoded = null;
+        if (raw != null) {
+            Object natures = raw.value("natures");
+            if (natures == null) {
+                raw.put("natures", Collections.singletonList(nature));
+                return;
+            }
+            else if (natures instanceof List) {
+                List<Object> list = new ArrayList<Object>((List<?>)natures);
+                list.add(nature);
+                raw.put("natures", list);
+                return;
+            }
+        }
+        
+        JSONObject json = json();
         JSONArray natures;
         if (hasKey("natures")) {
             natures = json.getJSONArray("natures");            
@@ -161,6 +242,8 @@ public class BusinessObjectMetadata {
     }
     
     public void addWarning(String warning) {
+        encoded = null;
+        JSONObject json = json();
         JSONArray warnings;
         if (hasKey("warnings")) {
             warnings = json.getJSONArray("warnings");            
@@ -180,7 +263,8 @@ public class BusinessObjectMetadata {
      * @deprecated
      */     
     public void setLegacySubsciptions(LegacySubscriptions subscriptions) throws JSONException {             
-        json.put("subscriptions", subscriptions.toJSON());
+        encoded = null;
+        json().put("subscriptions", subscriptions.toJSON());
     }
     
     /**
@@ -197,8 +281,14 @@ public class BusinessObjectMetadata {
      * Put a simple string value. For more complex values, use the wrapped json object directly
      * (reference obtainable via {@link #asJSON()})
      */ 
-    public void put(String key, String value) {                    
-        json.put(key, value);                    
+    public void put(String key, String value) {
+        encoded = null;
+        if (raw != null && value != null) {
+            raw.put(key, value);
+        }
+        else {
+            json().put(key, value);
+        }
     }
     
     /**
@@ -206,20 +296,38 @@ public class BusinessObjectMetadata {
      * (reference obtainable via {@link #asJSON()})
      */ 
     public void put(String key, JSONArray arr) {                    
-        json.put(key, arr);                    
+        encoded = null;
+        json().put(key, arr);                    
     }
     
     /**
      * Put a simple integer value. For more complex values, use the wrapped json object directly
      * (reference obtainable via {@link #asJSON()})
      */ 
-    public void put(String key, int value) {        
-        json.put(key, value);
+    public void put(String key, int value) {
+        encoded = null;
+        if (raw != null) {
+            raw.put(key, value);
+        }
+        else {
+            json.put(key, value);
+        }
+    }
+    
+    /** Remove key, if it exists */
+    public void remove(String key) {
+        encoded = null;
+        if (raw != null) {
+            raw.remove(key);
+        }
+        else {
+            json.remove(key);
+        }
     }
         
     @SuppressWarnings("unchecked")
     public List<String> keys() {        
-        return CollectionUtils.makeArrayList((Iterator<String>)json.keys());
+        return CollectionUtils.makeArrayList((Iterator<String>)json().keys());
     }
     
     public boolean hasPlainTextPayload() {
@@ -237,7 +345,14 @@ public class BusinessObjectMetadata {
      * @throws ClassCastException when the value is not a String.
      */
     public String getString(String key) throws ClassCastException {
-        Object val = json.opt(key);
+        if (raw != null) {
+            Object val = raw.value(key);
+            if (val == null || val instanceof String) {
+                return (String)val;
+            }
+        }
+        
+        Object val = json().opt(key);
         if (val == null) {
             return null;
         }
@@ -258,7 +373,14 @@ public class BusinessObjectMetadata {
      * @throws ClassCastException when the value is not an Integer.
      */
     public Integer getInteger(String key) throws ClassCastException {
-        Object val = json.opt(key);
+        if (raw != null) {
+            Object val = raw.value(key);
+            if (val == null || val instanceof Integer) {
+                return (Integer)val;
+            }
+        }
+        
+        Object val = json().opt(key);
         if (val == null) {
             return null;
         }
@@ -272,6 +394,12 @@ public class BusinessObjectMetadata {
     }
     
     public void putStringArray(String key, List<String> values) {
+        encoded = null;
+        if (raw != null) {
+            raw.put(key, values);
+            return;
+        }
+        
         JSONArray arr = new JSONArray();
         for (String s: values) {
             arr.put(s);
@@ -282,6 +410,12 @@ public class BusinessObjectMetadata {
     }
     
     public void putStringArray(String key, String... values) {
+        encoded = null;
+        if (raw != null) {
+            raw.put(key, Arrays.asList(values));
+            return;
+        }
+        
         JSONArray arr = new JSONArray();
         for (String s: values) {
             arr.put(s);
@@ -297,8 +431,22 @@ public class BusinessObjectMetadata {
      * Return single strings as a singleton list. Return null, is no such key.
      * The returned list is unmodifiable.  
      * */ 
+    @SuppressWarnings("unchecked")
     public List<String> getList(String key) {
-        Object o = json.opt(key);
+        if (raw != null) {
+            Object o = raw.value(key);
+            if (o == null) {
+                return null;
+            }
+            else if (o instanceof String) {
+                return Collections.singletonList((String)o);
+            }
+            else if (o instanceof List) {
+                return (List<String>)o;
+            }
+        }
+        
+        Object o = json().opt(key);
         if (o == null) {
             return null;
         }
@@ -332,8 +480,15 @@ public class BusinessObjectMetadata {
      * Map currently unsupported, BusinessObjectException shall await 
      * anyone foolish enough to try such conjurings.
      */
-    public Object get(String key) {        
-        Object o = json.opt(key);
+    public Object get(String key) {
+        if (raw != null) {
+            Object o = raw.value(key);
+            if (o != RawMetadata.UNSUPPORTED) {
+                return o;
+            }
+        }
+        
+        Object o = json().opt(key);
         if (o == null) {
             return null;            
         }
@@ -356,9 +511,15 @@ public class BusinessObjectMetadata {
      * BusinessObjectMetadata (and not a copy), and is to be used when 
      * updates more complex than setting a simple string value are to 
      * be performed. 
+     * 
+     * As the changes cannot be tracked, {@link #toBytes()} will not be cached
+     * after calling this.
      */
     public JSONObject asJSON() {
-        return json;
+        // the caller may modify the json at any time
+        exposed = true;
+        encoded = null;
+        return json();
     }
     
     public void setEvent(String event) {
@@ -385,8 +546,9 @@ public class BusinessObjectMetadata {
     }
             
     public void put(String key, boolean value) {
+        encoded = null;
         try {
-            json.put(key, value);
+            json().put(key, value);
         }
         catch (Exception e) {
             throw new RuntimeException("Inconveivable");
@@ -396,9 +558,9 @@ public class BusinessObjectMetadata {
     
     /** @throws InvalidBusinessObjectMetadataException if the value is not booleanizable */
     public Boolean getBoolean(String key) throws InvalidBusinessObjectMetadataException {
-        if (json.has(key)) {                    
+        if (hasKey(key)) {                    
             try {
-                return json.getBoolean(key);            
+                return json().getBoolean(key);            
             }
             catch (JSONException e) {
                 throw new InvalidBusinessObjectMetadataException(e);
@@ -456,6 +618,9 @@ public class BusinessObjectMetadata {
      * it is to be assigned to a different businessobject instance 
      */
     public BusinessObjectMetadata clone() {
+        if (raw != null) {
+            return new BusinessObjectMetadata(raw.copy());
+        }
         JSONObject jsonClone = JSONUtils.clone(this.json);
         BusinessObjectMetadata clone = new BusinessObjectMetadata(jsonClone);
         return clone;        
@@ -463,7 +628,7 @@ public class BusinessObjectMetadata {
     
     /** Return JSONObject with field "size" derived from the business object */ 
     private JSONObject jsonObjectWithSize() {        
-        if (hasPayload()) {            
+        if (hasPayload() && obj != null) {
             JSONObject json = JSONUtils.clone(this.json);            
             json.put("size", obj.getPayload().length);                           
             return json;
@@ -483,31 +648,54 @@ public class BusinessObjectMetadata {
      */
     @Override
     public String toString() {
+        if (raw != null || encoded != null) {
+            return new String(toBytes(), StandardCharsets.UTF_8);
+        }
         JSONObject json = jsonObjectWithSize();                       
         return json.toString();        
     }
     
+    /**
+     * Compact json representation as UTF-8, as sent over the wire (without the null byte). 
+     * The returned array must not be modified: if nothing has been changed since parsing, it is 
+     * the very array originally parsed.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            if (raw != null) {
+                bytes = raw.encode(hasPayload() && obj != null ? obj.getPayload().length : null);
+            }
+            else {
+                bytes = jsonObjectWithSize().toString().getBytes(StandardCharsets.UTF_8);
+            }
+            if (!exposed) {
+                encoded = bytes;
+            }
+        }
+        return bytes;
+    }
     
-    public String toString(int indentFactor) {        
+    public String toString(int indentFactor) {
+        json();
         JSONObject json = jsonObjectWithSize();        
         return json.toString(indentFactor);                         
     }
 
     public String formatWithoutPayload() {
-        JSONObject jsonClone = JSONUtils.clone(this.json);
-        jsonClone.remove("size");
-        jsonClone.remove("type");
-        BusinessObjectMetadata clone = new BusinessObjectMetadata(jsonClone);
+        BusinessObjectMetadata clone = clone();
+        clone.remove("size");
+        clone.remove("type");
         return clone.toString();
         
     }
     
     public boolean hasKey(String key) {
-        return json.has(key);
+        return raw != null ? raw.has(key) : json.has(key);
     }
     
     public boolean isEvent() {
-        return json.has("event");
+        return hasKey("event");
     }
 
     public boolean hasNature(String nature) {
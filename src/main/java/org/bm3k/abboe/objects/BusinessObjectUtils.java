@@ -18,7 +18,7 @@ public class BusinessObjectUtils {
 	
 	private static final Logger log = LoggerFactory.getLogger(BusinessObjectUtils.class);
 	
-    private static final int MAX_METADATA_BYTES = 1_000_000; // Stetson-K_leronen: Let it be quite large
+    public static final int MAX_METADATA_BYTES = 1_000_000; // Stetson-K_leronen: Let it be quite large
     
     /**
      * @return null if no more business objects in stream.
@@ -80,7 +80,7 @@ public class BusinessObjectUtils {
             throw new InvalidBusinessObjectMetadataException("Too long metadata in business object (> " + MAX_METADATA_BYTES + " bytes)", e);
         }
 
-        BusinessObjectMetadata metadata = new BusinessObjectMetadata(metabytes);
+        BusinessObjectMetadata metadata = BusinessObjectMetadata.decode(metabytes);
         byte[] payload;
         if (metadata.hasPayload()) {
             int payloadSz = metadata.getSize();
@@ -105,7 +105,7 @@ public class BusinessObjectUtils {
         }
 
         byte[] metabytes = Arrays.copyOfRange(data, 0, i);
-        BusinessObjectMetadata metadata = new BusinessObjectMetadata(metabytes);
+        BusinessObjectMetadata metadata = BusinessObjectMetadata.decode(metabytes);
         byte[] payload;
         if (metadata.hasPayload()) {
             payload = Arrays.copyOfRange(data, i+1, data.length);
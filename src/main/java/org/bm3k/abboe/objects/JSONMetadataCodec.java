@@ -0,0 +1,43 @@
+package org.bm3k.abboe.objects;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bm3k.abboe.common.InvalidBusinessObjectMetadataException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** Metadata fully parsed into a {@link JSONObject} */
+class JSONMetadataCodec implements MetadataCodec {
+
+    @Override
+    public BusinessObjectMetadata decode(byte[] bytes) throws InvalidBusinessObjectMetadataException {
+        return parse(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public BusinessObjectMetadata decode(ByteBuffer bytes) throws InvalidBusinessObjectMetadataException {
+        String text;
+        if (bytes.hasArray()) {
+            text = new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+        }
+        else {
+            text = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+        }
+        return parse(text);
+    }
+
+    private static BusinessObjectMetadata parse(String text) throws InvalidBusinessObjectMetadataException {
+        try {
+            return new BusinessObjectMetadata(new JSONObject(text));
+        }
+        catch (JSONException e) {
+            // failure due to callers folly of providing invalid JSON text
+            throw new InvalidBusinessObjectMetadataException(e);
+        }
+    }
+
+    public String toString() {
+        return "json";
+    }
+}
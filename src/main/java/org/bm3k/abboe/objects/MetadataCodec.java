@@ -0,0 +1,43 @@
+package org.bm3k.abboe.objects;
+
+import java.nio.ByteBuffer;
+
+import org.bm3k.abboe.common.InvalidBusinessObjectMetadataException;
+
+/**
+ * Parses {@link BusinessObjectMetadata} from UTF-8 json. Encoding is done by the metadata itself
+ * (see {@link BusinessObjectMetadata#toBytes()}), as it depends on the representation chosen by the codec.
+ *
+ * The codec used by default is selected by system property abboe.metadata.codec, see
+ * {@link BusinessObjectMetadata#setCodec(MetadataCodec)}.
+ */
+public interface MetadataCodec {
+
+    /** Plain org.json; everything is parsed up front */
+    public static final MetadataCodec JSON = new JSONMetadataCodec();
+
+    /** Parse lazily, keeping the document as bytes; see {@link RawMetadata} */
+    public static final MetadataCodec STREAMING = new StreamingMetadataCodec();
+
+    /** @param bytes may be kept by reference, so must not be modified afterwards */
+    BusinessObjectMetadata decode(byte[] bytes) throws InvalidBusinessObjectMetadataException;
+
+    /** Decode bytes between position and limit of buffer; position of the buffer is not changed. */
+    BusinessObjectMetadata decode(ByteBuffer bytes) throws InvalidBusinessObjectMetadataException;
+
+    /**
+     * @param name "json" or "streaming"; null for {@link #STREAMING}
+     * @throws IllegalArgumentException for unknown names
+     */
+    public static MetadataCodec byName(String name) {
+        if (name == null || name.equals("streaming")) {
+            return STREAMING;
+        }
+        else if (name.equals("json")) {
+            return JSON;
+        }
+        else {
+            throw new IllegalArgumentException("No such metadata codec: " + name);
+        }
+    }
+}
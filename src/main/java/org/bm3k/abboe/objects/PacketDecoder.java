@@ -0,0 +1,317 @@
+package org.bm3k.abboe.objects;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+import org.bm3k.abboe.common.InvalidBusinessObjectException;
+import org.bm3k.abboe.common.InvalidBusinessObjectMetadataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resumable decoder for the ABBOE wire format (UTF-8 json metadata, null byte, payload of "size" bytes),
+ * working on a {@link ByteBuffer} (heap or direct) that is filled by the caller with whatever amount of bytes
+ * happens to be available. Unlike {@link BusinessObjectUtils#readPacket(java.io.InputStream)}, never blocks
+ * and never copies: metadata and payload of a decoded {@link Packet} are slices of the receive buffer.
+ *
+ * Typical usage:
+ * <pre>
+ *   buf = decoder.prepareForReading(buf);    // compact, grow if needed; write mode
+ *   channel.read(buf);                       // or is.read(buf.array(), ...)
+ *   buf.flip();
+ *   while ((packet = decoder.next(buf)) != null) {
+ *       ...
+ *   }
+ * </pre>
+ *
+ * Slices handed out are only valid until the buffer is next modified (i.e. next call to
+ * {@link #prepareForReading(ByteBuffer)}).
+ *
+ * Payloads larger than the streaming threshold (see {@link #setStreamingThreshold(int)}) need not be
+ * buffered whole: for those, next() first returns a packet with only the metadata ({@link Packet#isPayloadPending()}),
+ * and the caller decides whether to have the payload buffered as usual ({@link #bufferPayload()}), or to consume
+ * it chunk by chunk as it arrives ({@link #streamPayload()}, {@link #nextPayloadChunk(ByteBuffer)}).
+ *
+ * Produces the same exceptions as readPacket on invalid input. Not thread-safe; a decoder is intended
+ * to be used for a single stream by a single thread at a time.
+ */
+public class PacketDecoder {
+    private static final Logger log = LoggerFactory.getLogger(PacketDecoder.class);
+
+    public static final int DEFAULT_INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /** Do not keep larger buffers than this around after a big packet has been consumed */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /** Number of bytes after position of the buffer already known not to contain the null byte */
+    private int scanned;
+
+    /** Metadata of a packet whose payload has not yet been completely received */
+    private BusinessObjectMetadata pendingMetadata;
+    private ByteBuffer pendingMetadataBytes;
+
+    /** Payloads larger than this are offered for streaming */
+    private int streamingThreshold = Integer.MAX_VALUE;
+    /** A packet with payload pending has been returned, and caller has not yet decided what to do with the payload */
+    private boolean awaitingDecision;
+    /** Bytes of the payload being streamed not yet handed out by {@link #nextPayloadChunk(ByteBuffer)} */
+    private int streamingRemaining;
+
+    private final int initialBufferSize;
+
+    public PacketDecoder() {
+        this(DEFAULT_INITIAL_BUFFER_SIZE);
+    }
+
+    public PacketDecoder(int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
+    }
+
+    /** A new heap buffer, in read mode and initially empty, suitable for passing to {@link #prepareForReading(ByteBuffer)} */
+    public ByteBuffer allocateBuffer() {
+        ByteBuffer buf = ByteBuffer.allocate(initialBufferSize);
+        buf.flip();
+        return buf;
+    }
+
+    /** Payloads larger than this many bytes are offered for streaming; by default, nothing is */
+    public void setStreamingThreshold(int bytes) {
+        this.streamingThreshold = bytes;
+    }
+
+    /**
+     * Decode next packet from buf (in read mode), advancing its position past the packet.
+     * For packets with payload larger than the streaming threshold, only metadata is returned at this
+     * point; caller must then call either {@link #bufferPayload()} or {@link #streamPayload()}.
+     *
+     * @return null if there is not enough data in buffer to complete a packet; in this case,
+     * the bytes of the partial packet that has not been consumed are left in the buffer.
+     * @throws InvalidBusinessObjectException when packet is not correctly formatted
+     * @throws InvalidBusinessObjectMetadataException JSON metadata is not correctly formatted json, or is too long
+     */
+    public Packet next(ByteBuffer buf) throws InvalidBusinessObjectException {
+        if (awaitingDecision || streamingRemaining > 0) {
+            throw new IllegalStateException("Payload of previous packet not consumed");
+        }
+        if (pendingMetadata == null) {
+            int start = buf.position();
+            int nullPos = indexOfNull(buf, start + scanned, buf.limit());
+            if (nullPos < 0) {
+                scanned = buf.remaining();
+                if (scanned > BusinessObjectUtils.MAX_METADATA_BYTES) {
+                    throw new InvalidBusinessObjectMetadataException("Too long metadata in business object (> " + BusinessObjectUtils.MAX_METADATA_BYTES + " bytes)");
+                }
+                return null;
+            }
+
+            scanned = 0;
+            ByteBuffer metabytes = slice(buf, start, nullPos - start);
+            buf.position(nullPos + 1);
+            BusinessObjectMetadata metadata = BusinessObjectMetadata.decode(metabytes);
+            if (!metadata.hasPayload()) {
+                return new Packet(metabytes, metadata, null);
+            }
+            pendingMetadata = metadata;
+            pendingMetadataBytes = metabytes;
+            if (metadata.getSize() > streamingThreshold) {
+                awaitingDecision = true;
+                return new Packet(metabytes, metadata, null);
+            }
+        }
+
+        int size = pendingMetadata.getSize();
+        if (buf.remaining() < size) {
+            return null;
+        }
+
+        ByteBuffer payload = slice(buf, buf.position(), size);
+        buf.position(buf.position() + size);
+        Packet packet = new Packet(pendingMetadataBytes, pendingMetadata, payload);
+        pendingMetadata = null;
+        pendingMetadataBytes = null;
+        return packet;
+    }
+
+    /** Payload of the packet just returned is to be buffered; it will be returned as usual by a later call to next() */
+    public void bufferPayload() {
+        checkAwaitingDecision();
+        awaitingDecision = false;
+    }
+
+    /** 
+     * Payload of the packet just returned is to be streamed: call {@link #nextPayloadChunk(ByteBuffer)} instead of
+     * next() as long as {@link #isStreamingPayload()}.
+     */
+    public void streamPayload() {
+        checkAwaitingDecision();
+        awaitingDecision = false;
+        streamingRemaining = pendingMetadata.getSize();
+        pendingMetadata = null;
+        pendingMetadataBytes = null;
+    }
+
+    private void checkAwaitingDecision() {
+        if (!awaitingDecision) {
+            throw new IllegalStateException("No packet with payload pending");
+        }
+    }
+
+    /** Some of the payload being streamed has not yet been handed out */
+    public boolean isStreamingPayload() {
+        return streamingRemaining > 0;
+    }
+
+    /**
+     * Next bytes of the payload being streamed, as a slice of buf (valid until the buffer is modified),
+     * advancing position of buf accordingly.
+     *
+     * @return null if buf has no bytes of the payload
+     */
+    public ByteBuffer nextPayloadChunk(ByteBuffer buf) {
+        int n = Math.min(streamingRemaining, buf.remaining());
+        if (n == 0) {
+            return null;
+        }
+        ByteBuffer chunk = slice(buf, buf.position(), n);
+        buf.position(buf.position() + n);
+        streamingRemaining -= n;
+        return chunk;
+    }
+
+    /**
+     * Make room for reading more bytes into buf, which is in read mode: unconsumed bytes are moved to
+     * the beginning, and a larger buffer is allocated if the remainder of the current packet would not
+     * fit otherwise.
+     *
+     * @return the buffer to read into, in write mode; may or may not be the same buffer as passed in.
+     */
+    public ByteBuffer prepareForReading(ByteBuffer buf) {
+        int remaining = buf.remaining();
+        int required;
+        if (pendingMetadata != null && !awaitingDecision) {
+            // metadata has already been consumed
+            required = pendingMetadata.getSize();
+        }
+        else if (remaining == buf.capacity()) {
+            // a full buffer of metadata without a null byte
+            required = buf.capacity() * 2;
+        }
+        else {
+            required = 0;
+        }
+
+        if (required > buf.capacity()
+                || (remaining == 0 && buf.capacity() > MAX_RETAINED_BUFFER_SIZE && initialBufferSize < buf.capacity())) {
+            int capacity = Math.max(required, Math.max(initialBufferSize, remaining));
+            ByteBuffer newBuf = buf.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            newBuf.order(buf.order());
+            newBuf.put(buf);
+            return newBuf;
+        }
+
+        buf.compact();
+        return buf;
+    }
+
+    /**
+     * Check that end of stream is acceptable at this point, that is, buf (in read mode) contains no partial packet.
+     * @throws EOFException when the stream ends in the middle of a payload.
+     * @throws InvalidBusinessObjectException when the stream ends in the middle of metadata.
+     */
+    public void endOfStream(ByteBuffer buf) throws EOFException, InvalidBusinessObjectException {
+        if (streamingRemaining > 0) {
+            throw new EOFException("End of stream reached while streaming payload (" + streamingRemaining + " bytes missing)");
+        }
+        else if (pendingMetadata != null) {
+            throw new EOFException("End of stream reached while reading payload (expected " + pendingMetadata.getSize() + " bytes, got " + buf.remaining() + ")");
+        }
+        else if (buf.hasRemaining()) {
+            throw new InvalidBusinessObjectException("End of stream reached before reading first null byte");
+        }
+    }
+
+    /**
+     * Index of first null byte in buf between from (inclusive) and to (exclusive), or -1 if none.
+     * Examines 8 bytes at a time, only falling back to single bytes for a word known to contain a null.
+     */
+    static int indexOfNull(ByteBuffer buf, int from, int to) {
+        int i = from;
+        while (i + 8 <= to) {
+            long word = buf.getLong(i);
+            if (((word - ONES) & ~word & HIGHS) != 0) {
+                break;
+            }
+            i += 8;
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int start, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(start + length);
+        dup.position(start);
+        return dup.slice();
+    }
+
+    /** A single decoded packet. Payload is null if there is no payload, or it is still pending. */
+    public static class Packet {
+        private final ByteBuffer metadataBytes;
+        private final BusinessObjectMetadata metadata;
+        private final ByteBuffer payload;
+
+        private Packet(ByteBuffer metadataBytes, BusinessObjectMetadata metadata, ByteBuffer payload) {
+            this.metadataBytes = metadataBytes;
+            this.metadata = metadata;
+            this.payload = payload;
+        }
+
+        /** Raw UTF-8 json, excluding the null byte. Only valid until receive buffer is modified. */
+        public ByteBuffer getMetadataBytes() {
+            return metadataBytes;
+        }
+
+        public BusinessObjectMetadata getMetadata() {
+            return metadata;
+        }
+
+        /** Only valid until receive buffer is modified. */
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+
+        /** Payload is larger than the streaming threshold, and has not been received yet */
+        public boolean isPayloadPending() {
+            return payload == null && metadata.hasPayload();
+        }
+
+        /**
+         * Make a business object, copying the payload out of the receive buffer. As with
+         * {@link org.bm3k.abboe.common.BusinessObjectReader}, payload with an unknown type is discarded.
+         */
+        public BusinessObject toBusinessObject() {
+            byte[] payloadBytes = null;
+            if (payload != null) {
+                if (metadata.getOfficialType() != null) {
+                    payloadBytes = new byte[payload.remaining()];
+                    payload.duplicate().get(payloadBytes);
+                }
+                else {
+                    log.warn("Cannot process payload. Metadata: "+metadata);
+                }
+            }
+
+            return BOB.newBuilder()
+                .metadata(metadata)
+                .payload(payloadBytes)
+                .build();
+        }
+    }
+}
@@ -0,0 +1,636 @@
+package org.bm3k.abboe.objects;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * Metadata kept as the UTF-8 json it was received as. Only the boundaries of the top-level members are
+ * located when parsing; values are decoded on demand, one member at a time, and only if they are strings,
+ * integers or arrays of strings, which covers everything needed for routing (event, type, natures, route,
+ * to, size). Members can be replaced, added and removed with values of those same kinds; everything else
+ * needs the full org.json representation (see {@link BusinessObjectMetadata}).
+ *
+ * Members that have not been replaced are re-emitted verbatim, and a document with no changes at all is
+ * re-emitted as the very same bytes.
+ *
+ * Parsing accepts only strict json; anything else (org.json is quite lenient) is left for org.json to
+ * accept or reject, so that behavior for odd documents is the same as without this class.
+ */
+final class RawMetadata {
+
+    /** Value of a member that exists, but cannot be represented here (null, double, boolean, object, ...) */
+    static final Object UNSUPPORTED = new Object();
+
+    private static final Object REMOVED = new Object();
+
+    /** Nesting deeper than this is left for org.json */
+    private static final int MAX_DEPTH = 64;
+
+    /** The document; never modified */
+    private final byte[] bytes;
+    /** For each member: start and end of key (without quotes), start and end of value */
+    private final int[] spans;
+    private final int nMembers;
+    /** Decoded values of members, by member index; null if not decoded yet */
+    private final Object[] decoded;
+
+    /** Replaced, added and removed members */
+    private String[] overrideKeys;
+    private Object[] overrideValues;
+    private int nOverrides;
+
+    private Set<String> natures;
+
+    private RawMetadata(byte[] bytes, int[] spans, int nMembers) {
+        this.bytes = bytes;
+        this.spans = spans;
+        this.nMembers = nMembers;
+        this.decoded = new Object[nMembers];
+    }
+
+    private RawMetadata(RawMetadata o) {
+        this.bytes = o.bytes;
+        this.spans = o.spans;
+        this.nMembers = o.nMembers;
+        this.decoded = o.decoded.clone();
+        if (o.nOverrides > 0) {
+            this.overrideKeys = o.overrideKeys.clone();
+            this.overrideValues = o.overrideValues.clone();
+            this.nOverrides = o.nOverrides;
+        }
+        this.natures = o.natures;
+    }
+
+    RawMetadata copy() {
+        return new RawMetadata(this);
+    }
+
+    /**
+     * @param bytes UTF-8 json; kept by reference, so must not be modified afterwards.
+     * @return null if bytes are not a strict json object
+     */
+    static RawMetadata parse(byte[] bytes) {
+        int len = bytes.length;
+        int[] spans = new int[32];
+        int n = 0;
+        int i = skipWhitespace(bytes, 0);
+        if (i >= len || bytes[i] != '{') {
+            return null;
+        }
+        i = skipWhitespace(bytes, i + 1);
+        if (i < len && bytes[i] == '}') {
+            i++;
+        }
+        else {
+            while (true) {
+                if (i >= len || bytes[i] != '"') {
+                    return null;
+                }
+                int keyStart = i + 1;
+                i = skipString(bytes, i);
+                if (i < 0) {
+                    return null;
+                }
+                int keyEnd = i - 1;
+                for (int k = keyStart; k < keyEnd; k++) {
+                    if (bytes[k] == '\\') {
+                        // escaped keys are not worth the trouble
+                        return null;
+                    }
+                }
+                i = skipWhitespace(bytes, i);
+                if (i >= len || bytes[i] != ':') {
+                    return null;
+                }
+                int valueStart = skipWhitespace(bytes, i + 1);
+                i = skipValue(bytes, valueStart, 0);
+                if (i < 0) {
+                    return null;
+                }
+                if (4 * n + 4 > spans.length) {
+                    spans = Arrays.copyOf(spans, spans.length * 2);
+                }
+                spans[4 * n] = keyStart;
+                spans[4 * n + 1] = keyEnd;
+                spans[4 * n + 2] = valueStart;
+                spans[4 * n + 3] = i;
+                n++;
+                i = skipWhitespace(bytes, i);
+                if (i >= len) {
+                    return null;
+                }
+                if (bytes[i] == ',') {
+                    i = skipWhitespace(bytes, i + 1);
+                }
+                else if (bytes[i] == '}') {
+                    i++;
+                    break;
+                }
+                else {
+                    return null;
+                }
+            }
+        }
+        if (skipWhitespace(bytes, i) != len) {
+            return null;
+        }
+
+        // org.json rejects duplicate keys; let it do so
+        for (int a = 0; a < n; a++) {
+            for (int b = a + 1; b < n; b++) {
+                if (regionEquals(bytes, spans[4 * a], spans[4 * a + 1], spans[4 * b], spans[4 * b + 1])) {
+                    return null;
+                }
+            }
+        }
+        return new RawMetadata(bytes, spans, n);
+    }
+
+    /**
+     * @return null if there is no such member, {@link #UNSUPPORTED} if the value is not a String,
+     * Integer or an (unmodifiable) List of Strings.
+     */
+    Object value(String key) {
+        int o = overrideIndex(key);
+        if (o >= 0) {
+            Object v = overrideValues[o];
+            return v == REMOVED ? null : v;
+        }
+        int m = memberIndex(key);
+        if (m < 0) {
+            return null;
+        }
+        Object v = decoded[m];
+        if (v == null) {
+            v = decodeValue(bytes, spans[4 * m + 2], spans[4 * m + 3]);
+            decoded[m] = v;
+        }
+        return v;
+    }
+
+    boolean has(String key) {
+        int o = overrideIndex(key);
+        if (o >= 0) {
+            return overrideValues[o] != REMOVED;
+        }
+        return memberIndex(key) >= 0;
+    }
+
+    /**
+     * Natures as in {@link BusinessObjectMetadata#getNatures()}, that is, array "nature", or if there is no such array,
+     * array "natures". The returned set is unmodifiable.
+     * @return null if natures cannot be represented here
+     */
+    Set<String> natures() {
+        if (natures == null) {
+            Object v = value("nature");
+            if (!(v instanceof List)) {
+                if (v == UNSUPPORTED) {
+                    return null;
+                }
+                v = value("natures");
+            }
+            if (v instanceof List) {
+                @SuppressWarnings("unchecked")
+                List<String> list = (List<String>)v;
+                natures = Collections.unmodifiableSet(new LinkedHashSet<String>(list));
+            }
+            else if (v == UNSUPPORTED) {
+                return null;
+            }
+            else {
+                natures = Collections.emptySet();
+            }
+        }
+        return natures;
+    }
+
+    /** @param value a String, Integer or List of Strings */
+    void put(String key, Object value) {
+        if (value instanceof List) {
+            value = Collections.unmodifiableList(new ArrayList<Object>((List<?>)value));
+        }
+        override(key, value);
+    }
+
+    void remove(String key) {
+        override(key, REMOVED);
+    }
+
+    private void override(String key, Object value) {
+        if (key.equals("nature") || key.equals("natures")) {
+            natures = null;
+        }
+        int o = overrideIndex(key);
+        if (o < 0) {
+            int m = memberIndex(key);
+            if (m >= 0 ? value.equals(value(key)) : value == REMOVED) {
+                // no change
+                return;
+            }
+            if (overrideKeys == null) {
+                overrideKeys = new String[4];
+                overrideValues = new Object[4];
+            }
+            else if (nOverrides == overrideKeys.length) {
+                overrideKeys = Arrays.copyOf(overrideKeys, nOverrides * 2);
+                overrideValues = Arrays.copyOf(overrideValues, nOverrides * 2);
+            }
+            overrideKeys[nOverrides] = key;
+            overrideValues[nOverrides] = value;
+            nOverrides++;
+        }
+        else {
+            overrideValues[o] = value;
+        }
+    }
+
+    /**
+     * @param size value for member "size", or null to keep whatever there is.
+     * @return the document as UTF-8 json. Not to be modified, as this is the original array if there
+     * are no changes.
+     */
+    byte[] encode(Integer size) {
+        if (size != null && !size.equals(value("size"))) {
+            RawMetadata copy = copy();
+            copy.put("size", size);
+            return copy.encode(null);
+        }
+        if (nOverrides == 0) {
+            return bytes;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 64);
+        boolean[] written = new boolean[nOverrides];
+        boolean first = true;
+        out.write('{');
+        for (int m = 0; m < nMembers; m++) {
+            int keyStart = spans[4 * m], keyEnd = spans[4 * m + 1];
+            int o = overrideIndex(keyStart, keyEnd);
+            if (o >= 0) {
+                written[o] = true;
+                if (overrideValues[o] == REMOVED) {
+                    continue;
+                }
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (o < 0) {
+                out.write(bytes, keyStart - 1, spans[4 * m + 3] - keyStart + 1);
+            }
+            else {
+                out.write(bytes, keyStart - 1, keyEnd - keyStart + 2);
+                out.write(':');
+                writeValue(out, overrideValues[o]);
+            }
+        }
+        for (int o = 0; o < nOverrides; o++) {
+            if (!written[o] && overrideValues[o] != REMOVED) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeUTF8(out, JSONObject.quote(overrideKeys[o]));
+                out.write(':');
+                writeValue(out, overrideValues[o]);
+            }
+        }
+        out.write('}');
+        return out.toByteArray();
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value instanceof String) {
+            writeUTF8(out, JSONObject.quote((String)value));
+        }
+        else if (value instanceof Integer) {
+            writeUTF8(out, value.toString());
+        }
+        else {
+            out.write('[');
+            boolean first = true;
+            for (Object s: (List<?>)value) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeUTF8(out, JSONObject.quote((String)s));
+            }
+            out.write(']');
+        }
+    }
+
+    private static void writeUTF8(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.write(b, 0, b.length);
+    }
+
+    private int overrideIndex(String key) {
+        for (int o = 0; o < nOverrides; o++) {
+            if (overrideKeys[o].equals(key)) {
+                return o;
+            }
+        }
+        return -1;
+    }
+
+    private int overrideIndex(int keyStart, int keyEnd) {
+        for (int o = 0; o < nOverrides; o++) {
+            if (keyEquals(bytes, keyStart, keyEnd, overrideKeys[o])) {
+                return o;
+            }
+        }
+        return -1;
+    }
+
+    private int memberIndex(String key) {
+        for (int m = 0; m < nMembers; m++) {
+            if (keyEquals(bytes, spans[4 * m], spans[4 * m + 1], key)) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean keyEquals(byte[] bytes, int start, int end, String key) {
+        int n = key.length();
+        if (end - start < n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                // rare; compare as strings
+                return new String(bytes, start, end - start, StandardCharsets.UTF_8).equals(key);
+            }
+            if (bytes[start + i] != c) {
+                return false;
+            }
+        }
+        return end - start == n;
+    }
+
+    private static boolean regionEquals(byte[] bytes, int s1, int e1, int s2, int e2) {
+        if (e1 - s1 != e2 - s2) {
+            return false;
+        }
+        for (int i = 0; i < e1 - s1; i++) {
+            if (bytes[s1 + i] != bytes[s2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] b, int i) {
+        while (i < b.length && (b[i] == ' ' || b[i] == '\t' || b[i] == '\n' || b[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    /** @return index after the closing quote, or -1 if not a valid string */
+    private static int skipString(byte[] b, int i) {
+        i++;
+        while (i < b.length) {
+            byte c = b[i];
+            if (c == '"') {
+                return i + 1;
+            }
+            else if (c == '\\') {
+                if (i + 1 >= b.length) {
+                    return -1;
+                }
+                switch (b[i + 1]) {
+                    case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                        i += 2;
+                        break;
+                    case 'u':
+                        if (i + 5 >= b.length) {
+                            return -1;
+                        }
+                        for (int k = i + 2; k < i + 6; k++) {
+                            if (Character.digit(b[k], 16) < 0) {
+                                return -1;
+                            }
+                        }
+                        i += 6;
+                        break;
+                    default:
+                        return -1;
+                }
+            }
+            else if (c == 0 || c == '\n' || c == '\r') {
+                return -1;
+            }
+            else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /** @return index after value, or -1 if not a valid value */
+    private static int skipValue(byte[] b, int i, int depth) {
+        if (i >= b.length || depth > MAX_DEPTH) {
+            return -1;
+        }
+        switch (b[i]) {
+            case '"':
+                return skipString(b, i);
+            case '{':
+            case '[': {
+                boolean object = b[i] == '{';
+                byte close = object ? (byte)'}' : (byte)']';
+                i = skipWhitespace(b, i + 1);
+                if (i < b.length && b[i] == close) {
+                    return i + 1;
+                }
+                while (true) {
+                    if (object) {
+                        if (i >= b.length || b[i] != '"') {
+                            return -1;
+                        }
+                        i = skipString(b, i);
+                        if (i < 0) {
+                            return -1;
+                        }
+                        i = skipWhitespace(b, i);
+                        if (i >= b.length || b[i] != ':') {
+                            return -1;
+                        }
+                        i = skipWhitespace(b, i + 1);
+                    }
+                    i = skipValue(b, i, depth + 1);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    i = skipWhitespace(b, i);
+                    if (i >= b.length) {
+                        return -1;
+                    }
+                    if (b[i] == close) {
+                        return i + 1;
+                    }
+                    if (b[i] != ',') {
+                        return -1;
+                    }
+                    i = skipWhitespace(b, i + 1);
+                }
+            }
+            case 't':
+                return skipLiteral(b, i, "true");
+            case 'f':
+                return skipLiteral(b, i, "false");
+            case 'n':
+                return skipLiteral(b, i, "null");
+            default:
+                return skipNumber(b, i);
+        }
+    }
+
+    private static int skipLiteral(byte[] b, int i, String literal) {
+        if (i + literal.length() > b.length) {
+            return -1;
+        }
+        for (int k = 0; k < literal.length(); k++) {
+            if (b[i + k] != literal.charAt(k)) {
+                return -1;
+            }
+        }
+        return i + literal.length();
+    }
+
+    /** Strict json number: -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)? */
+    private static int skipNumber(byte[] b, int i) {
+        if (i < b.length && b[i] == '-') {
+            i++;
+        }
+        if (i >= b.length || !isDigit(b[i])) {
+            return -1;
+        }
+        if (b[i] == '0') {
+            i++;
+        }
+        else {
+            i = skipDigits(b, i);
+        }
+        if (i < b.length && b[i] == '.') {
+            int start = i + 1;
+            i = skipDigits(b, start);
+            if (i == start) {
+                return -1;
+            }
+        }
+        if (i < b.length && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            if (i < b.length && (b[i] == '+' || b[i] == '-')) {
+                i++;
+            }
+            int start = i;
+            i = skipDigits(b, start);
+            if (i == start) {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    private static int skipDigits(byte[] b, int i) {
+        while (i < b.length && isDigit(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** Value between start and end, which has already been validated by {@link #skipValue} */
+    private static Object decodeValue(byte[] b, int start, int end) {
+        switch (b[start]) {
+            case '"':
+                return decodeString(b, start, end);
+            case '[': {
+                List<String> list = new ArrayList<String>();
+                int i = skipWhitespace(b, start + 1);
+                while (b[i] != ']') {
+                    if (b[i] != '"') {
+                        return UNSUPPORTED;
+                    }
+                    int stringEnd = skipString(b, i);
+                    list.add(decodeString(b, i, stringEnd));
+                    i = skipWhitespace(b, stringEnd);
+                    if (b[i] == ',') {
+                        i = skipWhitespace(b, i + 1);
+                    }
+                }
+                return Collections.unmodifiableList(list);
+            }
+            case '-':
+                // leave even "-0" for org.json to interpret
+                return UNSUPPORTED;
+            default:
+                if (!isDigit(b[start]) || end - start > 9 || skipDigits(b, start) != end) {
+                    // a fraction, or possibly out of range of an int; those are the business of org.json
+                    return UNSUPPORTED;
+                }
+                int value = 0;
+                for (int i = start; i < end; i++) {
+                    value = value * 10 + (b[i] - '0');
+                }
+                return value;
+        }
+    }
+
+    /** @param start index of opening quote; @param end index after closing quote */
+    private static String decodeString(byte[] b, int start, int end) {
+        int i = start + 1;
+        int last = end - 1;
+        int escape = i;
+        while (escape < last && b[escape] != '\\') {
+            escape++;
+        }
+        if (escape == last) {
+            return new String(b, i, last - i, StandardCharsets.UTF_8);
+        }
+
+        StringBuilder sb = new StringBuilder(last - i);
+        while (i < last) {
+            if (b[i] != '\\') {
+                int segmentStart = i;
+                while (i < last && b[i] != '\\') {
+                    i++;
+                }
+                sb.append(new String(b, segmentStart, i - segmentStart, StandardCharsets.UTF_8));
+                continue;
+            }
+            byte c = b[i + 1];
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char)Integer.parseInt(new String(b, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default: sb.append((char)c);
+            }
+            i += 2;
+        }
+        return sb.toString();
+    }
+}
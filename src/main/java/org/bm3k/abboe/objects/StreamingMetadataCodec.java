@@ -0,0 +1,32 @@
+package org.bm3k.abboe.objects;
+
+import java.nio.ByteBuffer;
+
+import org.bm3k.abboe.common.InvalidBusinessObjectMetadataException;
+
+/**
+ * Metadata parsed directly from the UTF-8 bytes, lazily; see {@link RawMetadata}. Documents that are not
+ * strict json are left for {@link JSONMetadataCodec}.
+ */
+class StreamingMetadataCodec implements MetadataCodec {
+
+    @Override
+    public BusinessObjectMetadata decode(byte[] bytes) throws InvalidBusinessObjectMetadataException {
+        RawMetadata raw = RawMetadata.parse(bytes);
+        if (raw == null) {
+            return JSON.decode(bytes);
+        }
+        return new BusinessObjectMetadata(raw);
+    }
+
+    @Override
+    public BusinessObjectMetadata decode(ByteBuffer bytes) throws InvalidBusinessObjectMetadataException {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return decode(copy);
+    }
+
+    public String toString() {
+        return "streaming";
+    }
+}
@@ -9,6 +9,7 @@ import java.net.URL;
 import java.util.*;
 
 import org.bm3k.abboe.common.BusinessMediaType;
+import org.bm3k.abboe.common.ThreadMode;
 import org.bm3k.abboe.objects.BusinessObjectMetadata;
 import org.bm3k.abboe.objects.BOB;
 import org.bm3k.abboe.objects.BusinessObject;
@@ -37,6 +38,8 @@ public class ContentVaultProxy {
     private List<String> urls; 
     private Map<String, BusinessObject> loadedImagesByURL = new TreeMap<>();
     private List<ContentVaultListener> listeners = new ArrayList<>();
+    /** For the loader thread */
+    private final ThreadMode threadMode;
     
     /**
      * Create and uninitialized vault proxy with no images. Do not start loading images yet
@@ -44,6 +47,11 @@ public class ContentVaultProxy {
      *
      */
     public ContentVaultProxy() {        
+        this(ThreadMode.PLATFORM);
+    }
+    
+    public ContentVaultProxy(ThreadMode threadMode) {
+        this.threadMode = threadMode;
         state = State.UNINITIALIZED;
     }
         
@@ -69,7 +77,7 @@ public class ContentVaultProxy {
      */
     public void startLoading() {
     	log.info("startloading");
-        new Thread(new Loader()).start();        
+        threadMode.start("contentvaultloader", new Loader());
     }
     
     /**
@@ -3,23 +3,30 @@ package org.bm3k.abboe.server;
 import static org.bm3k.abboe.objects.BusinessObjectEventType.*;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.bm3k.abboe.common.*;
 import org.bm3k.abboe.objects.BOB;
 import org.bm3k.abboe.objects.BusinessObject;
 import org.bm3k.abboe.objects.BusinessObjectEventType;
 import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.bm3k.abboe.objects.MetadataCodec;
 import org.bm3k.abboe.senders.ContentVaultProxy;
 import org.bm3k.abboe.senders.ContentVaultProxy.InvalidStateException;
 import org.bm3k.abboe.server.PeerManager.DuplicatePeerException;
@@ -37,8 +44,10 @@ import util.StringUtils;
  * Reads business objects from each neighbor, broadcasting back everything it reads
  * to all neighbors.
  *
- * Two dedicated threads will created for each neighbor, one for sending and one for reading {@link
- * org.bm3k.abboe.objects.BusinessObject}s.
+ * With the classic transport, two dedicated threads will created for each neighbor, one for sending and one for reading {@link
+ * org.bm3k.abboe.objects.BusinessObject}s. With the nio transport (command line option "-transport nio"), all neighbors
+ * are instead multiplexed over a small fixed pool of selector threads (see {@link NioSelectorPool}).
+ * Routing and the lifecycle of neighbors are the same for both.
  *
  * Once a neighbor closes its sockets outputstream (the inputstream of the server's socket),
  * the server stops sending to that neighbor and closes the socket.
@@ -51,7 +60,72 @@ public class ABBOEServer {
     
     public static final DateFormat DEFAULT_DATE_FORMAT = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
 
+    /** Resolution of {@link #timer}; one round of the wheel covers 51.2 seconds */
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    /** Of the stats stream, unless requested otherwise */
+    private static final int DEFAULT_STATS_INTERVAL_SEC = 10;
+
+    /** Null for transports with a {@link #neighborAcceptor} */
     private ServerSocket serverSocket; 
+    /** Only for the nio transport; {@link #serverSocket} is the socket of this channel */
+    private ServerSocketChannel serverSocketChannel;
+    private NioSelectorPool nioSelectorPool;
+    /** Only for transports from separate modules, which accept neighbors by themselves */
+    private NeighborAcceptor neighborAcceptor;
+    private final TransportMode transportMode;
+    /** For all threads doing blocking work: readers and senders of the classic transport, peer connectors, timers */
+    final ThreadMode threadMode;
+    /** For all delays: subscription deadlines, delayed closes, peer reconnect backoff */
+    final WheelTimer timer;
+    /** Totals of the traffic counters of all neighbors, including those already gone */
+    final TrafficStats stats = new TrafficStats(null);
+    /** 
+     * Latencies of the stages of forwarding: from an object having been read to the start of routing it, 
+     * from there to the object having been queued for each destination, and from there to it having been 
+     * taken out of the queue for writing.
+     */
+    final LatencyHistogram readToForward = new LatencyHistogram();
+    final LatencyHistogram forwardToEnqueue = new LatencyHistogram();
+    final LatencyHistogram enqueueToWrite = new LatencyHistogram();
+    /** Time since the previous server stamped an object into its "hops", by the clock of this server */
+    final LatencyHistogram hopLatency = new LatencyHistogram();
+    /** Append routing id and time to "hops" of each object forwarded */
+    private final boolean hopTimestamps;
+    /** Ping neighbors silent for this many seconds (0 for never), evicting them after pingMisses unanswered pings */
+    final int pingInterval;
+    final int pingMisses;
+    /** Evict also neighbors that have never answered a ping; see {@link PingTracker} */
+    final boolean evictUnanswering;
+    /** Microseconds small objects may wait to be written out together with more; see {@link SocketTransport} */
+    final int flushDelay;
+    /** Forces shutdown if neighbors fail to close in time; null until shutdown initiated */
+    private WheelTimer.Timeout shutdownTimeout;
+    /** Starts accepting clients if peers take too long to contact; null if none */
+    private WheelTimer.Timeout startupDeadline;
+    private final long createdAt = System.nanoTime();
+    /** From construction to accepting clients; -1 until then */
+    private volatile long timeToReadyMs = -1;
+    /** 
+     * Exclude the routing id of each destination from the route sent to it, as expected by legacy neighbors.
+     * Disabled by flag -no-legacy-routes, in which case an object is encoded only once for all destinations. 
+     */
+    private final boolean legacyRoutes;
+    /** Bounds of the send queue of each neighbor */
+    final int sendQueueObjects;
+    final long sendQueueBytes;
+    /** Default for neighbors not specifying their own */
+    final OverloadPolicy overloadPolicy;
+    /** Objects with larger payloads are forwarded cut-through; Integer.MAX_VALUE for never */
+    final int streamingThreshold;
+    /** Null if large payloads are kept on the heap while queued */
+    private final PayloadStore payloadStore;
+    /** Null if forwarded content is not logged (and cannot thus be replayed) */
+    final ObjectLog objectLog;
+    /** Null if no recent objects are kept for new clients */
+    private final RecentObjectCache recentObjects;
+    /** Null if duplicates are only avoided by route */
+    private final SeenObjectFilter seenObjects;
     String serverRoutingId;
     private ServerAddress serverAddress;    
 
@@ -59,22 +133,25 @@ public class ABBOEServer {
     
     Biomine3000Args args;
     
-    /** For sending welcome images */
+    /** For sending welcome images; null if constructed without listening */
     private ContentVaultProxy contentVaultProxy;
 
-    /** all access to this neighbor list should be synchronized on the ABBOEServer instance */
-    List<NeighborConnection> neighbors;
-
+    /** 
+     * Reading needs no locking. Adding and removing neighbors should additionally be synchronized on the ABBOEServer 
+     * instance, to coordinate with the shutdown sequence.
+     */
+    final NeighborTable neighbors = new NeighborTable();
+    
     /** Shortcuts for neighbors, to be used for interactive server management only */
     private Map<Integer, NeighborConnection> neighborShortcuts;
     
     private State state;    
 
     /** Generates a map (small int) => (neighbor) for later reference. */
-    private synchronized Map<Integer, NeighborConnection> neighborShortcuts() {
+    private Map<Integer, NeighborConnection> neighborShortcuts() {
         Map<Integer, NeighborConnection> map = new HashMap<Integer, NeighborConnection>();
         int i=0;
-        for (NeighborConnection neighbor: neighbors) {
+        for (NeighborConnection neighbor: neighbors.list()) {
             map.put(++i, neighbor);
         }
         return map;
@@ -91,6 +168,14 @@ public class ABBOEServer {
      * 
      */
     public ABBOEServer(Biomine3000Args args, ServerAddress address, Collection<ServerAddress> peerAddresses) throws IOException {
+        this(args, address, peerAddresses, true);
+    }
+
+    /**
+     * @param listen false to neither open the server socket nor load the content vault, leaving just the routing
+     *        of objects between neighbors added by hand (for benchmarks).
+     */
+    ABBOEServer(Biomine3000Args args, ServerAddress address, Collection<ServerAddress> peerAddresses, boolean listen) throws IOException {
     	log.debug("ABBOEServer constructor");
         state = State.NOT_RUNNING;
         this.args = args;
@@ -101,10 +186,66 @@ public class ABBOEServer {
         this.peerManager = new PeerManager(peerAddresses);
         log.info("Peers: " + StringUtils.collectionToString(peerAddresses, ", "));
         this.peerManager.addStateListener(() -> startBusinessIfNeeded());
-        serverSocket = new ServerSocket(serverAddress.getPort());
-        neighbors = new ArrayList<NeighborConnection>();
-        log.info("Listening.");
-        contentVaultProxy = new ContentVaultProxy();
+        transportMode = TransportMode.byName(args.getTransport());
+        threadMode = ThreadMode.byName(args.getThreadMode());
+        timer = new WheelTimer(TIMER_TICK_MS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE, threadMode);
+        hopTimestamps = args.hopTimestamps();
+        pingInterval = args.getPingInterval();
+        pingMisses = args.getPingMisses();
+        evictUnanswering = args.evictUnanswering();
+        flushDelay = args.getFlushDelay();
+        if (pingInterval > 0) {
+            log.info("Pinging neighbors silent for " + pingInterval + " s; evicting after " + pingMisses + " unanswered pings" +
+                     (evictUnanswering ? ", even if they have never answered one" : ", if they have answered one before"));
+        }
+        legacyRoutes = !args.noLegacyRoutes();
+        sendQueueObjects = args.getSendQueueObjects();
+        sendQueueBytes = args.getSendQueueBytes();
+        overloadPolicy = OverloadPolicy.byName(args.getOverloadPolicy());
+        log.info("Send queue of each neighbor bounded to " + sendQueueObjects + " objects and " + sendQueueBytes + " bytes; " +
+                 "default overload policy: " + overloadPolicy);
+        long threshold = args.getStreamingThreshold();
+        streamingThreshold = threshold >= 0 && threshold < Integer.MAX_VALUE ? (int)threshold : Integer.MAX_VALUE;
+        if (streamingThreshold < Integer.MAX_VALUE) {
+            log.info("Forwarding payloads larger than " + streamingThreshold + " bytes cut-through");
+        }
+        if (args.getSpoolDir() != null) {
+            payloadStore = new PayloadStore(Paths.get(args.getSpoolDir()), args.getSpoolThreshold());
+            log.info("Spooling queued payloads of at least " + args.getSpoolThreshold() + " bytes to " + args.getSpoolDir());
+        }
+        else {
+            payloadStore = null;
+        }
+        if (args.getObjectLogDir() != null) {
+            objectLog = new ObjectLog(Paths.get(args.getObjectLogDir()), args.getObjectLogMaxBytes(), args.getObjectLogSyncInterval());
+            log.info("Logging forwarded content to " + args.getObjectLogDir() + ", syncing every " + args.getObjectLogSyncInterval() + " ms");
+        }
+        else {
+            objectLog = null;
+        }
+        if (args.getRecentObjects() > 0) {
+            recentObjects = new RecentObjectCache(args.getRecentObjects(), args.getRecentObjectsBytes());
+            log.info("Keeping " + args.getRecentObjects() + " recent objects of each channel and type for new clients, " +
+                     "at most " + args.getRecentObjectsBytes() + " bytes in all");
+        }
+        else {
+            recentObjects = null;
+        }
+        if (args.getDedupWindow() > 0) {
+            seenObjects = new SeenObjectFilter(args.getDedupWindow());
+            log.info("Dropping objects already forwarded within " + args.getDedupWindow() + " ms");
+        }
+        else {
+            seenObjects = null;
+        }
+        log.info("Using transport: " + transportMode);
+        log.info("Using threads: " + threadMode);
+        log.info("Using metadata codec: " + BusinessObjectMetadata.getCodec());
+        if (!listen) {
+            return;
+        }
+        openServerSocket();
+        contentVaultProxy = new ContentVaultProxy(threadMode);
         contentVaultProxy.addListener(new ContentVaultListener());        
         contentVaultProxy.startLoading();
     }
@@ -113,6 +254,47 @@ public class ABBOEServer {
     	return serverAddress;
     }
 
+    private void openServerSocket() throws IOException {
+        if (transportMode.acceptorClass != null) {
+            neighborAcceptor = transportMode.newAcceptor();
+            neighborAcceptor.bind(serverAddress.getPort(), args.getIoThreads());
+        }
+        else if (transportMode == TransportMode.NIO) {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(serverAddress.getPort()));
+            serverSocket = serverSocketChannel.socket();
+            nioSelectorPool = new NioSelectorPool(args.getIoThreads());
+            nioSelectorPool.start();
+        }
+        else {
+            serverSocket = new ServerSocket(serverAddress.getPort());
+        }
+        log.info("Listening.");
+    }
+
+    /**
+     * For benchmarks on a server constructed without listening: start accepting neighbors right away, without
+     * contacting peers or loading the content vault. 
+     * 
+     * @return the port listened to
+     */
+    synchronized int startListening() throws IOException {
+        openServerSocket();
+        state = State.ACCEPTING_CLIENTS;
+        threadMode.start("acceptor", () -> acceptNeighborsLoop());
+        return neighborAcceptor != null ? neighborAcceptor.getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    /** In the timer thread: start normal business even though some peers are still being contacted */
+    private synchronized void startupDeadlinePassed() {
+        if (state != State.CONNECTING_TO_PEERS) {
+            return;
+        }
+        log.warn("Startup deadline of " + args.getPeerStartupDeadline() + " s passed, accepting clients anyway; still contacting: " + 
+                 peerManager.peersInState(PeerState.NOT_CONTACTED, PeerState.CONTACTING_AT_STARTUP));
+        startBusiness();
+    }
+    
     /** Start normal business if all peers contacted (or at least tried) and operations not yet started */   
     private synchronized void startBusinessIfNeeded() {
     	// log.info("startBusinessIfNeeded");
@@ -124,19 +306,17 @@ public class ABBOEServer {
     
     /** Send some random image from the content vault to all neighbors */
     private void sendImageToAllNeighbors() {
-        synchronized(neighbors) {
-            BusinessObject image;
-            try {
-                image = contentVaultProxy.sampleImage();
-                for (NeighborConnection neighbor: neighbors) {
-                    neighbor.send(image);
-                }
-            }
-            catch (InvalidStateException e) {
-                log.error("Content vault at invalid state after loading all images?");
+        BusinessObject image;
+        try {
+            image = contentVaultProxy.sampleImage();
+            OutboundPacket packet = OutboundPacket.encode(image);
+            for (NeighborConnection neighbor: neighbors.list()) {
+                neighbor.send(packet);
             }
         }
-
+        catch (InvalidStateException e) {
+            log.error("Content vault at invalid state after loading all images?");
+        }
     }
 
     private class ContentVaultListener implements ContentVaultProxy.ContentVaultListener {
@@ -161,46 +341,6 @@ public class ABBOEServer {
         }
     }          
     
-    /** return empty set if no clients */
-    private List<NeighborConnection> listNeighborsWithRoutingId(String routingId) {
-        List<NeighborConnection> result = Collections.emptyList();
-        for (NeighborConnection neighbor: neighbors) {
-            if (neighbor.routingId.equals(routingId)) {
-                if (result.size() == 0) {
-                    result = Collections.singletonList(neighbor);               
-                }
-                else if (result.size() == 1) { 
-                    result = new ArrayList<>(result);
-                    result.add(neighbor);
-                }
-                else {
-                    result.add(neighbor);
-                }
-            }
-        }
-        return result;
-    }
-    
-    /** return empty set if no connected servers */
-    private List<NeighborConnection> listNeighboringServers() {
-        List<NeighborConnection> result = Collections.emptyList();
-        for (NeighborConnection neighbor: neighbors) {
-            if (neighbor.role == Role.SERVER) {
-                if (result.size() == 0) {
-                    result = Collections.singletonList(neighbor);               
-                }
-                else if (result.size() == 1) { 
-                    result = new ArrayList<>(result);
-                    result.add(neighbor);
-                }
-                else {
-                    result.add(neighbor);
-                }
-            }
-        }
-        return result;
-    }
-    
     /** Implemented by just calling {@link #forward()} with null src */
     void sendServerGeneratedObject(BusinessObject bo) {
         forward(bo, null);
@@ -216,36 +356,18 @@ public class ABBOEServer {
      *  https://github.com/Biomine3000/protocol-specification/wiki/ABBOE-Protocol-Specification (section "Routing")
      *        
      * Should not block for long, as sending is done using a dedicated thread for each neighbor.
+     * Does not lock anything, so any number of reader threads may route objects in parallel; all decisions
+     * are made against a single snapshot of the neighbor table.
      * 
      * @param src neighbor from where this object originated from. Null, if this message originates from this very ABBOE.
      */
-    synchronized void forward(BusinessObject bo, NeighborConnection src) {        
+    void forward(BusinessObject bo, NeighborConnection src) {        
+        long start = System.nanoTime();
         
-        String to = bo.getMetadata().getString("to");
-        List<NeighborConnection> potentialDestinations = new ArrayList<>(); 
-        if (to == null) {
-            // if these is no "to" attribute, the object is forwarded to all servers and clients as per their subscriptions.
-            for (NeighborConnection neighbor: neighbors) {
-                if (neighbor.subscriptions.pass(bo)) {
-                    potentialDestinations.add(neighbor);
-                }
-            }
-        }
-        else {
-            // If there is a "to" attribute, the object is forwarded only directly connected clients whose routing ids match 
-            // the ones in "to". In case no clients with routing ids in "to" are directly connected, the object is forwarded to all servers.
-            List<NeighborConnection> clientsWithMatchingRoutingId = listNeighborsWithRoutingId(to);
-            if (clientsWithMatchingRoutingId.size() > 0) {
-                potentialDestinations = clientsWithMatchingRoutingId;
-            }
-            else {
-                potentialDestinations = listNeighboringServers();
-            }            
-        }        
-
-        // (potential) destinations have been resolved
-        if (potentialDestinations.size() == 0) {
-            return; // no action needed ( a trivial routing dead end, supposedly )
+        // a copy that has come around through another path (objects of our own are new by definition)
+        if (seenObjects != null && src != null && seenObjects.seen(bo, src.routingId, src.role == Role.SERVER)) {
+            log.info("Dropped duplicate object from {}", src);
+            return;
         }
         
         // UPDATED VERSION OF TEXT IN SPECS (TODO: copy there...):
@@ -271,6 +393,45 @@ public class ABBOEServer {
             }
         }
         
+        // content is logged before resolving destinations, so that a neighbor subscribing meanwhile either
+        // gets the object live, or finds it in the log when replaying (see NeighborConnection#replay)
+        if ((objectLog != null || recentObjects != null) && !bo.isEvent() && !(bo instanceof StreamedObject)) {
+            meta.putStringArray("route", route);
+            if (objectLog != null) {
+                try {
+                    objectLog.append(bo);
+                }
+                catch (IOException e) {
+                    log.error("Failed logging object", e);
+                }
+            }
+            if (recentObjects != null) {
+                recentObjects.put(bo);
+            }
+        }
+        
+        NeighborTable.Snapshot neighbors = this.neighbors.snapshot();
+        List<String> to = bo.getMetadata().getList("to");
+        List<NeighborConnection> potentialDestinations = new ArrayList<>(); 
+        Map<NeighborConnection, List<String>> targetsByHop = null;
+        if (to == null) {
+            // if these is no "to" attribute, the object is forwarded to all servers and clients as per their subscriptions.
+            potentialDestinations = neighbors.subscriptionIndex.match(bo);
+        }
+        else {
+            // If there is a "to" attribute (a single routing id, or an array of them), the object is forwarded only to directly 
+            // connected clients whose routing ids match the ones in "to". For targets not directly connected, the object is 
+            // forwarded to the server known to reach the target (see handleRemoteRoutingEvent), or failing that, to all servers.
+            to = new ArrayList<>(new LinkedHashSet<>(to));
+            targetsByHop = resolveTargets(neighbors, to);
+            potentialDestinations = new ArrayList<>(targetsByHop.keySet());
+        }        
+
+        // (potential) destinations have been resolved
+        if (potentialDestinations.size() == 0) {
+            return; // no action needed ( a trivial routing dead end, supposedly )
+        }
+        
         log.info("Route of object to be sent: "+route);
         
         // Objects must not be forwarded to any destination whose routing-id is in route.
@@ -301,13 +462,109 @@ public class ABBOEServer {
         }
         
         bo.getMetadata().putStringArray("route",  route);
+        stampHop(bo.getMetadata());
         
-        for (NeighborConnection neighbor: destinations) { 
-            // legacy support: modify metadata for each neighbor to exclude the neighbor itself from the route
-            neighbor.send(makeCopyWithOneIdRemovedFromRoute(bo, neighbor.routingId));
-            
-            // neighbor.send(bo); // enable after removing legacy support above
-        }        
+        // a large payload waits in the send queues off the heap, if so configured
+        StoredObject stored = payloadStore != null ? payloadStore.spool(bo) : null;
+        if (stored != null) {
+            bo = stored;
+        }
+        
+        // encode once, sharing the payload between all destinations
+        try {
+            OutboundPacket.RouteViews views = legacyRoutes ? new OutboundPacket.RouteViews(bo, route) : null;
+            OutboundPacket packet = legacyRoutes ? null : OutboundPacket.encode(bo);
+            for (NeighborConnection neighbor: destinations) {
+                List<String> targets = targetsByHop != null ? targetsByHop.get(neighbor) : null;
+                if (targets != null && targets.size() < to.size() && neighbors.roleOf(neighbor) == Role.SERVER) {
+                    // a server reaching only some of the targets is told only of those, not to look further for the others
+                    BusinessObjectMetadata narrowed = bo.getMetadata().clone();
+                    narrowed.putStringArray("to", targets);
+                    BusinessObject copy = withMetadata(bo, narrowed);
+                    neighbor.send(legacyRoutes ? new OutboundPacket.RouteViews(copy, route).forDestination(neighbor.routingId) 
+                                               : OutboundPacket.encode(copy));
+                }
+                else if (legacyRoutes) {
+                    // legacy support: modify metadata for each neighbor to exclude the neighbor itself from the route
+                    neighbor.send(views.forDestination(neighbor.routingId));
+                }
+                else {
+                    neighbor.send(packet);
+                }
+                forwardToEnqueue.record(System.nanoTime() - start);
+            }
+        }
+        finally {
+            if (stored != null) {
+                // each send queue has its own reference by now
+                stored.payload.release();
+            }
+        }
+    }
+
+    /**
+     * Record the time since the previous hop, if any, and add this server to hops if so configured. Each hop is
+     * "routing-id@epoch millis", so comparing them across servers is only as good as the clocks of the servers.
+     */
+    private void stampHop(BusinessObjectMetadata meta) {
+        List<String> hops = meta.getList("hops");
+        long now = System.currentTimeMillis();
+        if (hops != null && !hops.isEmpty()) {
+            String last = hops.get(hops.size() - 1);
+            try {
+                long then = Long.parseLong(last.substring(last.lastIndexOf('@') + 1));
+                hopLatency.record(TimeUnit.MILLISECONDS.toNanos(now - then));
+            }
+            catch (NumberFormatException e) {
+                // not stamped by us
+            }
+        }
+        if (hopTimestamps) {
+            hops = hops != null ? new ArrayList<>(hops) : new ArrayList<String>();
+            hops.add(serverRoutingId + "@" + now);
+            meta.putStringArray("hops", hops);
+        }
+    }
+
+    /**
+     * Resolve targets of an addressed object in a single pass: each directly connected neighbor with a target routing id, 
+     * each server known to reach a target, or all servers for a target not known at all.
+     * 
+     * @return next hops, each with the targets it is to reach; a hop reached through several targets is listed only once
+     */
+    private Map<NeighborConnection, List<String>> resolveTargets(NeighborTable.Snapshot neighbors, List<String> targets) {
+        Map<NeighborConnection, List<String>> targetsByHop = new LinkedHashMap<>();
+        for (String target: targets) {
+            List<NeighborConnection> hops = neighbors.withRoutingId(target);
+            if (hops.isEmpty()) {
+                NeighborConnection via = this.neighbors.routeTo(neighbors, target);
+                hops = via != null ? Collections.singletonList(via) : neighbors.servers();
+            }
+            for (NeighborConnection hop: hops) {
+                List<String> hopTargets = targetsByHop.get(hop);
+                if (hopTargets == null) {
+                    hopTargets = new ArrayList<>(1);
+                    targetsByHop.put(hop, hopTargets);
+                }
+                hopTargets.add(target);
+            }
+        }
+        return targetsByHop;
+    }
+    
+    /** Object with the same (shared) payload as bo, but different metadata */
+    private static BusinessObject withMetadata(BusinessObject bo, BusinessObjectMetadata metadata) {
+        if (bo instanceof StoredObject) {
+            return new StoredObject(metadata, ((StoredObject)bo).payload);
+        }
+        if (bo instanceof StreamedObject) {
+            return new StreamedObject(metadata, ((StreamedObject)bo).payload);
+        }
+        BOB builder = BOB.newBuilder().metadata(metadata);
+        if (metadata.hasPayload()) {
+            builder.payload(bo.getPayload());
+        }
+        return builder.build();
     }
 
     /**
@@ -323,10 +580,43 @@ public class ABBOEServer {
     	
     	log.info("acceptNeighborsLoop");
     	
+        if (neighborAcceptor != null) {
+            neighborAcceptor.startAccepting(transport -> {
+                if (state == State.ACCEPTING_CLIENTS) {
+                    log.info("Neighbor connected from {}", transport.getRemoteAddress());
+                    acceptSingleNeighbor(transport);
+                }
+                else {
+                    log.info("Not accepting neighbor from: {}", transport.getRemoteAddress());
+                    try {
+                        transport.close();
+                    }
+                    catch (IOException e) {
+                        // no further action possible
+                    }
+                }
+            });
+            log.info("Accepting neighbors in the I/O threads of the {} transport", transportMode);
+            return;
+        }
+
         while (state == State.ACCEPTING_CLIENTS) {
             log.info("Waiting for neighbor...");
 
             try {
+                if (transportMode == TransportMode.NIO) {
+                    SocketChannel neighborChannel = serverSocketChannel.accept();
+                    if (state == State.ACCEPTING_CLIENTS) {
+                        log.info("Neighbor connected from {}", neighborChannel.getRemoteAddress());
+                        acceptSingleNeighbor(neighborChannel);
+                    }
+                    else {
+                        log.info("Not accepting neighbor from: {}", neighborChannel.getRemoteAddress());
+                        neighborChannel.close();
+                    }
+                    continue;
+                }
+                
                 Socket neighborSocket = serverSocket.accept();
                 if (state == State.ACCEPTING_CLIENTS) {
                     log.info("Neighbor connected from {}", neighborSocket.getRemoteSocketAddress());
@@ -350,45 +640,52 @@ public class ABBOEServer {
         log.info("Finished ABBOE main loop");
     }
     
-    /**
-     * "clone" a business object, with the only difference being in the route attribute. In practice,
-     * only metadata is cloned, the payload (if any) can be recycled as is.
-     * 
-     * This is only needed if different route attribute is needed for objects sent to different neighbors
-     * (in final implementation, this should not be the case).
-     */
-    private BusinessObject makeCopyWithOneIdRemovedFromRoute(BusinessObject bo, String idToRemove) {
-        List<String> oldRoute = bo.getMetadata().getList("route");
-        ArrayList<String> newRoute = new ArrayList<>(oldRoute.size()-1);
-        for (String id: oldRoute) {
-            if (!id.equals(idToRemove)) {
-                newRoute.add(id);
+    private void acceptSingleNeighbor(Socket neighborSocket) {
+        log.info("Accepting neighbor from "+neighborSocket.getInetAddress());
+
+        try {
+            acceptSingleNeighbor(new SocketTransport(neighborSocket, threadMode, flushDelay));
+        }
+        catch (IOException e) {
+            log.error("Failed creating streams on socket", e);
+            try {
+                neighborSocket.close();
+            }
+            catch (IOException e2) {
+                // failed even this, no further action possible
             }
         }
-        BusinessObjectMetadata metaClone = bo.getMetadata().clone();
-        metaClone.putStringArray("route", newRoute);
-        return BOB.newBuilder()
-                .metadata(metaClone)
-                .payload(bo.getPayload())
-                .build();                                
     }
     
-    private void acceptSingleNeighbor(Socket neighborSocket) {
+    private void acceptSingleNeighbor(SocketChannel neighborChannel) {
+        try {
+            acceptSingleNeighbor(new NioTransport(neighborChannel, nioSelectorPool));
+        }
+        catch (IOException e) {
+            log.error("Failed initializing non-blocking channel", e);
+            try {
+                neighborChannel.close();
+            }
+            catch (IOException e2) {
+                // failed even this, no further action possible
+            }
+        }
+    }
+    
+    private void acceptSingleNeighbor(NeighborTransport transport) {
         NeighborConnection neighbor;
-        
-        log.info("Accepting neighbor from "+neighborSocket.getInetAddress());
 
         try {
-            neighbor = new NeighborConnection(this, neighborSocket);
+            neighbor = new NeighborConnection(this, transport);
 
             // suggest registration, if neighbor has not done so within a second of its registration...
-            new SubscriptionCheckerThread(neighbor).start();
+            neighbor.subscriptionDeadline = timer.schedule(() -> checkSubscribed(neighbor), 1, TimeUnit.SECONDS);
             
         }
         catch (IOException e) {
-            log.error("Failed creating streams on socket", e);
+            log.error("Failed starting to send to neighbor", e);
             try {
-                neighborSocket.close();
+                transport.close();
             }
             catch (IOException e2) {
                 // failed even this, no further action possible
@@ -439,6 +736,9 @@ public class ABBOEServer {
                     System.out.println(key+": "+neighborShortcuts.get(key).name);
                 }
             }
+            else if (line.equals("recent")) {
+                System.out.println(recentObjects != null ? recentObjects : "Not keeping recent objects");
+            }
             else if (line.equals("clients") || line.equals("c")) {
                 neighborShortcuts = neighborShortcuts();
                 for (Integer key: neighborShortcuts.keySet()) {
@@ -484,8 +784,7 @@ public class ABBOEServer {
                         .event(ABBOE_CLOSE_NOTIFY).build();
                 client.initiateClosingSequence(closeNotification);
 
-                NeighborShutdownThread cst = new NeighborShutdownThread(client);
-                cst.start();
+                client.closeDeadline = timer.schedule(() -> forceCloseIfOpen(client), 3, TimeUnit.SECONDS);
 
             }
             else {
@@ -515,6 +814,7 @@ public class ABBOEServer {
         // TODO: more delicate termination needed?
         log.info("Initiating shutdown sequence");
 
+        List<NeighborConnection> neighbors = this.neighbors.list();
         if (neighbors.size() > 0) {
             for (NeighborConnection client: neighbors) {
                 BusinessObject shutdownNotification = BOB.newBuilder()
@@ -523,9 +823,8 @@ public class ABBOEServer {
                 client.initiateClosingSequence(shutdownNotification);
             }
 
-            // start a thread to ensure shutdown in case some clients fail to close their connections
-            ShutdownThread shutdownThread = new ShutdownThread();
-            shutdownThread.start();
+            // ensure shutdown in case some clients fail to close their connections
+            shutdownTimeout = timer.schedule(() -> forceShutdown(), 5, TimeUnit.SECONDS);
         }
         else {
             // no clients to close!
@@ -537,13 +836,32 @@ public class ABBOEServer {
 
     /** Finalize shutdown sequence after closing all clients (if any) */
     void finalizeShutdownSequence() {
+        if (shutdownTimeout != null) {
+            shutdownTimeout.cancel();
+        }
+        timer.stop();
+        
         try {
             log.info("Finalizing shutdown sequence by closing server socket");
-            serverSocket.close();
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
         }
         catch (IOException e) {
             // foo
         }
+        
+        if (neighborAcceptor != null) {
+            neighborAcceptor.close();
+        }
+        
+        if (nioSelectorPool != null) {
+            nioSelectorPool.shutdown();
+        }
+        
+        if (objectLog != null) {
+            objectLog.close();
+        }
 
         log.info("Exiting");
         System.exit(0);
@@ -555,59 +873,27 @@ public class ABBOEServer {
     * Note that tempting as it might be, it is not possible to send any "you fool" message
     * to these clients at this stage, as any outgoing connections have already been shut down.
     */
-    private class ShutdownThread extends Thread {
-        public void run() {
-            try {
-                Thread.sleep(5000);
-                log.error("Following neighbors have failed to close their connection properly: " +
-                           StringUtils.collectionToString(neighbors,", ")+
-                		  "; forcing shutdown...");
-                finalizeShutdownSequence();
-            }
-            catch (InterruptedException e) {
-                log.error("Shutdownthread interrupted");
-            }
-        }
+    private void forceShutdown() {
+        log.error("Following neighbors have failed to close their connection properly: " +
+                  StringUtils.collectionToString(neighbors.list(),", ")+
+                  "; forcing shutdown...");
+        // not in the timer thread, which is stopped during finalization
+        threadMode.start("shutdown", () -> finalizeShutdownSequence());
     }
 
-    private class NeighborShutdownThread extends Thread {
-        NeighborConnection neighbor;
-        NeighborShutdownThread(NeighborConnection client) {
-            this.neighbor = client;
-        }
-        public void run() {
-            try {
-                Thread.sleep(3000);
-                if (!neighbor.closed) {
-                    log.error(""+neighbor.role + " " + neighbor.name + " has failed to shut down properly, forcing shutdown...");
-                    neighbor.forceClose();
-                }
-            }
-            catch (InterruptedException e) {
-                log.error("Shutdownthread for client: "+neighbor.name+" interrupted, connection to client has not been shutdown");
-            }
+    private void forceCloseIfOpen(NeighborConnection neighbor) {
+        if (!neighbor.closed) {
+            log.error(""+neighbor.role + " " + neighbor.name + " has failed to shut down properly, forcing shutdown...");
+            // closing may block for a while
+            threadMode.start("forceclose-" + neighbor.name, () -> neighbor.forceClose());
         }
     }
 
-    private class SubscriptionCheckerThread extends Thread {
-        NeighborConnection client;
-        SubscriptionCheckerThread(NeighborConnection client) {
-            this.client = client;
-        }
-
-        public void run() {
-            try {
-                Thread.sleep(1000);
-                if (state == ABBOEServer.State.SHUTTING_DOWN) return;
-                if (!client.subscribed) {
-                    log.warn("Neighbor has not subscribed during the first second: "+client);
-                    client.sendMessage("Please subscribe by sending a \""+ROUTING_SUBSCRIPTION+"\" event");
-                }
-            }
-            catch (InterruptedException e) {
-                log.error("SubscriptionCheckerThread interrupted");
-            }
-
+    private void checkSubscribed(NeighborConnection neighbor) {
+        if (state == ABBOEServer.State.SHUTTING_DOWN) return;
+        if (!neighbor.subscribed) {
+            log.warn("Neighbor has not subscribed during the first second: "+neighbor);
+            neighbor.sendMessage("Please subscribe by sending a \""+ROUTING_SUBSCRIPTION+"\" event");
         }
     }
 
@@ -699,38 +985,121 @@ public class ABBOEServer {
      */
     void handleClientsListEvent(NeighborConnection requestingNeighbor, BusinessObject bo ) {
         
-        BusinessObject reply;
-        
-        synchronized(ABBOEServer.this) {                        
-            JSONArray neighborsJSON = new JSONArray();
-            for (NeighborConnection neighbor: neighbors) {
-                JSONObject neighborJSON = new JSONObject();
-                if (neighbor.neighborName != null) {
-                    neighborJSON.put("client", neighbor.neighborName);
-                }
-                if  (neighbor.user != null) { 
-                    neighborJSON.put("user", neighbor.user);
-                }
-                neighborJSON.put("routing-id", neighbor.routingId);
-                neighborsJSON.put(neighborJSON);
-                log.info("neighborsJSON in neighbors list reply: "+neighborsJSON);
-            }                        
-                        
-            reply = BOB.newBuilder()
-                    .attribute("in-reply-to", bo.getMetadata().getString("id"))
-                    .attribute("clients", neighborsJSON)
-                    .attribute("name", "clients")
-                    .attribute("request", "list")
-                    .event(SERVICES_REPLY)
-                    .build();
+        JSONArray neighborsJSON = new JSONArray();
+        for (NeighborConnection neighbor: neighbors.list()) {
+            JSONObject neighborJSON = new JSONObject();
+            if (neighbor.neighborName != null) {
+                neighborJSON.put("client", neighbor.neighborName);
+            }
+            if  (neighbor.user != null) { 
+                neighborJSON.put("user", neighbor.user);
+            }
+            neighborJSON.put("routing-id", neighbor.routingId);
+            long rtt = neighbor.ping.getSmoothedRtt(TimeUnit.MILLISECONDS);
+            if (rtt >= 0) {
+                neighborJSON.put("rtt-ms", rtt);
+            }
+            neighborsJSON.put(neighborJSON);
+            log.info("neighborsJSON in neighbors list reply: "+neighborsJSON);
+        }                        
                     
-        }
+        BusinessObject reply = BOB.newBuilder()
+                .attribute("in-reply-to", bo.getMetadata().getString("id"))
+                .attribute("clients", neighborsJSON)
+                .attribute("name", "clients")
+                .attribute("request", "list")
+                .event(SERVICES_REPLY)
+                .build();
 
         requestingNeighbor.send(reply);
     }
     
     
     
+    /**
+     * Handle a services/request to the stats service. Request "get" (or none) is answered once with the traffic
+     * counters of the server and of each neighbor; "subscribe" with the same every "interval" seconds (default 10)
+     * until "unsubscribe". Latency percentiles are since the previous reset: with "reset" true, the histograms are
+     * reset after each reply, which for a subscription gives percentiles of each interval.
+     */
+    void handleStatsRequest(NeighborConnection requestingNeighbor, BusinessObject bo) {
+        BusinessObjectMetadata meta = bo.getMetadata();
+        String request = meta.getString("request");
+        String requestId = meta.getString("id");
+        boolean reset = "true".equals(String.valueOf(meta.get("reset")));
+        if (request == null || request.equals("get")) {
+            requestingNeighbor.send(makeStatsReply(requestId, "get", reset));
+        }
+        else if (request.equals("subscribe")) {
+            Integer interval = meta.getInteger("interval");
+            if (interval == null || interval <= 0) {
+                interval = DEFAULT_STATS_INTERVAL_SEC;
+            }
+            requestingNeighbor.streamStats(requestId, interval, reset);
+        }
+        else if (request.equals("unsubscribe")) {
+            requestingNeighbor.stopStatsStream();
+        }
+        else {
+            requestingNeighbor.sendWarning("Unknown request to stats service: " + request + " (request id: " + requestId + ")");
+        }
+    }
+
+    /** 
+     * Current traffic counters, lengths of send queues and latency percentiles, as a reply of the stats service.
+     * @param reset reset latency histograms
+     */
+    BusinessObject makeStatsReply(String requestId, String request, boolean reset) {
+        long queuedObjects = 0, queuedBytes = 0;
+        JSONArray neighborsJSON = new JSONArray();
+        List<NeighborConnection> neighbors = this.neighbors.list();
+        for (NeighborConnection neighbor: neighbors) {
+            JSONObject neighborJSON = neighbor.stats.toJSON();
+            neighborJSON.put("routing-id", neighbor.routingId);
+            if (neighbor.neighborName != null) {
+                neighborJSON.put("client", neighbor.neighborName);
+            }
+            if (neighbor.role != null) {
+                neighborJSON.put("role", neighbor.role.name);
+            }
+            int queueObjects = neighbor.getSendQueue().size();
+            long queueBytes = neighbor.getSendQueue().bytes();
+            neighborJSON.put("queued-objects", queueObjects);
+            neighborJSON.put("queued-bytes", queueBytes);
+            long rtt = neighbor.ping.getSmoothedRtt(TimeUnit.MILLISECONDS);
+            if (rtt >= 0) {
+                neighborJSON.put("rtt-ms", rtt);
+            }
+            queuedObjects += queueObjects;
+            queuedBytes += queueBytes;
+            neighborsJSON.put(neighborJSON);
+        }
+        JSONObject serverJSON = stats.toJSON();
+        serverJSON.put("neighbors", neighbors.size());
+        serverJSON.put("queued-objects", queuedObjects);
+        serverJSON.put("queued-bytes", queuedBytes);
+        serverJSON.put("time-to-ready-ms", timeToReadyMs);
+        if (recentObjects != null) {
+            serverJSON.put("recent-objects", recentObjects.toJSON());
+        }
+
+        BusinessObject reply = BOB.newBuilder()
+                .attribute("in-reply-to", requestId)
+                .attribute("name", "stats")
+                .attribute("request", request)
+                .attribute("neighbors", neighborsJSON)
+                .event(SERVICES_REPLY)
+                .build();
+        JSONObject latencyJSON = new JSONObject();
+        latencyJSON.put("read-to-forward", readToForward.toJSON(TimeUnit.MICROSECONDS, reset));
+        latencyJSON.put("forward-to-enqueue", forwardToEnqueue.toJSON(TimeUnit.MICROSECONDS, reset));
+        latencyJSON.put("enqueue-to-write", enqueueToWrite.toJSON(TimeUnit.MICROSECONDS, reset));
+        latencyJSON.put("hop", hopLatency.toJSON(TimeUnit.MICROSECONDS, reset));
+        reply.getMetadata().asJSON().put("server", serverJSON);
+        reply.getMetadata().asJSON().put("latency-us", latencyJSON);
+        return reply;
+    }
+    
     /** handle a routing/subscribe event */
     void handleRoutingSubscribeEvent(NeighborConnection neighbor, BusinessObject subscribeEvent) throws InvalidBusinessObjectMetadataException {
         BusinessObjectMetadata subscribeMeta = subscribeEvent.getMetadata();                
@@ -784,6 +1153,17 @@ public class ABBOEServer {
             warnings.add("Ignoring deprecated attribute echo"); 
         }
         
+        // what to do when the neighbor does not keep up with the objects sent to it
+        String overloadPolicyName = subscribeMeta.getString("overload-policy");
+        if (overloadPolicyName != null) {
+            try {
+                neighbor.setOverloadPolicy(OverloadPolicy.byName(overloadPolicyName));
+            }
+            catch (IllegalArgumentException e) {
+                warnings.add(e.getMessage() + "; using default: " + overloadPolicy);
+            }
+        }
+        
         if (subscribeMeta.hasKey("subscriptions")) {
             List<String> subscriptions = subscribeMeta.getList("subscriptions");
             neighbor.subscriptions = new Subscriptions(subscriptions);        
@@ -792,11 +1172,46 @@ public class ABBOEServer {
             // no subscriptions (perhaps, just perhaps this is valid)
             warnings.add("No subscriptions specified, nothing shall be sent");
         }               
+        neighbor.setSubscribed();
+        
+        // replay of logged content since a given time (millis) or offset; live content is held back until done
+        Long replaySince = null;
+        Long replayOffset = null;
+        try {
+            replaySince = longAttribute(subscribeMeta, "replay-since");
+            replayOffset = longAttribute(subscribeMeta, "replay-offset");
+        }
+        catch (NumberFormatException e) {
+            warnings.add("Invalid replay attribute in " + ROUTING_SUBSCRIPTION.getEventName() + ": " + e.getMessage() + "; not replaying");
+            replaySince = replayOffset = null;
+        }
+        if ((replaySince != null || replayOffset != null) && objectLog == null) {
+            warnings.add("No object log on this server, nothing to replay");
+        }
+        else if (replaySince != null || replayOffset != null) {
+            neighbor.holdForReplay();
+        }
+        
+        // publish role, routing id and subscriptions to routing at once
+        neighbors.refresh();
+        
+        // whatever is logged from now on is sent live (see forward)
+        ObjectLog.Reader replayReader = null;
+        if (neighbor.isHoldingForReplay()) {
+            try {
+                replayReader = replaySince != null ? objectLog.readSince(replaySince) : objectLog.readFrom(replayOffset);
+            }
+            catch (IOException e) {
+                log.error("Failed reading object log", e);
+                warnings.add("Failed reading object log, not replaying");
+                neighbor.releaseHold();
+            }
+        }
                                   
         // TODO: verify that not already connected to said ABBŒ before sending reply;
         // if already connected,  send error as reply; remember to put in-reply-to to error object!
         // täällä
-        ServerAddress peerAddress = new ServerAddress(neighbor.getSocket().getInetAddress().toString(), neighbor.getSocket().getPort(), "subscribed server XYZ", null);
+        ServerAddress peerAddress = new ServerAddress(neighbor.getTransport().getInetAddress().toString(), neighbor.getTransport().getPort(), "subscribed server XYZ", null);
         try {      
         	@SuppressWarnings("unused")
         	PeerInfo peerInfo = peerManager.registerPeer(peerAddress, neighbor.routingId, neighbor.subscriptions, SubscribeDirection.INCOMING);
@@ -809,6 +1224,7 @@ public class ABBOEServer {
                     .attribute("sender", getServerAddress().getName())
                     .payload("Cannot subscribe to this peer: already subscribed").build();
         	log.info("Already connected to peer " + peerAddress + " using routing-id: " + neighbor.routingId + " => initiating closing sequence");
+        	neighbor.releaseHold();
         	neighbor.initiateClosingSequence(reply);
         	return;
         }
@@ -818,9 +1234,22 @@ public class ABBOEServer {
                 .attribute("in-reply-to", subscribeMeta.getString("id"))
                 .attribute("routing-id", neighbor.routingId)                
                 .build();
+        if (objectLog != null) {
+            // where live content started, for asking a replay since then, should the connection break
+            response.getMetadata().put("log-offset", Long.toString(replayReader != null ? replayReader.getEnd() : objectLog.nextOffset()));
+        }
         
         addWarnings(response, warnings); warnings = null;
         neighbor.send(response);
+        
+        // recent content right away, so that there is something to show (unless replaying the log, which has it anyway)
+        if (recentObjects != null && neighbor.role == Role.CLIENT && replayReader == null) {
+            List<OutboundPacket> recent = recentObjects.matching(neighbor.subscriptions, neighbor.routingId);
+            for (OutboundPacket packet: recent) {
+                neighbor.send(packet);
+            }
+            log.info("Sent " + recent.size() + " recent objects to " + neighbor);
+        }
            
         // "register back", if server and if this is not already a back-registration by a server contacted by us earlier
         // TODO: back-registeration is already read before starting reader thread; so here we should not prepare for the 
@@ -847,7 +1276,7 @@ public class ABBOEServer {
             }
         }
                                
-        if (contentVaultProxy.getState() == ContentVaultProxy.State.INITIALIZED_SUCCESSFULLY && neighbor.role == Role.CLIENT) {
+        if (contentVaultProxy != null && contentVaultProxy.getState() == ContentVaultProxy.State.INITIALIZED_SUCCESSFULLY && neighbor.role == Role.CLIENT) {
             // send a raw image as a token of goodwill (not to competing servers, naturally)
             try {
                 BusinessObject image = contentVaultProxy.sampleImage();
@@ -876,6 +1305,36 @@ public class ABBOEServer {
                     .attribute("role", neighbor.role.name)
                     .payload("Neighbor " + neighbor + " subscribed").build());                    
                 
+        
+        if (replayReader != null) {
+            neighbor.replay(replayReader);
+        }
+    }
+
+    /** 
+     * Learn from a routing/subscribe/notification passed on by a server neighbor that the node subscribed is reachable 
+     * through that neighbor, or from a routing/disconnect that it is no more. The event itself is forwarded as usual.
+     */
+    void handleRemoteRoutingEvent(NeighborConnection neighbor, BusinessObject event) {
+        String routingId = event.getMetadata().getString("routing-id");
+        if (neighbor.role != Role.SERVER || neighbor.routingId == null || routingId == null || routingId.equals(serverRoutingId)) {
+            return;
+        }
+        if (event.isEvent(ROUTING_SUBSCRIBE_NOTIFICATION)) {
+            neighbors.learnRoute(routingId, neighbor.routingId);
+        }
+        else {
+            neighbors.forgetRoute(routingId, neighbor.routingId);
+        }
+    }
+    
+    /** Attribute given either as a number or as a string; null if not present */
+    private static Long longAttribute(BusinessObjectMetadata meta, String key) throws NumberFormatException {
+        Object value = meta.get(key);
+        if (value == null) {
+            return null;
+        }
+        return value instanceof Number ? ((Number)value).longValue() : Long.parseLong(value.toString());
     }
     
     void handleClientJoinRequest(NeighborConnection neighbor, BusinessObject bo) throws InvalidBusinessObjectMetadataException {
@@ -929,6 +1388,9 @@ public class ABBOEServer {
         Logger log = LoggerFactory.getLogger(ABBOEServer.class);        
                
         Biomine3000Args args = new Biomine3000Args(pArgs, false);
+        if (args.getMetadataCodec() != null) {
+            BusinessObjectMetadata.setCodec(MetadataCodec.byName(args.getMetadataCodec()));
+        }
 
         Integer port = args.getPort();
         
@@ -977,25 +1439,25 @@ public class ABBOEServer {
         }
        
         state = State.ACCEPTING_CLIENTS;
+        if (startupDeadline != null) {
+            startupDeadline.cancel();
+        }
+        timeToReadyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAt);
+        log.info("Ready to accept clients " + timeToReadyMs + " ms after start; connected to " + 
+                 peerManager.peersInState(PeerState.CONNECTED).size() + " of " + peerManager.knownPeers().size() + " peers");
         
         // start separate thread for reading system.in
         SystemInReader systemInReader = new SystemInReader();
         systemInReader.start();        
 
-        Runnable neighborAccepterRunnable = new Runnable() {
-            @Override
-            public void run() {
-                acceptNeighborsLoop();
-            }                       
-        };
-                
-        new Thread(neighborAccepterRunnable).start();
+        threadMode.start("acceptor", () -> acceptNeighborsLoop());
         
     }
     
     /**
-     * Start a dedicated thread for each known server to connect to. Only after all known servers have been connected to
-     * (or connections refused / failed etc. ), shall we start accepting clients. This is for two reasons:
+     * Start a dedicated thread for each known server to connect to, all at once. Only after all known servers have been
+     * connected to (or connections refused / failed etc. ), or the startup deadline has passed (so that a few 
+     * unresponsive peers cannot keep us from serving clients), shall we start accepting clients. This is for two reasons:
      *  - to avoid receiving connections from same servers that we are initiating connections with ourselves
      *  - to avoid client messages being lost due to clients connecting to our still isolated ABBOE component
      *  
@@ -1031,7 +1493,14 @@ public class ABBOEServer {
         
         for (ServerAddress address: peerManager.knownPeers()) {
             PeerConnectionThread connectionThread = new PeerConnectionThread(this, address);
-            connectionThread.start();
+            threadMode.start(connectionThread.getName(), connectionThread);
+        }
+        
+        int deadline = args.getPeerStartupDeadline();
+        if (deadline >= 0 && !peerManager.knownPeers().isEmpty()) {
+            synchronized (this) {
+                startupDeadline = timer.schedule(() -> startupDeadlinePassed(), deadline, TimeUnit.SECONDS);
+            }
         }
         
         // if no peers to connect to, we might as well start business
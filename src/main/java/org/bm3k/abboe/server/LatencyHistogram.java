@@ -0,0 +1,89 @@
+package org.bm3k.abboe.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import org.json.JSONObject;
+
+/**
+ * Histogram of latencies from nanoseconds up to hours, with a relative error of at most 1/{@link #SUB_BUCKETS}:
+ * values are bucketed by power of two, and each power of two is split into that many linear sub-buckets (the
+ * same idea as in HdrHistogram, with a fixed precision). Recording is a single atomic increment, so any number of
+ * threads may record without locking.
+ *
+ * Reading while recording is going on gives a view that is not necessarily consistent between buckets,
+ * which is fine for percentiles.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Enough for any non-negative long */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            // clocks of different hosts, or reset in the middle
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        max.accumulate(nanos);
+    }
+
+    /** Values below 2 * SUB_BUCKETS have buckets of their own; above that, buckets get wider with each power of two */
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Smallest value of bucket */
+    static long lowestOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long)(index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    /** Values recorded since the last reset, and percentiles of them; clears the histogram if reset */
+    JSONObject toJSON(TimeUnit unit, boolean reset) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            n += snapshot[i];
+        }
+        long maxValue = reset ? max.getThenReset() : max.get();
+
+        JSONObject json = new JSONObject();
+        json.put("count", n);
+        json.put("p50", unit.convert(percentile(snapshot, n, 0.5), TimeUnit.NANOSECONDS));
+        json.put("p99", unit.convert(percentile(snapshot, n, 0.99), TimeUnit.NANOSECONDS));
+        json.put("p999", unit.convert(percentile(snapshot, n, 0.999), TimeUnit.NANOSECONDS));
+        json.put("max", unit.convert(maxValue, TimeUnit.NANOSECONDS));
+        return json;
+    }
+
+    /** Middle of the bucket in which the given fraction of n values is reached; 0 if no values */
+    private static long percentile(long[] snapshot, long n, double fraction) {
+        long rank = (long)Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                long low = lowestOf(i);
+                long high = i + 1 < BUCKETS ? lowestOf(i + 1) : Long.MAX_VALUE;
+                return low + (high - low) / 2;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,31 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Listens for neighbors on behalf of an {@link ABBOEServer}, for transports that do their own accepting instead of
+ * having {@link ABBOEServer} accept connections from a server socket in a thread of its own. Such transports live in
+ * separate modules, and are loaded by class name (see {@link TransportMode}) so that their dependencies are only
+ * needed when actually used; hence the public no-arg constructor required of implementations.
+ */
+interface NeighborAcceptor {
+
+    /**
+     * Bind to port, but do not accept any connections yet.
+     * @param ioThreads number of threads to do the I/O of all neighbors
+     */
+    void bind(int port, int ioThreads) throws IOException;
+
+    /** As bound; useful if bound to port 0 */
+    int getLocalPort();
+
+    /**
+     * Start accepting connections. Returns immediately.
+     * @param handler called with a transport for each new connection, in an I/O thread of the acceptor.
+     */
+    void startAccepting(Consumer<NeighborTransport> handler);
+
+    /** Stop accepting, and close all connections still open */
+    void close();
+}
@@ -2,12 +2,12 @@ package org.bm3k.abboe.server;
 
 import static org.bm3k.abboe.objects.BusinessObjectEventType.*;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.bm3k.abboe.common.Biomine3000Utils;
 import org.bm3k.abboe.common.BusinessObjectReader;
@@ -23,29 +23,50 @@ import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import util.net.NonBlockingSender;
-
 /**
- * Connection to a neighboring node. Each connection has a dedicated thread for reading and sending objects.
+ * Connection to a neighboring node. Actual reading and sending of objects is delegated to a {@link NeighborTransport};
+ * with the classic {@link SocketTransport}, each connection has a dedicated thread for reading and sending objects.
  */
-class NeighborConnection implements NonBlockingSender.Listener {                       
+class NeighborConnection implements NeighborTransport.SenderListener {                       
 
 	private final Logger log = LoggerFactory.getLogger(NeighborConnection.class);
 	
 	private final ABBOEServer abboeServer;
-	private final Socket socket;
-	private final BufferedInputStream is;
-	private final OutputStream os;
+	private final NeighborTransport transport;
+    /** Please put objects to this queue only through {@link #send(OutboundPacket)} (warnings about dropped objects excepted) */
+	private final SendQueue sendQueue;
+	/** Do not warn neighbor about dropped objects more often than this */
+	private static final long DROP_WARNING_INTERVAL_MILLIS = 10000;
+	/** Guarded by sendQueue */
+	private long lastDropWarningTime;
+	private final SendQueueListener sendQueueListener = new SendQueueListener();
+	/** 
+	 * Non-null while replaying logged content to the neighbor: live content is held here meanwhile, to be sent 
+	 * after the replay. Set and cleared with replayLock held. 
+	 */
+	private volatile SendQueue replayHold;
+	private final Object replayLock = new Object();
+	/** The hold overflowed, to be handled as an overflow of the send queue once replay is done */
+	private volatile boolean replayHoldOverflowed;
     boolean subscribed = false;
+    /** Reminds the neighbor to subscribe; cancelled once subscribed or closed */
+    volatile WheelTimer.Timeout subscriptionDeadline;
+    /** Forces closing once closing sequence has been initiated by the server; cancelled once closed */
+    volatile WheelTimer.Timeout closeDeadline;
+    /** Next check whether to ping the neighbor; cancelled once closed */
+    private volatile WheelTimer.Timeout pingCheck;
+    /** Round-trip times and liveness of this neighbor */
+    final PingTracker ping = new PingTracker();
+    /** Counts of objects and bytes to and from this neighbor; also added to the totals of the server */
+    final TrafficStats stats;
+    /** Sends stats to the neighbor periodically, if it has asked for them; stopped once closed or unsubscribed */
+    private StatsStream statsStream;
     private boolean senderFinished;
     private boolean receiverFinished;
-    /** Please do not call the send method of this sender directly, even within this class, except in the one dedicated place */
-    private NonBlockingSender sender;
-    private BusinessObjectReader reader;
     private final ReaderListener readerListener;        
-    Subscriptions subscriptions = new Subscriptions();        
-    boolean closed;
-    String routingId;  // primary routing id of the neighbor (it is possibly believed that a node can have plurality of routing ids)
+    volatile Subscriptions subscriptions = new Subscriptions();        
+    volatile boolean closed;
+    volatile String routingId;  // primary routing id of the neighbor (it is possibly believed that a node can have plurality of routing ids)
 
     /** actual name of neighbor program, not including user or addr */
     String neighborName;
@@ -59,23 +80,24 @@ class NeighborConnection implements NonBlockingSender.Listener {
     
     /** services implemented by neighbor */
     LinkedHashSet<String> services = new LinkedHashSet<String>();
-    Role role;
+    volatile Role role;
     
 
     
     
-    /** Creates sender, but not yet reader. Reader must be created later by calling {@link #startReaderThread()} */
-    NeighborConnection(ABBOEServer abboeServer, Socket socket) throws IOException {
+    /** Starts sending, but not yet reading. Reading must be started later by calling {@link #startReaderThread()} */
+    NeighborConnection(ABBOEServer abboeServer, NeighborTransport transport) throws IOException {
         this.abboeServer = abboeServer;
 		senderFinished = false;
         receiverFinished = false;
-        this.socket = socket;
-        addr = socket.getRemoteSocketAddress().toString();
+        this.transport = transport;
+        stats = new TrafficStats(abboeServer.stats);
+        addr = transport.getRemoteAddress();
         initName();
-        is = new BufferedInputStream(socket.getInputStream());
-        os = socket.getOutputStream();
-        sender = new NonBlockingSender(socket, this);
-        sender.setName(name);
+        sendQueue = new SendQueue(abboeServer.sendQueueObjects, abboeServer.sendQueueBytes, abboeServer.overloadPolicy, sendQueueListener);
+        sendQueue.recordWaitTimes(abboeServer.enqueueToWrite);
+        transport.startSending(sendQueue, this);
+        transport.setName(name);
         readerListener = new ReaderListener(this);
         closed = false;
         
@@ -104,15 +126,13 @@ class NeighborConnection implements NonBlockingSender.Listener {
     public synchronized void setNeighborName(String neighborName) {
         this.neighborName = neighborName;
         initName();
-        sender.setName("sender-"+this.name);
-        reader.setName("reader-"+this.name);
+        transport.setName(this.name);
     }
                                
     synchronized void setUser(String user) {
         this.user = user;
         initName();
-        sender.setName("sender-"+name);
-        reader.setName("reader-"+name);
+        transport.setName(name);
     }
 
 
@@ -130,7 +150,8 @@ class NeighborConnection implements NonBlockingSender.Listener {
     	
     	// peerInfo.getAddress();
     	this.routingId = peerInfo.getRoutingId();
-    	this.subscriptions =  peerInfo.getSubsciptions();
+    	this.subscriptions = peerInfo.getSubsciptions();
+    	abboeServer.neighbors.refresh();
     	
     }
     
@@ -138,7 +159,7 @@ class NeighborConnection implements NonBlockingSender.Listener {
      * Send a warning message to a neighbor (natures=[warning,message], contenttype=plaintext, sender=java-A.B.B.O.E.) 
      * Sending is not conditional on subscriptions (they should be checked by this point if needed).
      */
-    private void sendWarning(String text) {
+    void sendWarning(String text) {
         BusinessObject reply = BOB.newBuilder()
                 .natures("message", "warning")
                 .attribute("to", this.routingId)
@@ -147,8 +168,8 @@ class NeighborConnection implements NonBlockingSender.Listener {
         send(reply);
     }    
            
-    Socket getSocket() {
-    	return socket;
+    NeighborTransport getTransport() {
+    	return transport;
     }
     
     /**
@@ -213,13 +234,32 @@ class NeighborConnection implements NonBlockingSender.Listener {
     /**
      * Put object to queue of messages to be sent (to this one client) and return immediately.
      * Sending is not conditional on subscriptions or routing (they should be checked by this point if needed).
-     * Assume send queue has unlimited capacity.
+     * The send queue is bounded; if it is full, something is dropped according to the {@link OverloadPolicy} 
+     * of this neighbor.
      */
     void send(BusinessObject bo) {
+        send(OutboundPacket.encode(bo));
+    }
+    
+    /**
+     * Put an already encoded object to the send queue, as for {@link #send(BusinessObject)}.
+     * The same packet may be shared by any number of neighbors.
+     */
+    void send(OutboundPacket packet) {
+        send(packet, false);
+    }
+
+    /**
+     * @param replayed packet is replayed from the object log, and thus not held back by the replay 
+     * @return true if packet was queued
+     */
+    private boolean send(OutboundPacket packet, boolean replayed) {
+      BusinessObject bo = packet.bo;
       if (senderFinished) {
           this.abboeServer.log.warn("No more sending business for client "+this);
-          return;
+          return false;
       }
+      stats.queued(packet);
 
       if (bo.hasNature("error")) {
           this.abboeServer.log.error("Sending to "+this+" : "+bo);
@@ -231,33 +271,313 @@ class NeighborConnection implements NonBlockingSender.Listener {
           this.abboeServer.log.info("Sending to: "+this+" : "+bo);
       }
       
-      try {
-          sender.send(bo.getMetadata().toString().getBytes("UTF-8"), false);
-          byte[] payload = bo.getPayload();
-          if (payload != null) {              
-              sender.send(Biomine3000Utils.NULL_BYTE_ARRAY, false);                 
-              sender.send(bo.getPayload(), true);
-          }
-          else {
-              sender.send(Biomine3000Utils.NULL_BYTE_ARRAY, true);
-          }
+      if (!replayed && !packet.control && hold(packet)) {
+          return false;
       }
-      catch (IOException e) {
-          this.abboeServer.log.error("Failed sending to client "+this, e);
-          doSenderFinished();
+      if (!sendQueue.offer(packet)) {
+          return false;
       }
+      transport.packetQueued();
+      return true;
   }
+    
+    void setOverloadPolicy(OverloadPolicy policy) {
+        sendQueue.setPolicy(policy);
+    }
+    
+    SendQueue getSendQueue() {
+        return sendQueue;
+    }
+    
+    /** @return true if packet was put on hold (or dropped from there) for the duration of a replay */
+    private boolean hold(OutboundPacket packet) {
+        if (replayHold == null) {
+            return false;
+        }
+        synchronized (replayLock) {
+            if (replayHold == null) {
+                return false;
+            }
+            replayHold.offer(packet);
+            return true;
+        }
+    }
+    
+    /** 
+     * Start holding back live content, until {@link #replay(ObjectLog.Reader)} or {@link #releaseHold()}. 
+     * The hold is bounded like the send queue itself.
+     */
+    void holdForReplay() {
+        synchronized (replayLock) {
+            if (replayHold == null) {
+                replayHoldOverflowed = false;
+                replayHold = new SendQueue(abboeServer.sendQueueObjects, abboeServer.sendQueueBytes, sendQueue.getPolicy(), 
+                                           new ReplayHoldListener());
+            }
+        }
+    }
+    
+    boolean isHoldingForReplay() {
+        return replayHold != null;
+    }
+    
+    /**
+     * Send logged content read by reader, as far as it passes the subscriptions of the neighbor and has not been routed
+     * through it already, and then whatever live content has been held meanwhile. Replaying happens in a thread of its own, 
+     * which only reads from the log as fast as the neighbor takes the objects, so as not to fill the send queue. 
+     */
+    void replay(ObjectLog.Reader reader) {
+        Thread replayThread = abboeServer.threadMode.newThread("replay-" + name, new Runnable() {
+            public void run() {
+                int replayed = 0;
+                try {
+                    ObjectLog.Record record;
+                    while (!senderFinished && !sendQueue.isStopRequested() && (record = reader.next()) != null) {
+                        BusinessObject bo = parseLogged(record);
+                        if (bo == null || !subscriptions.pass(bo)) {
+                            continue;
+                        }
+                        if (!sendQueue.awaitHalfEmpty()) {
+                            return;
+                        }
+                        if (send(OutboundPacket.encode(bo), true)) {
+                            replayed++;
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    error("Failed reading object log for replay", e);
+                }
+                catch (InterruptedException e) {
+                    error("Replay interrupted", e);
+                }
+                finally {
+                    log("Replayed " + replayed + " objects up to log offset " + reader.getOffset());
+                    try {
+                        reader.close();
+                    }
+                    catch (IOException e) {
+                        // nothing more to read anyway
+                    }
+                    releaseHold();
+                }
+            }
+        });
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+    
+    /** @return null if object should not be replayed to this neighbor */
+    private BusinessObject parseLogged(ObjectLog.Record record) {
+        byte[] bytes = record.bytes;
+        int nul = 0;
+        while (nul < bytes.length && bytes[nul] != 0) {
+            nul++;
+        }
+        try {
+            BusinessObjectMetadata meta = BusinessObjectMetadata.decode(ByteBuffer.wrap(bytes, 0, nul));
+            List<String> route = meta.getList("route");
+            // objects sent to a particular neighbor were for that very connection only
+            if (meta.hasKey("to") || route != null && route.contains(routingId)) {
+                return null;
+            }
+            BOB builder = BOB.newBuilder().metadata(meta);
+            if (meta.hasPayload()) {
+                builder.payload(Arrays.copyOfRange(bytes, Math.min(nul + 1, bytes.length), bytes.length));
+            }
+            return builder.build();
+        }
+        catch (RuntimeException e) {
+            error("Skipping unreadable object at offset " + record.offset + " of object log", e);
+            return null;
+        }
+    }
+    
+    /** Stop holding back live content, sending whatever has been held meanwhile */
+    void releaseHold() {
+        SendQueue hold = replayHold;
+        if (hold == null) {
+            return;
+        }
+        // packets are moved one at a time, as sending to the send queue may need to notify its listener; live content
+        // keeps going to the hold until it is empty, so that order is kept
+        while (true) {
+            OutboundPacket packet;
+            synchronized (replayLock) {
+                packet = hold.poll();
+                if (packet == null) {
+                    replayHold = null;
+                    break;
+                }
+            }
+            sendQueue.offer(packet);
+            // reference of the hold
+            packet.discard();
+        }
+        transport.packetQueued();
+        if (hold.getDroppedObjects() > 0) {
+            log("Dropped " + hold.getDroppedObjects() + " live objects while replaying");
+        }
+        if (replayHoldOverflowed) {
+            sendQueueListener.overflow();
+        }
+    }
+    
+    /** Overflow of the hold is only handled after the replay, outside the lock of the hold */
+    private class ReplayHoldListener implements SendQueue.Listener {
+        @Override
+        public void dropped(OutboundPacket packet) {
+            sendQueueListener.dropped(packet);
+        }
+
+        @Override
+        public void overflow() {
+            replayHoldOverflowed = true;
+        }
+    }
+    
+    /** Reacts to the send queue being full */
+    private class SendQueueListener implements SendQueue.Listener {
+        @Override
+        public void dropped(OutboundPacket packet) {
+            stats.dropped(packet);
+            long now = System.currentTimeMillis();
+            synchronized (sendQueue) {
+                if (now - lastDropWarningTime < DROP_WARNING_INTERVAL_MILLIS) {
+                    return;
+                }
+                lastDropWarningTime = now;
+            }
+            
+            String text = "Send queue full, dropped " + sendQueue.getDroppedObjects() + " objects (" + sendQueue.getDroppedBytes() + 
+                          " bytes) so far; overload policy: " + sendQueue.getPolicy();
+            log.warn("{}: {}", NeighborConnection.this, text);
+            if (role == Role.CLIENT) {
+                BusinessObject warning = BOB.newBuilder()
+                        .natures("message", "warning")
+                        .attribute("to", routingId)
+                        .attribute("sender", abboeServer.getServerAddress().getName())
+                        .payload(text).build();
+                if (sendQueue.offerUnbounded(OutboundPacket.encode(warning))) {
+                    transport.packetQueued();
+                }
+            }
+        }
+
+        @Override
+        public void overflow() {
+            log.warn("{}: send queue full, disconnecting slow consumer", NeighborConnection.this);
+            sendQueue.clear();
+            transport.requestStop();
+            forceClose();
+        }
+    }
 
     
     synchronized void registerServices(List<String> names) {
         services.addAll(names);
     }
 
+    /** Subscription received, so no need to remind about it */
+    void setSubscribed() {
+        subscribed = true;
+        if (subscriptionDeadline != null) {
+            subscriptionDeadline.cancel();
+        }
+    }
+
+    private void cancelTimeouts() {
+        if (subscriptionDeadline != null) {
+            subscriptionDeadline.cancel();
+        }
+        if (closeDeadline != null) {
+            closeDeadline.cancel();
+        }
+        if (pingCheck != null) {
+            pingCheck.cancel();
+        }
+        stopStatsStream();
+    }
+
+    /** Send stats every interval seconds until stopped or closed, replacing any earlier stream */
+    synchronized void streamStats(String requestId, int interval, boolean reset) {
+        stopStatsStream();
+        statsStream = new StatsStream(requestId, interval, reset);
+        statsStream.run();
+    }
+
+    synchronized void stopStatsStream() {
+        if (statsStream != null) {
+            statsStream.stop();
+            statsStream = null;
+        }
+    }
+
+    private class StatsStream implements Runnable {
+        private final String requestId;
+        private final int interval;
+        private final boolean reset;
+        private volatile boolean stopped;
+        private volatile WheelTimer.Timeout next;
+
+        StatsStream(String requestId, int interval, boolean reset) {
+            this.requestId = requestId;
+            this.interval = interval;
+            this.reset = reset;
+        }
+
+        /** Initially in a reader thread, then in the timer thread */
+        @Override
+        public void run() {
+            if (stopped || closed) {
+                return;
+            }
+            send(abboeServer.makeStatsReply(requestId, "subscribe", reset));
+            next = abboeServer.timer.schedule(this, interval, TimeUnit.SECONDS);
+            if (stopped) {
+                // stopped while scheduling
+                next.cancel();
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            if (next != null) {
+                next.cancel();
+            }
+        }
+    }
+
+    private void schedulePingCheck() {
+        pingCheck = abboeServer.timer.schedule(() -> checkPing(), abboeServer.pingInterval, TimeUnit.SECONDS);
+    }
+
+    /** In the timer thread, once every ping interval */
+    private void checkPing() {
+        if (closed) {
+            return;
+        }
+        switch (ping.check(abboeServer.pingInterval, TimeUnit.SECONDS, abboeServer.pingMisses, abboeServer.evictUnanswering)) {
+        case EVICT:
+            error("No reply to " + ping.getMissed() + " pings in a row, evicting", null);
+            // closing may block for a while
+            abboeServer.threadMode.start("evict-" + name, () -> forceClose());
+            return;
+        case PING:
+            send(BOB.newBuilder().event(PING).attribute("id", ping.getPendingId()).build());
+            break;
+        case NONE:
+            break;
+        }
+        schedulePingCheck();
+    }
+
+    /** Start reading objects from the neighbor (in a dedicated reader thread, if using the classic transport) */
     void startReaderThread() {
-        reader = new BusinessObjectReader(is, readerListener, name);
-        Thread readerThread = new Thread(reader);
-        readerThread.setName("reader-" + name);
-        readerThread.start();
+        transport.startReading(readerListener);
+        if (abboeServer.pingInterval > 0) {
+            schedulePingCheck();
+        }
     }
 
     /**
@@ -269,19 +589,19 @@ class NeighborConnection implements NonBlockingSender.Listener {
             error("Attempting to close a client multiple times", null);
         }
         log("Forcing closing of connection with client: "+this);
+        cancelTimeouts();
 
         try {
-            // closing socket also closes streams if needed
-            socket.close();
+            transport.close();
         }
         catch (IOException e) {
             error("Failed closing socket", e);
         }
 
         synchronized(this.abboeServer) {
-            this.abboeServer.neighbors.remove(this);
+            int remaining = this.abboeServer.neighbors.remove(this);
             closed = true;
-            if (this.abboeServer.getState()== State.SHUTTING_DOWN && this.abboeServer.neighbors.size() == 0) {
+            if (this.abboeServer.getState()== State.SHUTTING_DOWN && remaining == 0) {
                 // last neighbor closed and we are shutting down, finalize shutdown sequence...
                 this.abboeServer.log.info("No more neighbors, finalizing shutdown sequence...");
                 this.abboeServer.finalizeShutdownSequence();
@@ -306,20 +626,16 @@ class NeighborConnection implements NonBlockingSender.Listener {
     private void doClose() {
         if (closed) {
             error("Attempting to close a connection with neighbor " + this + " multiple times", null);
+            return;
         }
 
         log("Closing connection with "+this.role+": "+this);
+        cancelTimeouts();
 
-        try {
-            os.flush();
-        }
-        catch (IOException e) {
-            // let's not bother to even log the exception at this stage
-        }
+        transport.flush();
 
         try {
-            // closing socket also closes streams if needed
-            socket.close();
+            transport.close();
         }
         catch (IOException e) {
             // let's not bother to even log the exception at this stage
@@ -327,9 +643,9 @@ class NeighborConnection implements NonBlockingSender.Listener {
 
         synchronized(this.abboeServer) {
         	// TODO: remove from peer manager; or better, should somehow unify PeetManager and neighbors list
-            this.abboeServer.neighbors.remove(this);
+            int remaining = this.abboeServer.neighbors.remove(this);
             closed = true;
-            if (this.abboeServer.getState() == State.SHUTTING_DOWN && this.abboeServer.neighbors.size() == 0) {
+            if (this.abboeServer.getState() == State.SHUTTING_DOWN && remaining == 0) {
                 // last neighbor closed, no more neighbors, finalize shutdown sequence...
                 this.abboeServer.log.info("No more neighbors, finalizing shutdown sequence...");
                 this.abboeServer.finalizeShutdownSequence();
@@ -339,12 +655,18 @@ class NeighborConnection implements NonBlockingSender.Listener {
         this.abboeServer.sendServerGeneratedObject(makeRoutingDisconnectEvent());
     }
         
-    /** Implement {@link NonBlockingSender.Listener#senderFinished() */
+    /** Implement {@link NeighborTransport.SenderListener#senderFinished() */
     @Override
     public void senderFinished() {
         doSenderFinished();
     }
 
+    /** Implement {@link NeighborTransport.SenderListener#batchWritten} */
+    @Override
+    public void batchWritten(int packets, int bytes, NeighborTransport.FlushReason reason) {
+        stats.batchWritten(packets, bytes, reason);
+    }
+
     /**
      * Initiate shutting down of proceedings with this neighbor.
      *
@@ -360,7 +682,7 @@ class NeighborConnection implements NonBlockingSender.Listener {
             send(notification);
         }
 
-        sender.requestStop();
+        transport.requestStop();
     }
 
     private synchronized void doSenderFinished() {
@@ -373,7 +695,7 @@ class NeighborConnection implements NonBlockingSender.Listener {
         senderFinished = true;
 
         try {
-            socket.shutdownOutput();
+            transport.shutdownOutput();
         }
         catch (IOException e) {
             this.abboeServer.log.error("Failed closing socket output after finishing neighbor", e);
@@ -393,7 +715,7 @@ class NeighborConnection implements NonBlockingSender.Listener {
         }
 
         // request stop of neighbor
-        sender.requestStop();
+        transport.requestStop();
 
         receiverFinished = true;
 
@@ -424,8 +746,11 @@ class NeighborConnection implements NonBlockingSender.Listener {
         send(BOB.newBuilder().event(PONG).metadata(metadata).build());
     }
     
-    /** Listens to a single dedicated reader thread reading objects from the input stream of a single neighbor */
-    private class ReaderListener implements BusinessObjectReader.Listener {
+    /** 
+     * Listens to a single dedicated reader thread reading objects from the input stream of a single neighbor.
+     * Content with large payloads is forwarded cut-through, see {@link StreamedPayload}.
+     */
+    private class ReaderListener implements BusinessObjectReader.StreamingListener {
         NeighborConnection source;
 
         ReaderListener(NeighborConnection neighbor) {
@@ -434,6 +759,18 @@ class NeighborConnection implements NonBlockingSender.Listener {
 
         @Override
         public void objectReceived(BusinessObject bo) {
+            long receivedAt = System.nanoTime();
+            source.ping.objectReceived();
+            source.stats.received(payloadSize(bo));
+            // pings and pongs concern this hop only, so route is irrelevant
+            if (bo.isEvent(PING)) {
+                source.sendPong(bo);
+                return;
+            }
+            if (bo.isEvent(PONG) && source.ping.pongReceived(bo.getMetadata().getString("in-reply-to"))) {
+                return;
+            }
+            
             if (bo.isEvent()) {
                 BusinessObjectEventType et = bo.getMetadata().getKnownEvent();                                                                                                                                                                       
                                                 
@@ -461,7 +798,10 @@ class NeighborConnection implements NonBlockingSender.Listener {
                     if (et == SERVICES_REQUEST) {                                            
                         String serviceName = bo.getMetadata().getString("name");
                         
-                        if (serviceName.equals("clients")) {
+                        if (serviceName.equals("stats")) {
+                            abboeServer.handleStatsRequest(source, bo);
+                        }
+                        else if (serviceName.equals("clients")) {
                             String request = bo.getMetadata().getString("request");
                             
                             if (request.equals("join")) {
@@ -491,9 +831,8 @@ class NeighborConnection implements NonBlockingSender.Listener {
                     	abboeServer.handleRoutingSubscribeEvent(source, bo);
                         forwardEvent = false;
                     }
-                    else if (et == PING) {
-                        source.sendPong(bo);
-                        forwardEvent = false;
+                    else if (et == ROUTING_SUBSCRIBE_NOTIFICATION || et == ROUTING_DISCONNECT) {
+                        abboeServer.handleRemoteRoutingEvent(source, bo);
                     }
                     else {
                         log.info("Received known event which this ABBOE implementation does not handle: {}", bo);
@@ -506,15 +845,46 @@ class NeighborConnection implements NonBlockingSender.Listener {
                 // forward the event if needed 
                 if (forwardEvent) {
                     log.info("Forwarding event to all clients...");
-                    abboeServer.forward(bo, source);
+                    forward(bo, receivedAt);
                 }
             }
             else {
                 // not an event, assume mythical "content"
                 log.info("Received content: {}", Biomine3000Utils.formatBusinessObject(bo));
                                 
-                abboeServer.forward(bo, source);
+                forward(bo, receivedAt);
+            }
+        }
+
+        private int payloadSize(BusinessObject bo) {
+            if (bo instanceof StreamedObject) {
+                return ((StreamedObject)bo).payload.size;
+            }
+            byte[] payload = bo.getPayload();
+            return payload != null ? payload.length : 0;
+        }
+
+        private void forward(BusinessObject bo, long receivedAt) {
+            long start = System.nanoTime();
+            abboeServer.readToForward.record(start - receivedAt);
+            abboeServer.forward(bo, source);
+            source.stats.forwarded(System.nanoTime() - start);
+        }
+
+        @Override
+        public int getStreamingThreshold() {
+            return abboeServer.streamingThreshold;
+        }
+
+        @Override
+        public BusinessObjectReader.PayloadSink streamStarted(BusinessObjectMetadata metadata) {
+            if (metadata.isEvent() || metadata.getOfficialType() == null) {
+                // events are handled by the server itself, and unknown payloads are discarded anyway
+                return null;
             }
+            StreamedPayload payload = new StreamedPayload(metadata.getSize());
+            objectReceived(new StreamedObject(metadata, payload));
+            return payload;
         }
 
         @Override
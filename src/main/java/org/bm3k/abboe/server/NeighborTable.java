@@ -0,0 +1,153 @@
+package org.bm3k.abboe.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bm3k.abboe.common.SubscriptionIndex;
+
+/**
+ * The neighbors of an ABBOE. Readers (most importantly, {@link ABBOEServer#forward(org.bm3k.abboe.objects.BusinessObject, NeighborConnection)})
+ * never lock anything: they just obtain the current immutable {@link Snapshot}. Changes are serialized on this table,
+ * and each change publishes a new snapshot (copy-on-write), so membership changes are linearizable and any reader
+ * sees either all or none of a single change.
+ *
+ * Changes are expected to be rare compared to routing of objects, so the subscriptions of all neighbors are
+ * compiled into the snapshot on each change, as is an index of neighbors by routing id.
+ *
+ * Additionally, the table keeps routes learned from routing events passed on by neighboring servers: which server
+ * neighbor reaches a given remote node. These are not part of the snapshot, being resolved against the current one.
+ */
+class NeighborTable {
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<NeighborConnection>emptyList());
+    /** Routing id of remote node => routing id of the server neighbor reaching it */
+    private final ConcurrentHashMap<String, String> remoteRoutes = new ConcurrentHashMap<>();
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /** Current neighbors; the returned list is immutable */
+    List<NeighborConnection> list() {
+        return snapshot.neighbors;
+    }
+
+    int size() {
+        return snapshot.neighbors.size();
+    }
+
+    synchronized void add(NeighborConnection neighbor) {
+        List<NeighborConnection> neighbors = new ArrayList<>(snapshot.neighbors);
+        neighbors.add(neighbor);
+        snapshot = new Snapshot(neighbors);
+    }
+
+    /** Routes learned through the neighbor are forgotten as well. @return number of neighbors remaining after removal */
+    synchronized int remove(NeighborConnection neighbor) {
+        List<NeighborConnection> neighbors = new ArrayList<>(snapshot.neighbors);
+        neighbors.remove(neighbor);
+        snapshot = new Snapshot(neighbors);
+        String via = neighbor.routingId;
+        if (via != null && snapshot.withRoutingId(via).isEmpty()) {
+            remoteRoutes.values().removeIf(via::equals);
+        }
+        return neighbors.size();
+    }
+
+    /** 
+     * Publish a new snapshot after subscriptions, role or routing id of a neighbor have changed. 
+     * Routing decisions see all changes made to a neighbor before this call at once. 
+     */
+    synchronized void refresh() {
+        snapshot = new Snapshot(snapshot.neighbors);
+    }
+
+    /** Remote node with routingId has been announced by the server neighbor with routing id via */
+    void learnRoute(String routingId, String via) {
+        remoteRoutes.put(routingId, via);
+    }
+
+    /** 
+     * Remote node with routingId has disconnected, as reported by the server neighbor with routing id via. The route 
+     * is only forgotten if it was learned through that neighbor; a disconnect relayed late from elsewhere must not 
+     * drop a route the node has since established through another server.
+     */
+    void forgetRoute(String routingId, String via) {
+        remoteRoutes.remove(routingId, via);
+    }
+
+    /** 
+     * @return server neighbor in snapshot known to reach remote node with routingId; null if not known, or 
+     * if that neighbor is not in the snapshot. 
+     */
+    NeighborConnection routeTo(Snapshot snapshot, String routingId) {
+        String via = remoteRoutes.get(routingId);
+        if (via == null) {
+            return null;
+        }
+        for (NeighborConnection neighbor: snapshot.withRoutingId(via)) {
+            if (snapshot.roleOf(neighbor) == ABBOEServer.Role.SERVER) {
+                return neighbor;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return snapshot.neighbors.toString();
+    }
+
+    /** 
+     * Neighbors, and their routing ids, roles and subscriptions as they were when the snapshot was taken.
+     */
+    static class Snapshot {
+        final List<NeighborConnection> neighbors;
+        final SubscriptionIndex<NeighborConnection> subscriptionIndex;
+        private final Map<String, List<NeighborConnection>> byRoutingId = new HashMap<>();
+        private final Map<NeighborConnection, ABBOEServer.Role> roles = new HashMap<>();
+        private final List<NeighborConnection> servers;
+
+        private Snapshot(List<NeighborConnection> neighbors) {
+            this.neighbors = Collections.unmodifiableList(neighbors);
+            this.subscriptionIndex = new SubscriptionIndex<>(neighbors, neighbor -> neighbor.subscriptions);
+            List<NeighborConnection> servers = new ArrayList<>();
+            for (NeighborConnection neighbor: neighbors) {
+                String routingId = neighbor.routingId;
+                ABBOEServer.Role role = neighbor.role;
+                if (routingId != null) {
+                    List<NeighborConnection> withId = byRoutingId.get(routingId);
+                    if (withId == null) {
+                        withId = new ArrayList<>(1);
+                        byRoutingId.put(routingId, withId);
+                    }
+                    withId.add(neighbor);
+                }
+                roles.put(neighbor, role);
+                if (role == ABBOEServer.Role.SERVER) {
+                    servers.add(neighbor);
+                }
+            }
+            this.servers = Collections.unmodifiableList(servers);
+        }
+
+        /** return empty list if no such neighbors; the returned list is immutable */
+        List<NeighborConnection> withRoutingId(String routingId) {
+            List<NeighborConnection> result = byRoutingId.get(routingId);
+            return result != null ? Collections.unmodifiableList(result) : Collections.<NeighborConnection>emptyList();
+        }
+
+        /** return empty list if no connected servers; the returned list is immutable */
+        List<NeighborConnection> servers() {
+            return servers;
+        }
+        
+        /** Role of neighbor when the snapshot was taken */
+        ABBOEServer.Role roleOf(NeighborConnection neighbor) {
+            return roles.get(neighbor);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.bm3k.abboe.common.BusinessObjectReader;
+
+/**
+ * Moves bytes between this ABBOE and a single neighbor. The protocol-level lifecycle of the neighbor
+ * (subscriptions, routing, closing sequence) is managed by {@link NeighborConnection}; a transport just
+ * reads packets and writes bytes, using whatever threading model it sees fit.
+ *
+ * Notifications about received objects are delivered through a {@link BusinessObjectReader.Listener},
+ * with exactly the same contract as for a {@link BusinessObjectReader} reading a socket in a dedicated thread.
+ */
+interface NeighborTransport {
+
+    /** As obtained by getRemoteSocketAddress() */
+    String getRemoteAddress();
+
+    InetAddress getInetAddress();
+
+    int getPort();
+
+    /**
+     * Start sending packets from queue. Called exactly once, before any calls to {@link #packetQueued()}.
+     * @param listener to be notified once sending has finished, either due to {@link #requestStop()} or an error.
+     */
+    void startSending(SendQueue queue, SenderListener listener) throws IOException;
+
+    /** Start delivering received objects to listener. Called exactly once. */
+    void startReading(BusinessObjectReader.Listener listener);
+
+    /** Notify that a packet has been added to the send queue. Returns immediately. */
+    void packetQueued();
+
+    /** Send everything already in the send queue, then notify {@link SenderListener#senderFinished()}. */
+    void requestStop();
+
+    void shutdownOutput() throws IOException;
+
+    /** Try to write out anything still buffered. Failures are silently ignored. */
+    void flush();
+
+    /** Closing also closes input and output, if needed */
+    void close() throws IOException;
+
+    /** For diagnostics only (thread names and such) */
+    void setName(String name);
+
+    interface SenderListener {
+        /** Nothing more will be sent to the neighbor */
+        public void senderFinished();
+
+        /** Small packets have been written out together, with a single flush or gathering write */
+        public void batchWritten(int packets, int bytes, FlushReason reason);
+    }
+
+    /** Why a batch of small packets was written out */
+    enum FlushReason {
+        /** Enough bytes gathered */
+        SIZE,
+        /** Nothing more queued in time */
+        IDLE,
+        /** A bulk packet is to be written next */
+        LARGE
+    }
+}
@@ -0,0 +1,137 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small fixed pool of I/O threads, each multiplexing a share of the neighbors of an ABBOE
+ * using a dedicated {@link Selector}. Neighbors are assigned to threads in a round-robin fashion,
+ * and stay in the same thread for their whole lifetime, so that all reading and writing of a single
+ * {@link NioTransport} happens in a single thread.
+ */
+class NioSelectorPool {
+
+    private final Logger log = LoggerFactory.getLogger(NioSelectorPool.class);
+
+    private final IoThread[] ioThreads;
+    private final AtomicInteger nextThread = new AtomicInteger();
+    private volatile boolean running;
+
+    NioSelectorPool(int nThreads) throws IOException {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("Need at least one I/O thread, not " + nThreads);
+        }
+        ioThreads = new IoThread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            ioThreads[i] = new IoThread(i);
+        }
+    }
+
+    void start() {
+        running = true;
+        for (IoThread thread: ioThreads) {
+            thread.start();
+        }
+        log.info("Started {} I/O threads", ioThreads.length);
+    }
+
+    void shutdown() {
+        running = false;
+        for (IoThread thread: ioThreads) {
+            thread.selector.wakeup();
+        }
+    }
+
+    /** Assign a thread for a new channel */
+    IoThread nextIoThread() {
+        return ioThreads[(nextThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+    }
+
+    /** A single selector thread */
+    class IoThread extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private IoThread(int index) throws IOException {
+            this.selector = Selector.open();
+            setName("nio-" + index);
+            setDaemon(true);
+        }
+
+        /** Run task in this I/O thread. Returns immediately. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inThisThread() {
+            return Thread.currentThread() == this;
+        }
+
+        /** Must be called within this thread */
+        SelectionKey register(SocketChannel channel, int ops, NioTransport transport) throws ClosedChannelException {
+            return channel.register(selector, ops, transport);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // tasks queued by this thread itself while handling the previous keys did not wake up the selector
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+                }
+                catch (IOException e) {
+                    log.error("Select failed", e);
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException e) {
+                        log.error("Exception in I/O task", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioTransport transport = (NioTransport)key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        transport.handleReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        transport.handleWritable();
+                    }
+                }
+            }
+
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // no action possible
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bm3k.abboe.common.BusinessObjectReader;
+import org.bm3k.abboe.common.InvalidBusinessObjectException;
+import org.bm3k.abboe.common.PacketDispatcher;
+import org.bm3k.abboe.objects.PacketDecoder;
+import org.bm3k.abboe.server.NeighborTransport.FlushReason;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport on a non-blocking {@link SocketChannel}, served by one of the threads of a {@link NioSelectorPool}.
+ * No threads are dedicated to a single neighbor.
+ *
+ * All reading, writing and manipulation of the selection key happens in the I/O thread; other threads
+ * only ever touch the {@link SendQueue} and schedule tasks to the I/O thread.
+ */
+class NioTransport implements NeighborTransport {
+
+    private final Logger log = LoggerFactory.getLogger(NioTransport.class);
+
+    private static final int INITIAL_READ_BUFFER_SIZE = PacketDecoder.DEFAULT_INITIAL_BUFFER_SIZE;
+    /** Buffers per gathering write; three per small packet, so a burst of ~20 of them costs a single write */
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioSelectorPool.IoThread ioThread;
+    private final String addr;
+    private final InetAddress inetAddress;
+    private final int port;
+    private String name;
+
+    private SendQueue sendQueue;
+    /** Buffers taken from the send queue, but not yet completely written. Accessed in the I/O thread only. */
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    /** The last packet in flight is a bulk packet */
+    private boolean bulkInFlight;
+    /** Payload of the last packet in flight is being streamed; accessed in the I/O thread only */
+    private StreamedPayload.Cursor streamCursor;
+    /** Last chunk of the streamed payload taken from the cursor */
+    private ByteBuffer streamChunk;
+    /** Payload of the last packet in flight is in a payload store, to be written once everything before it has been */
+    private StoredPayload storedInFlight;
+    private long storedPosition;
+    /** Resumes writing when more of the streamed payload has arrived */
+    private final Runnable streamWakeUp;
+    /** true when the I/O thread has been asked to write, or it is waiting for the socket to become writable */
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile boolean senderFinished;
+    private SenderListener senderListener;
+
+    private SelectionKey key;
+    private BusinessObjectReader.Listener readerListener;
+    private boolean readerFinished;
+    private final PacketDecoder decoder = new PacketDecoder();
+    private PacketDispatcher dispatcher;
+    /** In read mode between calls to {@link #handleReadable()} */
+    private ByteBuffer readBuffer;
+
+    NioTransport(SocketChannel channel, NioSelectorPool pool) throws IOException {
+        this.channel = channel;
+        SocketAddress remoteAddress = channel.getRemoteAddress();
+        this.addr = remoteAddress.toString();
+        this.name = addr;
+        this.inetAddress = ((InetSocketAddress)remoteAddress).getAddress();
+        this.port = ((InetSocketAddress)remoteAddress).getPort();
+        channel.configureBlocking(false);
+        this.readBuffer = ByteBuffer.allocateDirect(INITIAL_READ_BUFFER_SIZE);
+        readBuffer.flip();
+        this.ioThread = pool.nextIoThread();
+        this.streamWakeUp = () -> ioThread.execute(() -> handleWritable());
+        ioThread.execute(() -> register());
+    }
+
+    private void register() {
+        try {
+            key = ioThread.register(channel, 0, this);
+        }
+        catch (ClosedChannelException e) {
+            log.warn("Channel closed before registering: {}", name);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return addr;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return inetAddress;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void startSending(SendQueue queue, SenderListener listener) {
+        this.sendQueue = queue;
+        this.senderListener = listener;
+    }
+
+    @Override
+    public void startReading(BusinessObjectReader.Listener listener) {
+        ioThread.execute(() -> {
+            readerListener = listener;
+            dispatcher = new PacketDispatcher(decoder, listener);
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    @Override
+    public void packetQueued() {
+        requestWrite();
+    }
+
+    @Override
+    public void requestStop() {
+        sendQueue.requestStop();
+        requestWrite();
+    }
+
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            ioThread.execute(() -> handleWritable());
+        }
+    }
+
+    /**
+     * Write as much as possible without blocking. Called in the I/O thread only. Packets are taken out
+     * of the send queue only when there is room in the gather array, so that the bounds of the queue
+     * stay meaningful.
+     *
+     * A streamed payload is written a chunk at a time as it arrives; while waiting for more of it, 
+     * writing is resumed by the payload instead of by the socket becoming writable. A stored payload is
+     * transferred straight from its file to the socket.
+     */
+    void handleWritable() {
+        if (senderFinished) {
+            return;
+        }
+        try {
+            while (true) {
+                if (streamCursor != null && (streamChunk == null || !streamChunk.hasRemaining())) {
+                    // the cursor may reuse the buffer of the previous chunk, so take the next one only once that has been written
+                    streamChunk = streamCursor.poll(inFlight.isEmpty() ? streamWakeUp : null);
+                    if (streamChunk != null) {
+                        inFlight.add(streamChunk);
+                    }
+                    else if (streamCursor.isDone()) {
+                        streamCursor.close();
+                        streamCursor = null;
+                        bulkInFlight = !inFlight.isEmpty();
+                    }
+                    else if (inFlight.isEmpty()) {
+                        // wait for the payload to arrive; writeRequested stays set until then
+                        setWriteInterest(false);
+                        return;
+                    }
+                }
+
+                if (storedInFlight != null && inFlight.isEmpty()) {
+                    storedPosition += storedInFlight.transferTo(storedPosition, storedInFlight.length - storedPosition, channel);
+                    if (storedPosition < storedInFlight.length) {
+                        // socket buffer full, wait until writable
+                        setWriteInterest(true);
+                        return;
+                    }
+                    storedInFlight.release();
+                    storedInFlight = null;
+                    bulkInFlight = false;
+                }
+
+                // do not take anything after a bulk packet, so that urgent packets queued meanwhile can overtake 
+                int batchPackets = 0;
+                int batchBytes = 0;
+                OutboundPacket packet = null;
+                while (!bulkInFlight && streamCursor == null && storedInFlight == null && inFlight.size() + 3 <= MAX_GATHER) {
+                    packet = sendQueue.poll();
+                    if (packet == null) {
+                        break;
+                    }
+                    if (packet.isUrgent()) {
+                        batchPackets++;
+                        batchBytes += packet.bufferedSize();
+                    }
+                    inFlight.add(ByteBuffer.wrap(packet.metadata));
+                    inFlight.add(ByteBuffer.wrap(OutboundPacket.NULL_BYTE));
+                    if (packet.payload != null) {
+                        inFlight.add(ByteBuffer.wrap(packet.payload));
+                    }
+                    else if (packet.streamed != null) {
+                        streamCursor = packet.streamed.open();
+                        streamChunk = null;
+                    }
+                    else if (packet.stored != null) {
+                        storedInFlight = packet.stored;
+                        storedPosition = 0;
+                    }
+                    bulkInFlight = !packet.isUrgent();
+                }
+                if (batchPackets > 0) {
+                    // no waiting for more here; whatever got queued while the previous write was pending goes together
+                    FlushReason reason = packet == null ? FlushReason.IDLE : packet.isUrgent() ? FlushReason.SIZE : FlushReason.LARGE;
+                    senderListener.batchWritten(batchPackets, batchBytes, reason);
+                }
+
+                if (!inFlight.isEmpty()) {
+                    int n = 0;
+                    long total = 0;
+                    for (ByteBuffer buf: inFlight) {
+                        gather[n++] = buf;
+                        total += buf.remaining();
+                        if (n == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(gather, 0, n);
+                    for (int i = 0; i < n; i++) {
+                        gather[i] = null;
+                    }
+                    while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                        inFlight.poll();
+                    }
+                    if (inFlight.isEmpty() && streamCursor == null && storedInFlight == null) {
+                        bulkInFlight = false;
+                    }
+                    if (written < total) {
+                        // socket buffer full, wait until writable
+                        setWriteInterest(true);
+                        return;
+                    }
+                    continue;
+                }
+
+                if (streamCursor != null || storedInFlight != null) {
+                    continue;
+                }
+
+                if (sendQueue.isDone()) {
+                    finishSending();
+                    return;
+                }
+
+                // nothing to write
+                setWriteInterest(false);
+                writeRequested.set(false);
+                if ((sendQueue.isEmpty() && !sendQueue.isStopRequested()) || !writeRequested.compareAndSet(false, true)) {
+                    // either nothing to do, or someone else already scheduled writing
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("Failed sending to " + name, e);
+            finishSending();
+        }
+    }
+
+    private void setWriteInterest(boolean on) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(on ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    private void finishSending() {
+        if (senderFinished) {
+            return;
+        }
+        senderFinished = true;
+        sendQueue.clear();
+        inFlight.clear();
+        if (streamCursor != null) {
+            streamCursor.close();
+            streamCursor = null;
+        }
+        if (storedInFlight != null) {
+            storedInFlight.release();
+            storedInFlight = null;
+        }
+        setWriteInterest(false);
+        senderListener.senderFinished();
+    }
+
+    /** Read whatever is available and deliver all complete objects. Called in the I/O thread only. */
+    void handleReadable() {
+        if (readerFinished) {
+            return;
+        }
+        try {
+            readBuffer = decoder.prepareForReading(readBuffer);
+            int n = channel.read(readBuffer);
+            readBuffer.flip();
+            if (n < 0) {
+                stopReading();
+                dispatcher.endOfStream(readBuffer);
+                readerListener.noMoreObjects();
+                return;
+            }
+            while (!readerFinished && dispatcher.dispatchNext(readBuffer)) {
+                // delivered an object or a chunk of payload
+            }
+        }
+        catch (IOException e) {
+            stopReading();
+            if (e.getMessage() != null && e.getMessage().equals("Connection reset")) {
+                readerListener.connectionReset();
+            }
+            else {
+                readerListener.handle(e);
+            }
+        }
+        catch (InvalidBusinessObjectException e) {
+            stopReading();
+            readerListener.handle(e);
+        }
+        catch (RuntimeException e) {
+            stopReading();
+            readerListener.handle(e);
+        }
+    }
+
+    private void stopReading() {
+        readerFinished = true;
+        dispatcher.failed();
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public void flush() {
+        // everything has already been written by the time sender has finished
+    }
+
+    @Override
+    public void close() throws IOException {
+        // also cancels the selection key
+        channel.close();
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,505 @@
+package org.bm3k.abboe.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, append-only log of the content forwarded by the server, so that a neighbor reconnecting after
+ * a while can be sent what it missed (see "replay-since" and "replay-offset" of routing/subscribe).
+ *
+ * Objects are numbered by their offset in the log, starting from 0. The log consists of segments, each named by
+ * the offset of its first object: a data file with the objects as sent over the wire (metadata, null byte, payload),
+ * and an index file with the position, length and logging time of each object in the data file.
+ *
+ * Appends are collected in memory and written out in batches; all files are synced to disk every sync interval by
+ * a background thread. A crash thus loses at most the last interval worth of objects, but never leaves a torn object
+ * in the log: on startup, the index of each segment is cut at the last entry whose data is all there (after a power
+ * loss, the index may well have reached the disk before the data), and the last segment is truncated to that. The
+ * oldest segments are deleted once the log exceeds its maximum size.
+ */
+final class ObjectLog {
+
+    private static final Logger log = LoggerFactory.getLogger(ObjectLog.class);
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int BATCH_SIZE = 1024 * 1024;
+    /** Position (long), length (int) and time (long) of an object */
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final String DATA_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path dir;
+    private final long maxBytes;
+    /** Oldest first; the last one is the one being appended to */
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    /** Rolled since the last sync, to be synced by the sync thread; appending never waits for the disk */
+    private final ArrayList<Segment> unsynced = new ArrayList<>();
+    private long nextOffset;
+    /** Logging times are kept increasing, even if the clock is not, to keep searching by time simple */
+    private long lastTime;
+    private final ByteBuffer dataBatch = ByteBuffer.allocate(BATCH_SIZE);
+    private final ByteBuffer indexBatch = ByteBuffer.allocate(64 * 1024);
+    private final Thread syncThread;
+    private boolean closed;
+
+    /** Opens an existing log in dir, or creates a new one; starts syncing every syncIntervalMillis */
+    ObjectLog(Path dir, long maxBytes, final long syncIntervalMillis) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+
+        ArrayList<Long> firstOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + INDEX_SUFFIX)) {
+            for (Path path: files) {
+                String name = path.getFileName().toString();
+                firstOffsets.add(Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length())));
+            }
+        }
+        Collections.sort(firstOffsets);
+        for (int i = 0; i < firstOffsets.size(); i++) {
+            segments.add(Segment.open(dir, firstOffsets.get(i), i == firstOffsets.size() - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(dir, 0));
+        }
+        Segment last = current();
+        nextOffset = last.firstOffset + last.count;
+        lastTime = last.lastTime;
+        log.info("Opened object log in " + dir + ": objects " + segments.get(0).firstOffset + "-" + nextOffset + " in " +
+                 segments.size() + " segments");
+
+        syncThread = new Thread("objectLogSync") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(syncIntervalMillis);
+                        if (!sync()) {
+                            return;
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    catch (IOException e) {
+                        log.error("Failed syncing object log", e);
+                    }
+                }
+            }
+        };
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    private Segment current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /** Offset to be given to the next object appended */
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    /** @return offset of the object in the log */
+    synchronized long append(BusinessObject bo) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer[] buffers = bo.toByteBuffers();
+        int length = 0;
+        for (ByteBuffer buf: buffers) {
+            length += buf.remaining();
+        }
+
+        Segment segment = current();
+        if (segment.size > 0 && segment.size + length > SEGMENT_SIZE) {
+            segment = roll();
+        }
+        if (length > dataBatch.remaining() || indexBatch.remaining() < INDEX_ENTRY_SIZE) {
+            writeBatch();
+        }
+        if (length > dataBatch.capacity()) {
+            // a large object goes to the file as is, its index entry still being batched
+            for (ByteBuffer buf: buffers) {
+                buf = buf.duplicate();
+                while (buf.hasRemaining()) {
+                    segment.data.write(buf);
+                }
+            }
+        }
+        else {
+            for (ByteBuffer buf: buffers) {
+                dataBatch.put(buf.duplicate());
+            }
+        }
+
+        lastTime = Math.max(lastTime, System.currentTimeMillis());
+        indexBatch.putLong(segment.size).putInt(length).putLong(lastTime);
+        segment.size += length;
+        segment.count++;
+        return nextOffset++;
+    }
+
+    /** Data before index, so that an index entry never refers to data not yet written */
+    private void writeBatch() throws IOException {
+        Segment segment = current();
+        dataBatch.flip();
+        while (dataBatch.hasRemaining()) {
+            segment.data.write(dataBatch);
+        }
+        dataBatch.clear();
+        indexBatch.flip();
+        while (indexBatch.hasRemaining()) {
+            segment.index.write(indexBatch);
+        }
+        indexBatch.clear();
+    }
+
+    /** Finish the current segment, start a new one, and make room for it if needed */
+    private Segment roll() throws IOException {
+        writeBatch();
+        unsynced.add(current());
+        Segment segment = Segment.create(dir, nextOffset);
+        segments.add(segment);
+
+        long total = 0;
+        for (Segment s: segments) {
+            total += s.size;
+        }
+        while (total > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.remove(0);
+            total -= oldest.size;
+            oldest.delete();
+            unsynced.remove(oldest);
+            log.info("Deleted objects " + oldest.firstOffset + "-" + (oldest.firstOffset + oldest.count) + " from object log");
+        }
+        return segment;
+    }
+
+    /**
+     * Write out whatever has been appended, and sync it to disk, along with segments rolled since the last sync. 
+     * The syncing itself happens outside the lock, not to block appending meanwhile.
+     *
+     * @return false if log has been closed
+     */
+    private boolean sync() throws IOException {
+        List<Segment> toSync;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            writeBatch();
+            toSync = new ArrayList<>(unsynced);
+            toSync.add(current());
+            unsynced.clear();
+        }
+        for (Segment segment: toSync) {
+            try {
+                segment.data.force(false);
+                segment.index.force(false);
+            }
+            catch (ClosedChannelException e) {
+                // segment deleted meanwhile
+            }
+        }
+        return true;
+    }
+
+    /** Sync and close; further appends fail */
+    void close() {
+        syncThread.interrupt();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                writeBatch();
+            }
+            catch (IOException e) {
+                log.error("Failed writing object log", e);
+            }
+            for (Segment segment: segments) {
+                segment.close();
+            }
+            closed = true;
+        }
+    }
+
+    /**
+     * Objects from offset up to those appended so far. If offset is older than anything still kept,
+     * reading starts from the oldest object kept.
+     */
+    synchronized Reader readFrom(long offset) throws IOException {
+        writeBatch();
+        return new Reader(snapshot(), offset, nextOffset);
+    }
+
+    /** Objects logged at or after time, up to those appended so far */
+    Reader readSince(long timeMillis) throws IOException {
+        List<SegmentInfo> snapshot;
+        long end;
+        synchronized (this) {
+            writeBatch();
+            snapshot = snapshot();
+            end = nextOffset;
+        }
+        // the segment to start from is the last one starting before time, and within it, times are increasing
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            SegmentInfo info = snapshot.get(i);
+            try (FileChannel index = FileChannel.open(info.indexPath, StandardOpenOption.READ)) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                int lo = 0;
+                int hi = info.count;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    readFully(index, entry, (long)mid * INDEX_ENTRY_SIZE);
+                    if (entry.getLong(12) < timeMillis) {
+                        lo = mid + 1;
+                    }
+                    else {
+                        hi = mid;
+                    }
+                }
+                if (lo > 0 || i == 0) {
+                    return new Reader(snapshot, info.firstOffset + lo, end);
+                }
+            }
+            catch (NoSuchFileException e) {
+                // deleted meanwhile, so everything after time is in later segments
+                return new Reader(snapshot, info.firstOffset + info.count, end);
+            }
+        }
+        return new Reader(snapshot, end, end);
+    }
+
+    private List<SegmentInfo> snapshot() {
+        ArrayList<SegmentInfo> snapshot = new ArrayList<>(segments.size());
+        for (Segment segment: segments) {
+            snapshot.add(new SegmentInfo(segment));
+        }
+        return snapshot;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Object log truncated: " + channel);
+            }
+        }
+        buf.flip();
+    }
+
+    /** A logged object */
+    static final class Record {
+        final long offset;
+        final long time;
+        /** As sent over the wire */
+        final byte[] bytes;
+
+        private Record(long offset, long time, byte[] bytes) {
+            this.offset = offset;
+            this.time = time;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Reads objects one by one, using files of its own, so that appending may continue meanwhile. Segments deleted
+     * before the reader gets to them are skipped.
+     */
+    static final class Reader implements AutoCloseable {
+        private final List<SegmentInfo> segments;
+        private final long end;
+        private long offset;
+        private int segmentIndex = -1;
+        private FileChannel data;
+        private FileChannel index;
+        private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+        private Reader(List<SegmentInfo> segments, long offset, long end) {
+            this.segments = segments;
+            this.offset = Math.max(offset, segments.get(0).firstOffset);
+            this.end = end;
+        }
+
+        /** Offset of the next object to be read */
+        long getOffset() {
+            return offset;
+        }
+
+        /** Offset of the first object not to be read, i.e. the next offset of the log when the reader was created */
+        long getEnd() {
+            return end;
+        }
+
+        /** @return null when done */
+        Record next() throws IOException {
+            while (offset < end) {
+                if (data == null) {
+                    SegmentInfo info = segments.get(++segmentIndex);
+                    if (offset >= info.firstOffset + info.count) {
+                        continue;
+                    }
+                    try {
+                        data = FileChannel.open(info.dataPath, StandardOpenOption.READ);
+                        index = FileChannel.open(info.indexPath, StandardOpenOption.READ);
+                    }
+                    catch (NoSuchFileException e) {
+                        log.info("Objects " + info.firstOffset + "-" + (info.firstOffset + info.count) +
+                                 " deleted from object log before read");
+                        closeFiles();
+                        offset = info.firstOffset + info.count;
+                        continue;
+                    }
+                    offset = Math.max(offset, info.firstOffset);
+                }
+                SegmentInfo info = segments.get(segmentIndex);
+                if (offset >= info.firstOffset + info.count) {
+                    closeFiles();
+                    continue;
+                }
+                readFully(index, entry, (offset - info.firstOffset) * INDEX_ENTRY_SIZE);
+                long position = entry.getLong(0);
+                int length = entry.getInt(8);
+                long time = entry.getLong(12);
+                ByteBuffer bytes = ByteBuffer.allocate(length);
+                while (bytes.hasRemaining()) {
+                    if (data.read(bytes, position + bytes.position()) < 0) {
+                        throw new EOFException("Object log truncated: " + info.dataPath);
+                    }
+                }
+                return new Record(offset++, time, bytes.array());
+            }
+            return null;
+        }
+
+        private void closeFiles() throws IOException {
+            if (data != null) {
+                data.close();
+                data = null;
+            }
+            if (index != null) {
+                index.close();
+                index = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeFiles();
+        }
+    }
+
+    /** What a reader needs to know of a segment, as of the time the reader was created */
+    private static final class SegmentInfo {
+        final Path dataPath;
+        final Path indexPath;
+        final long firstOffset;
+        final int count;
+
+        SegmentInfo(Segment segment) {
+            this.dataPath = segment.dataPath;
+            this.indexPath = segment.indexPath;
+            this.firstOffset = segment.firstOffset;
+            this.count = segment.count;
+        }
+    }
+
+    /** Files of a single segment; guarded by the log */
+    private static final class Segment {
+        final Path dataPath;
+        final Path indexPath;
+        final long firstOffset;
+        final FileChannel data;
+        final FileChannel index;
+        /** Including batched data not yet written */
+        long size;
+        int count;
+        /** Time of last object, if any */
+        long lastTime;
+
+        private Segment(Path dir, long firstOffset, StandardOpenOption... options) throws IOException {
+            String name = String.format("%020d", firstOffset);
+            this.dataPath = dir.resolve(name + DATA_SUFFIX);
+            this.indexPath = dir.resolve(name + INDEX_SUFFIX);
+            this.firstOffset = firstOffset;
+            this.data = FileChannel.open(dataPath, options);
+            this.index = FileChannel.open(indexPath, options);
+        }
+
+        static Segment create(Path dir, long firstOffset) throws IOException {
+            return new Segment(dir, firstOffset, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        /** 
+         * Entries of the index referring to data not there (lost in a crash) are dropped. 
+         * @param last the one to be appended to; possibly left incomplete by a crash, so truncated to what is indexed 
+         */
+        static Segment open(Path dir, long firstOffset, boolean last) throws IOException {
+            Segment segment = new Segment(dir, firstOffset, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long indexSize = segment.index.size();
+            long dataSize = segment.data.size();
+            int indexed = (int)(indexSize / INDEX_ENTRY_SIZE);
+            segment.count = indexed;
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            while (segment.count > 0) {
+                readFully(segment.index, entry, (long)(segment.count - 1) * INDEX_ENTRY_SIZE);
+                if (entry.getLong(0) + entry.getInt(8) <= dataSize) {
+                    segment.size = entry.getLong(0) + entry.getInt(8);
+                    segment.lastTime = entry.getLong(12);
+                    break;
+                }
+                segment.count--;
+            }
+            if (segment.count < indexed) {
+                log.warn("Object log segment " + segment.dataPath + " shorter than its index, dropped the last " + 
+                         (indexed - segment.count) + " of " + indexed + " objects");
+            }
+            if (last || segment.count < indexed) {
+                segment.index.truncate((long)segment.count * INDEX_ENTRY_SIZE);
+            }
+            if (last) {
+                segment.data.truncate(segment.size);
+            }
+            segment.index.position(segment.index.size());
+            segment.data.position(segment.data.size());
+            return segment;
+        }
+
+        void close() {
+            try {
+                data.close();
+                index.close();
+            }
+            catch (IOException e) {
+                log.warn("Failed closing object log segment " + dataPath, e);
+            }
+        }
+
+        void delete() {
+            close();
+            try {
+                Files.deleteIfExists(dataPath);
+                Files.deleteIfExists(indexPath);
+            }
+            catch (IOException e) {
+                log.warn("Failed deleting object log segment " + dataPath, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.bm3k.abboe.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectEventType;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.json.JSONArray;
+
+/**
+ * A business object encoded for sending: metadata as UTF-8 bytes, and the payload, to be sent separated by
+ * the null byte. Both arrays are shared by reference, with the object itself (the metadata caches its encoded form)
+ * and between all packets made from the same object, and must thus never be modified.
+ *
+ * The payload of a {@link StreamedObject} is not in memory, but is sent from a {@link StreamedPayload} 
+ * as it arrives; the payload of a {@link StoredObject} is sent from its {@link PayloadStore}.
+ */
+final class OutboundPacket {
+
+    /** The object this packet was encoded from; its metadata may differ in the route attribute. For logging. */
+    final BusinessObject bo;
+    /** Metadata json, without the null byte */
+    final byte[] metadata;
+    /** Null if no payload, or payload is streamed or stored */
+    final byte[] payload;
+    /** Non-null if payload is streamed */
+    final StreamedPayload streamed;
+    /** Non-null if payload is in a payload store */
+    final StoredPayload stored;
+    /** 
+     * Known events (see {@link BusinessObjectEventType}) are needed for the protocol itself to work, and are thus never 
+     * dropped; only small ones, though, so that a client cannot bypass the bounds of send queues with payloads sent 
+     * as events. Any other event is content as far as queueing is concerned.
+     */
+    final boolean control;
+    /** 
+     * When dropping objects by priority, objects with smaller priority are dropped first: 
+     * index of the most important nature in {@link #DROP_PRIORITY_NATURES}, plus one; zero for none of those.
+     */
+    final int dropPriority;
+    
+    /** Natures in increasing order of importance */
+    static final String[] DROP_PRIORITY_NATURES = { "message", "warning", "error" };
+    
+    /** 
+     * System.nanoTime() of the packet having been put in a send queue, for measuring time spent in queue. A packet
+     * shared between destinations is queued for all of them within a single forward, so the latest will do.
+     */
+    volatile long queuedAt;
+    
+    /** Separates metadata and payload; never to be modified */
+    static final byte[] NULL_BYTE = { 0 };
+    
+    /** Objects no larger than this (in total) are sent in the urgent lane, see {@link #isUrgent()} */
+    static final int SMALL_OBJECT_BYTES = 8 * 1024;
+
+    /** Known events with a payload larger than this are not {@link #control} */
+    static final int MAX_CONTROL_PAYLOAD_BYTES = 16 * 1024;
+
+    private OutboundPacket(BusinessObject bo, byte[] metadata, byte[] payload, StreamedPayload streamed, StoredPayload stored, 
+                           boolean control, int dropPriority) {
+        this.bo = bo;
+        this.metadata = metadata;
+        this.payload = payload;
+        this.streamed = streamed;
+        this.stored = stored;
+        this.control = control;
+        this.dropPriority = dropPriority;
+    }
+
+    static OutboundPacket encode(BusinessObject bo) {
+        byte[] payload = payloadOf(bo);
+        StreamedPayload streamed = streamedPayloadOf(bo);
+        StoredPayload stored = storedPayloadOf(bo);
+        return new OutboundPacket(bo, bo.getMetadata().toBytes(), payload, streamed, stored, 
+                                  isControl(bo, payload, streamed, stored), dropPriorityOf(bo));
+    }
+
+    /** Streamed and stored payloads are large by definition */
+    private static boolean isControl(BusinessObject bo, byte[] payload, StreamedPayload streamed, StoredPayload stored) {
+        return bo.getMetadata().getKnownEvent() != null && streamed == null && stored == null
+               && (payload == null || payload.length <= MAX_CONTROL_PAYLOAD_BYTES);
+    }
+    
+    private static int dropPriorityOf(BusinessObject bo) {
+        Set<String> natures = bo.getMetadata().getNatures();
+        for (int i = DROP_PRIORITY_NATURES.length - 1; i >= 0; i--) {
+            if (natures.contains(DROP_PRIORITY_NATURES[i])) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /** Total number of bytes to be sent */
+    int size() {
+        return bufferedSize() + (streamed != null ? streamed.size : 0) + (stored != null ? stored.length : 0);
+    }
+    
+    /** Bytes of payload, however it is held */
+    int payloadSize() {
+        return size() - metadata.length - 1;
+    }
+    
+    /** Bytes held on the heap by this packet; a streamed payload is bounded by itself, and a stored one is not on the heap */
+    int bufferedSize() {
+        return metadata.length + 1 + (payload != null ? payload.length : 0);
+    }
+    
+    /** 
+     * Control events and small objects are latency sensitive, and are allowed to overtake bulk objects
+     * (large payloads) waiting in the send queue. 
+     */
+    boolean isUrgent() {
+        return control || size() <= SMALL_OBJECT_BYTES;
+    }
+
+    /** Packet has been put into a send queue */
+    void retain() {
+        if (streamed != null) {
+            streamed.retain();
+        }
+        if (stored != null) {
+            stored.retain();
+        }
+    }
+    
+    /** Packet has been removed from a send queue without being sent */
+    void discard() {
+        if (streamed != null) {
+            streamed.discard();
+        }
+        if (stored != null) {
+            stored.release();
+        }
+    }
+
+    private static byte[] payloadOf(BusinessObject bo) {
+        BusinessObjectMetadata meta = bo.getMetadata();
+        return meta.hasPayload() && !(bo instanceof StoredObject) ? bo.getPayload() : null;
+    }
+
+    private static StreamedPayload streamedPayloadOf(BusinessObject bo) {
+        return bo instanceof StreamedObject ? ((StreamedObject)bo).payload : null;
+    }
+
+    private static StoredPayload storedPayloadOf(BusinessObject bo) {
+        return bo instanceof StoredObject ? ((StoredObject)bo).payload : null;
+    }
+
+    /**
+     * Packets for sending the same object with different versions of the route attribute, each without
+     * the routing id of the destination itself (as legacy neighbors expect). Everything except the route
+     * is serialized only once; the route is appended as the last attribute of each version.
+     */
+    static class RouteViews {
+        private final BusinessObject bo;
+        private final List<String> route;
+        private final byte[] payload;
+        private final StreamedPayload streamed;
+        private final StoredPayload stored;
+        private final boolean control;
+        private final int dropPriority;
+        /** Metadata json without route, and without the closing brace */
+        private final byte[] prefix;
+        private final boolean emptyPrefix;
+        private final Map<String, OutboundPacket> packetsByExcludedId = new HashMap<>();
+
+        RouteViews(BusinessObject bo, List<String> route) {
+            this.bo = bo;
+            this.route = route;
+            this.payload = payloadOf(bo);
+            this.streamed = streamedPayloadOf(bo);
+            this.stored = storedPayloadOf(bo);
+            this.control = isControl(bo, payload, streamed, stored);
+            this.dropPriority = dropPriorityOf(bo);
+            BusinessObjectMetadata meta = bo.getMetadata().clone();
+            meta.remove("route");
+            if (payload != null) {
+                meta.put("size", payload.length);
+            }
+            else if (stored != null) {
+                meta.put("size", stored.length);
+            }
+            byte[] bytes = meta.toBytes();
+            // drop closing brace (and whatever whitespace a verbatim copy of received metadata might have around it)
+            int end = bytes.length - 1;
+            while (bytes[end] != '}') {
+                end--;
+            }
+            int last = end - 1;
+            while (Character.isWhitespace(bytes[last])) {
+                last--;
+            }
+            this.emptyPrefix = bytes[last] == '{';
+            this.prefix = new byte[end];
+            System.arraycopy(bytes, 0, prefix, 0, prefix.length);
+        }
+
+        /** @param idToRemove routing id not to be included in route; null to include all */
+        OutboundPacket forDestination(String idToRemove) {
+            OutboundPacket packet = packetsByExcludedId.get(idToRemove);
+            if (packet == null) {
+                packet = new OutboundPacket(bo, encodeMetadata(idToRemove), payload, streamed, stored, control, dropPriority);
+                packetsByExcludedId.put(idToRemove, packet);
+            }
+            return packet;
+        }
+
+        private byte[] encodeMetadata(String idToRemove) {
+            List<String> view = new ArrayList<>(route.size());
+            for (String id: route) {
+                if (!id.equals(idToRemove)) {
+                    view.add(id);
+                }
+            }
+            String routeAttr = (emptyPrefix ? "" : ",") + "\"route\":" + new JSONArray(view).toString() + "}";
+            byte[] routeBytes = routeAttr.getBytes(StandardCharsets.UTF_8);
+            byte[] metadata = new byte[prefix.length + routeBytes.length];
+            System.arraycopy(prefix, 0, metadata, 0, prefix.length);
+            System.arraycopy(routeBytes, 0, metadata, prefix.length, routeBytes.length);
+            return metadata;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.bm3k.abboe.server;
+
+/** What to do when the {@link SendQueue} of a neighbor is full. Control events are never dropped. */
+enum OverloadPolicy {
+    /** Drop queued objects, oldest first, to make room for the new one */
+    DROP_OLDEST("drop-oldest"),
+    /** Do not queue the new object */
+    DROP_NEWEST("drop-newest"),
+    /** Drop objects with the least important natures first (see {@link OutboundPacket#dropPriority}), oldest first among equals */
+    DROP_BY_PRIORITY("drop-by-priority"),
+    /** Consider the neighbor a slow consumer and disconnect it */
+    DISCONNECT("disconnect");
+    
+    String name;
+    
+    OverloadPolicy(String name) {
+        this.name = name;
+    }
+    
+    /** @return null for null name */
+    static OverloadPolicy byName(String name) {
+        if (name == null) {
+            return null;
+        }
+        for (OverloadPolicy policy: values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown overload policy: " + name);
+    }
+    
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,127 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps large payloads off the heap while they wait in the send queues of neighbors: payloads are copied
+ * into memory-mapped segment files under a spool directory, and sent from there with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ *
+ * Sending is zero-copy only with the nio and netty transports, which write to a socket channel. The classic
+ * {@link SocketTransport} has a plain socket stream, which the payload is copied to through heap buffers; the payload 
+ * is still not on the heap while queued, which is the point of spooling.
+ *
+ * Payloads are allocated one after another from the current segment ({@link #SEGMENT_SIZE} bytes, or a
+ * segment of its own for a larger payload). A segment is deleted once it is no longer current and all
+ * payloads in it have been released; see {@link StoredPayload} for the reference counting.
+ */
+final class PayloadStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PayloadStore.class);
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private final Path dir;
+    /** Payloads at least this large are spooled */
+    private final int threshold;
+    private Segment current;
+    private int segmentCounter;
+
+    /** Creates the directory if needed; segment files left over by a previous run are deleted */
+    PayloadStore(Path dir, int threshold) throws IOException {
+        this.dir = dir;
+        this.threshold = threshold;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path path: leftovers) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Move the payload of a large object to the store, if worth it.
+     *
+     * @return null if the object was not spooled (small, no payload, or spooling failed),
+     * otherwise an object holding the only reference to the stored payload, to be released by the caller.
+     */
+    StoredObject spool(BusinessObject bo) {
+        byte[] payload = bo.getPayload();
+        if (payload == null || payload.length < threshold || !bo.getMetadata().hasPayload() || bo instanceof StoredObject) {
+            return null;
+        }
+        try {
+            // clone, so that the original object (and the heap copy of the payload) are not referenced anymore
+            return new StoredObject(bo.getMetadata().clone(), store(payload));
+        }
+        catch (IOException e) {
+            log.error("Failed spooling payload of " + payload.length + " bytes, keeping it in memory", e);
+            return null;
+        }
+    }
+
+    /** @return payload with a single reference, owned by the caller */
+    synchronized StoredPayload store(byte[] payload) throws IOException {
+        if (current == null || current.capacity - current.used < payload.length) {
+            if (current != null) {
+                current.release();
+            }
+            current = new Segment(dir.resolve("segment-" + (++segmentCounter) + SEGMENT_SUFFIX), Math.max(SEGMENT_SIZE, payload.length));
+        }
+        ByteBuffer buf = current.map.duplicate();
+        buf.position(current.used);
+        buf.put(payload);
+        StoredPayload stored = new StoredPayload(current, current.used, payload.length);
+        current.used += payload.length;
+        return stored;
+    }
+
+    /** A single memory-mapped file, holding any number of payloads */
+    static final class Segment {
+        private final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        private final int capacity;
+        /** Guarded by the store */
+        private int used;
+        /** One for each payload not yet released, and one for being the current segment */
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Segment(Path path, int capacity) throws IOException {
+            this.path = path;
+            this.capacity = capacity;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                // the mapping itself goes away when the buffer is garbage collected
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                }
+                catch (IOException e) {
+                    log.warn("Failed deleting spool segment " + path, e);
+                }
+            }
+        }
+    }
+}
@@ -9,11 +9,13 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.bm3k.abboe.common.Biomine3000Utils;
 import org.bm3k.abboe.common.InvalidBusinessObjectException;
 import org.bm3k.abboe.common.ServerAddress;
 import org.bm3k.abboe.common.Subscriptions;
+import org.bm3k.abboe.common.ThreadMode;
 import org.bm3k.abboe.objects.BOB;
 import org.bm3k.abboe.objects.BusinessObject;
 import org.bm3k.abboe.objects.BusinessObjectEventType;
@@ -22,7 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * <b>Connect to a single peer server in a dedicated thread</b>
+ * <b>Connect to a single peer server in a dedicated thread</b> (started by {@link ABBOEServer} in its {@link ThreadMode})
  * <p> 
  *  Send routing/subscription with following attributes (from specs):
  *  <ul>
@@ -45,7 +47,7 @@ import org.slf4j.LoggerFactory;
  * Once we have sent the routing/subscribe and received an expected reply, the connection 
  * is made into a normal NeighborConnection.     
  */
-public class PeerConnectionThread extends Thread {
+public class PeerConnectionThread implements Runnable {
 
 	private final Logger log = LoggerFactory.getLogger(PeerConnectionThread.class);
 	
@@ -53,11 +55,20 @@ public class PeerConnectionThread extends Thread {
 	
 	private ServerAddress peerAddress;
 	private Socket socket = new Socket();
+	private final String name;
+	/** Kept over retries, which run this same instance */
+	private final ReconnectBackoff backoff;
     	
 	PeerConnectionThread(ABBOEServer abboeServer, ServerAddress peerAddress) {
         this.abboeServer = abboeServer;
 		this.peerAddress = peerAddress;
-        this.setName("peerconnector-" + peerAddress.getShortName());
+        this.name = "peerconnector-" + peerAddress.getShortName();
+        this.backoff = new ReconnectBackoff(Math.max(abboeServer.args.getPeerConnectRetryInterval(), 0), TimeUnit.SECONDS);
+    }
+    
+    /** For the thread running this */
+    String getName() {
+        return name;
     }
     
     private void connect() throws PeerConnectException {
@@ -66,6 +77,8 @@ public class PeerConnectionThread extends Thread {
         log.info("Trying to connect to peer at addr " + peerAddress + " (timeout in " + this.abboeServer.args.getPeerConnectTimeout() + " seconds)");
         try {                
             socket.connect(inetAddress, this.abboeServer.args.getPeerConnectTimeout() * 1000);
+            // the handshake gets the same timeout, so that a peer that accepts but never replies cannot hold us up
+            socket.setSoTimeout(this.abboeServer.args.getPeerConnectTimeout() * 1000);
         }
         catch (SocketTimeoutException e) {
             log.info("Connecting to server at "+peerAddress+ "timed out");
@@ -117,6 +130,9 @@ public class PeerConnectionThread extends Thread {
         try {            
         	subscribeReply = BusinessObjectUtils.readObject(socket.getInputStream());
         }
+        catch (SocketTimeoutException e) {
+            throw new SubscribeException("Timed out waiting for routing/subscribe/reply from server " + peerAddress, e, true);
+        }
         catch (IOException e) {
             throw new SubscribeException("Failed reading routing/subscribe/reply from server " + peerAddress, e, false); 
         }
@@ -211,7 +227,8 @@ public class PeerConnectionThread extends Thread {
             NeighborConnection neighbor;
 
             try {
-                neighbor = new NeighborConnection(this.abboeServer, socket);
+                socket.setSoTimeout(0);
+                neighbor = new NeighborConnection(this.abboeServer, new SocketTransport(socket, this.abboeServer.threadMode, this.abboeServer.flushDelay));
                 neighbor.setPeerInfo(peerInfo);
             }
             catch (IOException e) {
@@ -229,6 +246,7 @@ public class PeerConnectionThread extends Thread {
             }
             
             this.abboeServer.peerManager.setState(peerAddress, PeerState.CONNECTED);
+            backoff.succeeded();
             neighbor.startReaderThread();
         }
         catch (PeerManager.DuplicatePeerException e) {
@@ -242,76 +260,84 @@ public class PeerConnectionThread extends Thread {
         
         this.abboeServer.peerManager.setState(peerAddress, PeerState.CONTACTING_AT_STARTUP);
         
-        int peerConnectRetryInterval = this.abboeServer.args.getPeerConnectRetryInterval();
-        log.info("Using peer connect retry interval: " + peerConnectRetryInterval);
+        log.info("Using peer connect retry interval: " + this.abboeServer.args.getPeerConnectRetryInterval() + 
+                 " (at most; backing off exponentially from " + ReconnectBackoff.BASE_DELAY_MS + " ms)");
         
-        boolean keeptrying = true;
-        
-        while (keeptrying) {            
-            try {
-            	log.info("Trying to connect to peer: " + peerAddress.getName());
-                connect();                
-            }
-            catch (PeerConnectException e) {
-            	if (peerConnectRetryInterval < 0 || !e.isRetryable()) {
-            		log.info("Failed connecting to server " + peerAddress + ": " + e + ". Not retrying");
-            		keeptrying = false;
-            		this.abboeServer.peerManager.setState(peerAddress, PeerState.FAILED_FOR_GOOD);
-            	}
-            	else {
-	            	log.info("Failed connecting to server " + peerAddress + ", retrying in " + this.abboeServer.args.getPeerConnectRetryInterval()+ " seconds");
-	            	this.abboeServer.peerManager.setState(peerAddress, PeerState.WAITING_FOR_RETRY);
-	            	try {
-	            		Thread.sleep(this.abboeServer.args.getPeerConnectRetryInterval() * 1000);
-	            	}
-	            	catch (InterruptedException ie) {
-	            		log.warn("interrupted while waiting for connection retry");
-	            	}
-	            	
-	            	this.abboeServer.peerManager.setState(peerAddress, PeerState.RETRYING_CONTACT);
-            	}
-            	continue;
-            }
-            	     
-            // connected successfully !
-            	                      
-            try {
-            	log.info("Subscribing to peer: " + peerAddress.getName());
-                subscribe();
-            }
-            catch (SubscribeException e) {
-            	// first, clean up the connection
-            	try {
-            		socket.close();
-            	}
-            	catch (IOException closeEx) {
-            		// no action possible
-            	}
-            	socket = null;
-            		            		            	
-            	if (peerConnectRetryInterval < 0 || !e.isRetryable()) {
-            		log.info("Failed subscribing to server " + peerAddress + ": " + e + ". Not retrying");
-            		keeptrying = false;
-            		this.abboeServer.peerManager.setState(peerAddress, PeerState.FAILED_FOR_GOOD);
-            	}
-            	else {
-	            	log.info("Failed subscribing to server " + peerAddress + ", retrying in " + this.abboeServer.args.getPeerConnectRetryInterval() + " seconds");
-	            	this.abboeServer.peerManager.setState(peerAddress, PeerState.WAITING_FOR_RETRY);
-	            	try {
-	            		Thread.sleep(this.abboeServer.args.getPeerConnectRetryInterval() * 1000);
-	            	}
-	            	catch (InterruptedException ie) {
-	            		log.warn("interrupted while waiting for subscribe retry");
-	            	}
-	            	
-	            	this.abboeServer.peerManager.setState(peerAddress, PeerState.RETRYING_CONTACT);
-            	}
-            	continue;	            	
-            }	            	           
-
+        attempt();
+    }
+    
+    /** 
+     * Try connecting and subscribing once. On a retryable failure, another attempt is scheduled in the timer of the
+     * server after a backoff (see {@link ReconnectBackoff}), to be made in a new thread; no thread is kept waiting 
+     * meanwhile.  
+     */
+    private void attempt() {
+        try {
+        	log.info("Trying to connect to peer: " + peerAddress.getName());
+            connect();                
         }
-        
-        log.info("Giving up <connecting to peer: " + peerAddress);
-        
+        catch (PeerConnectException e) {
+        	failed("connecting to", e, e.isRetryable());
+        	return;
+        }
+        	     
+        // connected successfully !
+        	                      
+        try {
+        	log.info("Subscribing to peer: " + peerAddress.getName());
+            subscribe();
+        }
+        catch (SubscribeException e) {
+        	// first, clean up the connection
+        	try {
+        		socket.close();
+        	}
+        	catch (IOException closeEx) {
+        		// no action possible
+        	}
+        	socket = null;
+        	
+        	failed("subscribing to", e, e.isRetryable());
+        }
+    }
+    
+    private void failed(String what, Exception e, boolean retryable) {
+        if (this.abboeServer.peerManager.getState(peerAddress) == PeerState.CONNECTED) {
+            // typically, the peer connected to us first
+            log.info("Failed " + what + " server " + peerAddress + ": " + e + ". Already connected, though");
+            backoff.succeeded();
+            return;
+        }
+        int peerConnectRetryInterval = this.abboeServer.args.getPeerConnectRetryInterval();
+    	if (peerConnectRetryInterval < 0 || !retryable) {
+    		log.info("Failed " + what + " server " + peerAddress + ": " + e + ". Not retrying");
+    		this.abboeServer.peerManager.setState(peerAddress, PeerState.FAILED_FOR_GOOD);
+    		log.info("Giving up <connecting to peer: " + peerAddress);
+    		return;
+    	}
+    	
+    	long delay = backoff.failed();
+    	if (backoff.getFailures() == ReconnectBackoff.BREAKER_FAILURES) {
+    	    log.warn("Failed " + what + " server " + peerAddress + " " + ReconnectBackoff.BREAKER_FAILURES + " times in a row; " +
+    	             "only probing it every " + ReconnectBackoff.BREAKER_OPEN_INTERVALS + " retry intervals from now on");
+    	}
+    	log.info("Failed " + what + " server " + peerAddress + ", retrying in " + delay + " ms");
+    	this.abboeServer.peerManager.setState(peerAddress, PeerState.WAITING_FOR_RETRY);
+    	this.abboeServer.timer.schedule(() -> retry(), delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /** In the timer thread */
+    private void retry() {
+        if (this.abboeServer.getState() == ABBOEServer.State.SHUTTING_DOWN) {
+            log.info("Not retrying connecting to peer " + peerAddress + ", as shutting down");
+            return;
+        }
+        if (this.abboeServer.peerManager.getState(peerAddress) == PeerState.CONNECTED) {
+            log.info("Not retrying connecting to peer " + peerAddress + ", as it connected to us meanwhile");
+            backoff.succeeded();
+            return;
+        }
+    	this.abboeServer.peerManager.setState(peerAddress, PeerState.RETRYING_CONTACT);
+    	this.abboeServer.threadMode.start(name, () -> attempt());
     }
-}
\ No newline at end of file
+}
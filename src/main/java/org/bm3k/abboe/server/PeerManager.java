@@ -1,6 +1,7 @@
 package org.bm3k.abboe.server;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -66,6 +67,22 @@ class PeerManager {
     	}
     }
     
+    synchronized PeerState getState(ServerAddress peerAddress) {
+        return peerStates.get(peerAddress);
+    }
+    
+    /** Pre-known peers currently in any of given states */
+    synchronized List<ServerAddress> peersInState(PeerState... states) {
+        List<PeerState> wanted = Arrays.asList(states);
+        List<ServerAddress> result = new ArrayList<>();
+        for (Map.Entry<ServerAddress, PeerState> entry: peerStates.entrySet()) {
+            if (wanted.contains(entry.getValue())) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+    
     /** Check if a connection has been tried at least once for all peers. Only once this is the case, shall the server start accepting clients */ 
     synchronized boolean connectionAttemptedForAllPeers() {
         for (ServerAddress peerAddress: preKnownPeerAddresses) {
@@ -0,0 +1,109 @@
+package org.bm3k.abboe.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bm3k.abboe.common.Biomine3000Utils;
+
+/**
+ * Liveness of a single neighbor, as seen from the pings the server sends it when it has been silent for a ping
+ * interval: which ping is outstanding, how many in a row have gone unanswered, and a moving average of the
+ * round-trip times of those answered.
+ *
+ * Any object received from the neighbor counts as a sign of life: a ping counts as missed only if nothing at all
+ * arrived while it was outstanding. There are clients around that never answer pings, and some of them just listen,
+ * so by default only a neighbor that has answered a ping at least once is ever considered dead; optionally, so is
+ * one that never has, so that a neighbor that dies before answering its first ping is evicted as well.
+ */
+final class PingTracker {
+
+    /** Weight of a new sample in the moving average, as for the smoothed RTT of TCP */
+    private static final double RTT_GAIN = 0.125;
+
+    enum Action {
+        NONE,
+        /** Send the ping with id {@link PingTracker#getPendingId()} */
+        PING,
+        /** Too many pings missed */
+        EVICT
+    }
+
+    /** System.nanoTime() of last object received from the neighbor */
+    private volatile long lastReceived = System.nanoTime();
+    /** Id of the ping last sent, until answered or checked again; null if none */
+    private String pendingId;
+    private long pendingSent;
+    private int missed;
+    private boolean answered;
+    private volatile long lastRttNanos = -1;
+    private volatile long smoothedRttNanos = -1;
+
+    /** For each object received; cheap enough for the hot path */
+    void objectReceived() {
+        lastReceived = System.nanoTime();
+    }
+
+    /**
+     * A pong has been received.
+     * @return true if it answered our ping (and should therefore go no further)
+     */
+    synchronized boolean pongReceived(String inReplyTo) {
+        if (pendingId == null || !pendingId.equals(inReplyTo)) {
+            return false;
+        }
+        long rtt = System.nanoTime() - pendingSent;
+        lastRttNanos = rtt;
+        smoothedRttNanos = smoothedRttNanos < 0 ? rtt : (long)(smoothedRttNanos + RTT_GAIN * (rtt - smoothedRttNanos));
+        pendingId = null;
+        missed = 0;
+        answered = true;
+        return true;
+    }
+
+    /**
+     * Called once every interval: decide whether to ping the neighbor, or to give up on it.
+     * @param maxMisses number of consecutive pings, with nothing received in between, after which to evict
+     * @param evictUnanswering evict also if no ping has ever been answered
+     */
+    synchronized Action check(long interval, TimeUnit unit, int maxMisses, boolean evictUnanswering) {
+        long now = System.nanoTime();
+        if (pendingId != null) {
+            // not answered during a whole interval; counts as missed only if nothing else came either
+            pendingId = null;
+            missed = lastReceived - pendingSent > 0 ? 0 : missed + 1;
+        }
+        if (missed >= maxMisses && (answered || evictUnanswering)) {
+            return Action.EVICT;
+        }
+        if (now - lastReceived >= unit.toNanos(interval)) {
+            pendingId = Biomine3000Utils.generateUID();
+            pendingSent = now;
+            return Action.PING;
+        }
+        return Action.NONE;
+    }
+
+    synchronized String getPendingId() {
+        return pendingId;
+    }
+
+    synchronized int getMissed() {
+        return missed;
+    }
+
+    /** @return -1 if no ping answered yet */
+    long getLastRtt(TimeUnit unit) {
+        long rtt = lastRttNanos;
+        return rtt < 0 ? -1 : unit.convert(rtt, TimeUnit.NANOSECONDS);
+    }
+
+    /** Exponentially weighted moving average of round-trip times; -1 if no ping answered yet */
+    long getSmoothedRtt(TimeUnit unit) {
+        long rtt = smoothedRttNanos;
+        return rtt < 0 ? -1 : unit.convert(rtt, TimeUnit.NANOSECONDS);
+    }
+
+    /** Time since anything was last received from the neighbor */
+    long getIdleTime(TimeUnit unit) {
+        return unit.convert(System.nanoTime() - lastReceived, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,181 @@
+package org.bm3k.abboe.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+import org.bm3k.abboe.common.Subscriptions;
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.json.JSONObject;
+
+/**
+ * The last few content objects of each channel and type, to be sent to a client right after it has subscribed,
+ * so that e.g. a freshly started BiomineTV has something to show without waiting for the next image to be sent.
+ *
+ * Bounded both by number of objects per (channel, type), and by total bytes. When over the byte bound, objects are
+ * evicted oldest first from the (channel, type) least recently updated. Objects are kept encoded, just as sent, along with
+ * a private copy of their metadata, only accessed with the cache locked.
+ */
+final class RecentObjectCache {
+
+    private final int objectsPerKey;
+    private final long maxBytes;
+    /** In order of last update, least recent first */
+    private final LinkedHashMap<Key, ArrayDeque<Entry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private int objects;
+    private long sequence;
+
+    private long added;
+    private long evicted;
+    private long sent;
+    private long tooLarge;
+
+    RecentObjectCache(int objectsPerKey, long maxBytes) {
+        this.objectsPerKey = objectsPerKey;
+        this.maxBytes = maxBytes;
+    }
+
+    /** 
+     * Cache a content object (and drop older ones as needed). Objects without a type, objects sent to some neighbor in 
+     * particular (which are never sent to new clients), and objects larger than the whole cache are ignored. The metadata 
+     * is copied, as it is still going to be modified by forwarding.
+     */
+    void put(BusinessObject bo) {
+        if (bo.getMetadata().hasKey("to")) {
+            return;
+        }
+        BusinessObjectMetadata meta = bo.getMetadata().clone();
+        if (meta.getType() == null) {
+            return;
+        }
+        BOB builder = BOB.newBuilder().metadata(meta);
+        if (meta.hasPayload()) {
+            builder.payload(bo.getPayload());
+        }
+        OutboundPacket packet = OutboundPacket.encode(builder.build());
+        int size = packet.bufferedSize();
+        Key key = new Key(meta.getString("channel"), meta.getType());
+        synchronized (this) {
+            if (size > maxBytes) {
+                tooLarge++;
+                return;
+            }
+            ArrayDeque<Entry> recent = entries.get(key);
+            if (recent == null) {
+                recent = new ArrayDeque<>(objectsPerKey);
+                entries.put(key, recent);
+            }
+            if (recent.size() == objectsPerKey) {
+                remove(recent);
+            }
+            recent.add(new Entry(sequence++, packet));
+            bytes += size;
+            objects++;
+            added++;
+
+            Iterator<ArrayDeque<Entry>> leastRecent = entries.values().iterator();
+            while (bytes > maxBytes) {
+                ArrayDeque<Entry> victims = leastRecent.next();
+                while (bytes > maxBytes && !victims.isEmpty()) {
+                    remove(victims);
+                }
+                if (victims.isEmpty()) {
+                    leastRecent.remove();
+                }
+            }
+        }
+    }
+
+    private void remove(ArrayDeque<Entry> recent) {
+        Entry entry = recent.removeFirst();
+        bytes -= entry.packet.bufferedSize();
+        objects--;
+        evicted++;
+    }
+
+    /**
+     * Cached objects passing subscriptions, oldest first; as for forwarding, objects already routed through
+     * the neighbor are not included.
+     */
+    synchronized List<OutboundPacket> matching(Subscriptions subscriptions, String routingId) {
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (ArrayDeque<Entry> recent: entries.values()) {
+            candidates.addAll(recent);
+        }
+        Collections.sort(candidates, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        ArrayList<OutboundPacket> matching = new ArrayList<>();
+        for (Entry entry: candidates) {
+            BusinessObjectMetadata meta = entry.packet.bo.getMetadata();
+            List<String> route = meta.getList("route");
+            if ((route == null || !route.contains(routingId)) && subscriptions.pass(entry.packet.bo)) {
+                matching.add(entry.packet);
+            }
+        }
+        sent += matching.size();
+        return matching;
+    }
+
+    /** Counters, as part of the server totals of the stats service */
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("objects", objects);
+        json.put("bytes", bytes);
+        json.put("keys", entries.size());
+        json.put("added", added);
+        json.put("evicted", evicted);
+        json.put("too-large", tooLarge);
+        json.put("sent", sent);
+        return json;
+    }
+
+    public synchronized String toString() {
+        return "Recent objects: " + objects + " objects (" + bytes + " bytes) in " + entries.size() + " channels and types; " +
+               added + " added, " + evicted + " evicted, " + tooLarge + " too large to cache, " + sent + " sent to new clients";
+    }
+
+    private static final class Entry {
+        final long sequence;
+        final OutboundPacket packet;
+
+        Entry(long sequence, OutboundPacket packet) {
+            this.sequence = sequence;
+            this.packet = packet;
+        }
+    }
+
+    private static final class Key {
+        final String channel;
+        final String type;
+
+        Key(String channel, String type) {
+            this.channel = channel;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return Objects.equals(channel, other.channel) && Objects.equals(type, other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(channel, type);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.bm3k.abboe.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When to try connecting to a single peer again. Delays grow exponentially from {@link #BASE_DELAY_MS} up to the
+ * retry interval, so that a peer that just restarted is found again quickly, while one that is down for longer is
+ * not hammered; each delay is randomized between half and all of itself, so that servers that lost a peer at the
+ * same time do not all retry in lockstep.
+ *
+ * On top of that, a circuit breaker: after {@link #BREAKER_FAILURES} consecutive failures the peer is deemed down,
+ * and only probed once per {@link #BREAKER_OPEN_INTERVALS} retry intervals, until an attempt succeeds again.
+ */
+final class ReconnectBackoff {
+
+    static final long BASE_DELAY_MS = 1000;
+    static final int BREAKER_FAILURES = 8;
+    static final int BREAKER_OPEN_INTERVALS = 10;
+
+    private final long maxDelayMs;
+    private int failures;
+
+    /** @param maxDelay the retry interval */
+    ReconnectBackoff(long maxDelay, TimeUnit unit) {
+        this.maxDelayMs = unit.toMillis(maxDelay);
+    }
+
+    /** An attempt failed; @return milliseconds to wait before the next one */
+    synchronized long failed() {
+        failures++;
+        long delay = isOpen() ? maxDelayMs * BREAKER_OPEN_INTERVALS
+                              : Math.min(maxDelayMs, BASE_DELAY_MS << Math.min(failures - 1, 30));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /** Connected, by whichever end */
+    synchronized void succeeded() {
+        failures = 0;
+    }
+
+    /** Too many consecutive failures; attempts are only probes now */
+    synchronized boolean isOpen() {
+        return failures >= BREAKER_FAILURES;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+}
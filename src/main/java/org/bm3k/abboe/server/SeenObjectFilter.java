@@ -0,0 +1,159 @@
+package org.bm3k.abboe.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+
+/**
+ * Remembers the objects forwarded lately, so that copies of an object arriving again through another path in a mesh of
+ * servers can be dropped before even matching subscriptions, without relying on the route attribute alone.
+ *
+ * An object is identified by a 64-bit hash of its id attribute. Lacking one, only an object arriving from another server
+ * (i.e. one that has crossed the mesh) is identified by its origin (first routing id in route), type, channel, size and
+ * the first {@link #HASHED_PAYLOAD_BYTES} of its payload; objects without an id straight from clients are never duplicates,
+ * as clients may well send the same content again ("ok", the same image), and events without an id never are either.
+ *
+ * Hashes are kept in two generations of open-addressed tables of longs: lookups check both, and new hashes go to the current
+ * one, which becomes the previous one (dropping the one before) after half a window, or when full. Thus an object is
+ * remembered for at least half a window, and at most a window.
+ */
+final class SeenObjectFilter {
+
+    /** Hashes per generation; when exceeded, generations turn early, i.e. the window shrinks under heavy load */
+    static final int GENERATION_CAPACITY = 1 << 16;
+
+    /** Bytes of payload hashed at most, so that a large payload costs no more than a small one on the reader thread */
+    static final int HASHED_PAYLOAD_BYTES = 1024;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long halfWindowMillis;
+    /** Load factor at most 0.5; zero marks an empty slot */
+    private long[] current = new long[2 * GENERATION_CAPACITY];
+    private long[] previous = new long[2 * GENERATION_CAPACITY];
+    private int currentSize;
+    private long generationStart;
+
+    private long duplicates;
+
+    SeenObjectFilter(long windowMillis) {
+        this.halfWindowMillis = Math.max(1, windowMillis / 2);
+    }
+
+    /**
+     * @param origin routing id of the neighbor the object came from, if it has no route yet
+     * @param fromServer the neighbor the object came from is a server
+     * @return true if the object has been seen within the window (and should be dropped); otherwise, it is remembered from now on.
+     *         Objects that cannot be identified (no id, and not from a server, an event or a payload that is not in memory) 
+     *         are never considered seen.
+     */
+    boolean seen(BusinessObject bo, String origin, boolean fromServer) {
+        long hash = hash(bo, origin, fromServer);
+        if (hash == 0) {
+            return false;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - generationStart >= halfWindowMillis || currentSize >= GENERATION_CAPACITY) {
+                turn(now);
+            }
+            if (contains(current, hash) || contains(previous, hash)) {
+                duplicates++;
+                return true;
+            }
+            add(current, hash);
+            currentSize++;
+            return false;
+        }
+    }
+
+    synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    private void turn(long now) {
+        long[] oldest = previous;
+        Arrays.fill(oldest, 0);
+        if (now - generationStart >= 2 * halfWindowMillis) {
+            // nothing seen for a whole window
+            Arrays.fill(current, 0);
+        }
+        previous = current;
+        current = oldest;
+        currentSize = 0;
+        generationStart = now;
+    }
+
+    private static boolean contains(long[] table, long hash) {
+        int mask = table.length - 1;
+        for (int i = (int)hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void add(long[] table, long hash) {
+        int mask = table.length - 1;
+        int i = (int)hash & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = hash;
+    }
+
+    /** @return 0 if object cannot be identified */
+    private static long hash(BusinessObject bo, String origin, boolean fromServer) {
+        BusinessObjectMetadata meta = bo.getMetadata();
+        String id = meta.getString("id");
+        long h = FNV_OFFSET;
+        if (id != null) {
+            h = hash(h, id);
+        }
+        else {
+            byte[] payload = bo.getPayload();
+            if (!fromServer || payload == null && meta.hasPayload() || meta.isEvent()) {
+                // events are not told apart by content, as e.g. the same routing/disconnect may well be due again
+                return 0;
+            }
+            List<String> route = meta.getList("route");
+            h = hash(h, route != null && !route.isEmpty() ? route.get(0) : origin);
+            h = hash(h, meta.getType());
+            h = hash(h, meta.getString("channel"));
+            if (payload != null) {
+                h = hash(h, Integer.toString(payload.length));
+                int n = Math.min(payload.length, HASHED_PAYLOAD_BYTES);
+                for (int i = 0; i < n; i++) {
+                    h = (h ^ (payload[i] & 0xff)) * FNV_PRIME;
+                }
+            }
+        }
+        h = mix(h);
+        return h != 0 ? h : 1;
+    }
+
+    private static long hash(long h, String s) {
+        if (s == null) {
+            return (h ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        // separator, so that ("ab", "c") and ("a", "bc") differ
+        return (h ^ 0x100) * FNV_PRIME;
+    }
+
+    /** Spreads the bits of the hash, as the low ones index the tables */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,446 @@
+package org.bm3k.abboe.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of packets waiting to be sent to a single neighbor, bounded both by number of objects and by bytes.
+ * When full, the {@link OverloadPolicy} of the queue decides what gets dropped. Control events (small known events, 
+ * see {@link OutboundPacket#control}) are always accepted, and never dropped, so the queue may exceed its bounds by 
+ * the size of those.
+ *
+ * A single packet larger than the byte bound is accepted when the queue is otherwise empty, as it could
+ * never be sent otherwise.
+ *
+ * Packets are consumed by the transport of the neighbor; a packet is not counted against the bounds any
+ * more once it has been taken out for sending. Streamed and stored payloads are not counted at all, as they 
+ * are not on the heap (see {@link StreamedPayload} and {@link PayloadStore}); queueing one retains it until 
+ * it is either sent or dropped.
+ *
+ * There are two lanes: urgent packets (control events and small objects, see {@link OutboundPacket#isUrgent()})
+ * are taken out before bulk packets, so that e.g. pings and replies are not stuck behind megabytes of audio.
+ * Packets are still sent whole, so urgent ones just overtake bulk ones at object boundaries. Order is preserved
+ * within each lane. To avoid starving bulk traffic completely, a bulk packet is let through after
+ * {@link #MAX_CONSECUTIVE_URGENT} urgent ones.
+ *
+ * Guarded by a {@link ReentrantLock} rather than the monitor, as a sender may wait here for long: a virtual thread
+ * waiting on a monitor pins its carrier (JDK 21 to 23), which would limit the number of idle neighbors to the
+ * number of carriers.
+ */
+class SendQueue {
+
+    static final int MAX_CONSECUTIVE_URGENT = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when something is queued or taken out, or stop requested */
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<OutboundPacket> urgent = new ArrayDeque<>();
+    private final ArrayDeque<OutboundPacket> bulk = new ArrayDeque<>();
+    private int consecutiveUrgent;
+    private final int maxObjects;
+    private final long maxBytes;
+    private final Listener listener;
+    private OverloadPolicy policy;
+
+    private long bytes;
+    private boolean stopRequested;
+    private boolean overflowed;
+
+    private long droppedObjects;
+    private long droppedBytes;
+    /** Time each packet spends in the queue; null to not record */
+    private LatencyHistogram waitTimes;
+
+    SendQueue(int maxObjects, long maxBytes, OverloadPolicy policy, Listener listener) {
+        this.maxObjects = maxObjects;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    /** Record the time from queueing each packet to taking it out for writing */
+    void recordWaitTimes(LatencyHistogram waitTimes) {
+        lock.lock();
+        try {
+            this.waitTimes = waitTimes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void setPolicy(OverloadPolicy policy) {
+        lock.lock();
+        try {
+            this.policy = policy;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    OverloadPolicy getPolicy() {
+        lock.lock();
+        try {
+            return policy;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue packet, dropping something if needed as dictated by the overload policy.
+     * Listener is notified of dropped packets (and overflow, for {@link OverloadPolicy#DISCONNECT})
+     * after the packet has been queued, outside any locks.
+     *
+     * @return true if packet was queued, false if it was dropped or sending has already been stopped.
+     */
+    boolean offer(OutboundPacket packet) {
+        List<OutboundPacket> dropped = Collections.emptyList();
+        boolean queued;
+        boolean overflow = false;
+
+        lock.lock();
+        try {
+            if (stopRequested || overflowed) {
+                return false;
+            }
+
+            if (packet.control || fits(packet)) {
+                queued = true;
+            }
+            else {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        queued = false;
+                        break;
+                    case DISCONNECT:
+                        queued = false;
+                        overflowed = true;
+                        overflow = true;
+                        break;
+                    case DROP_OLDEST:
+                    case DROP_BY_PRIORITY:
+                        dropped = new ArrayList<>();
+                        queued = makeRoom(packet, dropped);
+                        break;
+                    default:
+                        throw new RuntimeException("Un-possible");
+                }
+                if (!queued) {
+                    dropped = Collections.singletonList(packet);
+                }
+            }
+
+            for (OutboundPacket p: dropped) {
+                droppedObjects++;
+                droppedBytes += p.size();
+            }
+
+            if (queued) {
+                add(packet);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        for (OutboundPacket p: dropped) {
+            listener.dropped(p);
+        }
+        if (overflow) {
+            listener.overflow();
+        }
+        return queued;
+    }
+
+    private void add(OutboundPacket packet) {
+        (packet.isUrgent() ? urgent : bulk).add(packet);
+        bytes += packet.bufferedSize();
+        packet.retain();
+        if (waitTimes != null) {
+            packet.queuedAt = System.nanoTime();
+        }
+        changed.signalAll();
+    }
+
+    private boolean fits(OutboundPacket packet) {
+        return fits(packet, urgent.size() + bulk.size(), bytes);
+    }
+
+    /** Would packet fit in a queue of n packets taking queuedBytes */
+    private boolean fits(OutboundPacket packet, int n, long queuedBytes) {
+        if (n == 0) {
+            return true;
+        }
+        return n + 1 <= maxObjects && queuedBytes + packet.bufferedSize() <= maxBytes;
+    }
+
+    /**
+     * Drop queued packets until packet fits, according to policy. Victims are sought from the bulk lane first,
+     * as that is where the memory goes. Victims are all chosen before dropping any, so that nothing is dropped
+     * in vain: if packet would not fit even after dropping all it may displace, nothing is dropped but packet.
+     * @return false if packet itself should be dropped instead
+     */
+    private boolean makeRoom(OutboundPacket packet, List<OutboundPacket> dropped) {
+        List<OutboundPacket> candidates = new ArrayList<>();
+        addDroppable(bulk, candidates);
+        addDroppable(urgent, candidates);
+        if (policy == OverloadPolicy.DROP_BY_PRIORITY) {
+            // stable, so that older ones are dropped first among equal priority
+            candidates.sort(Comparator.comparingInt(p -> p.dropPriority));
+        }
+
+        int n = urgent.size() + bulk.size();
+        long queuedBytes = bytes;
+        int victims = 0;
+        while (!fits(packet, n, queuedBytes)) {
+            if (victims == candidates.size()) {
+                // only control events left
+                return false;
+            }
+            OutboundPacket victim = candidates.get(victims);
+            if (policy == OverloadPolicy.DROP_BY_PRIORITY && packet.dropPriority < victim.dropPriority) {
+                // the new packet is the least important
+                return false;
+            }
+            victims++;
+            n--;
+            queuedBytes -= victim.bufferedSize();
+        }
+
+        for (OutboundPacket victim: candidates.subList(0, victims)) {
+            if (!removeFirstOccurrence(bulk, victim)) {
+                removeFirstOccurrence(urgent, victim);
+            }
+            dropped.add(victim);
+        }
+        return true;
+    }
+
+    private static void addDroppable(ArrayDeque<OutboundPacket> lane, List<OutboundPacket> candidates) {
+        for (OutboundPacket p: lane) {
+            if (!p.control) {
+                candidates.add(p);
+            }
+        }
+    }
+
+    private boolean removeFirstOccurrence(ArrayDeque<OutboundPacket> lane, OutboundPacket victim) {
+        Iterator<OutboundPacket> it = lane.iterator();
+        while (it.hasNext()) {
+            if (it.next() == victim) {
+                it.remove();
+                bytes -= victim.bufferedSize();
+                victim.discard();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue packet regardless of bounds and policy, e.g. a warning about dropped objects, which would
+     * otherwise be subject to dropping itself.
+     * @return false if sending has already been stopped.
+     */
+    boolean offerUnbounded(OutboundPacket packet) {
+        lock.lock();
+        try {
+            if (stopRequested || overflowed) {
+                return false;
+            }
+            add(packet);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** 
+     * @return null if nothing queued. Caller takes over the reference to a streamed or stored payload: 
+     * a streamed payload must be either opened or discarded, a stored one released once sent.
+     */
+    OutboundPacket poll() {
+        lock.lock();
+        try {
+            OutboundPacket packet;
+            if (!urgent.isEmpty() && (bulk.isEmpty() || consecutiveUrgent < MAX_CONSECUTIVE_URGENT)) {
+                packet = urgent.poll();
+                consecutiveUrgent++;
+            }
+            else {
+                packet = bulk.poll();
+                consecutiveUrgent = 0;
+            }
+            if (packet != null) {
+                bytes -= packet.bufferedSize();
+                if (waitTimes != null) {
+                    waitTimes.record(System.nanoTime() - packet.queuedAt);
+                }
+                changed.signalAll();
+            }
+            return packet;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until there is something to send.
+     * @return null if stop has been requested and everything has been taken already.
+     */
+    OutboundPacket take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmpty() && !stopRequested) {
+                changed.await();
+            }
+            return poll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the queue is at most half full by both of its bounds, e.g. before queueing more from a source 
+     * that could fill it at will.
+     * @return false if stop has been requested meanwhile
+     */
+    boolean awaitHalfEmpty() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!stopRequested && (urgent.size() + bulk.size() > maxObjects / 2 || bytes > maxBytes / 2)) {
+                changed.await();
+            }
+            return !stopRequested;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Everything already queued will still be sent */
+    void requestStop() {
+        lock.lock();
+        try {
+            stopRequested = true;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isStopRequested() {
+        lock.lock();
+        try {
+            return stopRequested;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop has been requested, and everything has been taken out */
+    boolean isDone() {
+        lock.lock();
+        try {
+            return stopRequested && isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drop everything, without counting anything as dropped (e.g. sending has failed) */
+    void clear() {
+        lock.lock();
+        try {
+            discard(urgent);
+            discard(bulk);
+            urgent.clear();
+            bulk.clear();
+            bytes = 0;
+            stopRequested = true;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static void discard(ArrayDeque<OutboundPacket> lane) {
+        for (OutboundPacket p: lane) {
+            p.discard();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return urgent.isEmpty() && bulk.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return urgent.size() + bulk.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getDroppedObjects() {
+        lock.lock();
+        try {
+            return droppedObjects;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getDroppedBytes() {
+        lock.lock();
+        try {
+            return droppedBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    interface Listener {
+        /** A packet has been dropped due to the queue being full */
+        void dropped(OutboundPacket packet);
+
+        /** Queue is full, and policy is {@link OverloadPolicy#DISCONNECT}. Called only once. */
+        void overflow();
+    }
+}
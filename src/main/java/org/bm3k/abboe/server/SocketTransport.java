@@ -0,0 +1,275 @@
+package org.bm3k.abboe.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bm3k.abboe.common.BusinessObjectReader;
+import org.bm3k.abboe.common.ThreadMode;
+import org.bm3k.abboe.server.NeighborTransport.FlushReason;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The classic transport: a blocking socket with two dedicated threads, one for reading and one for sending.
+ * The threads are virtual ones in {@link ThreadMode#VIRTUAL}, which lets this scale to many more neighbors.
+ */
+class SocketTransport implements NeighborTransport {
+
+    private final Logger log = LoggerFactory.getLogger(SocketTransport.class);
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    /** Flush a batch of small packets once it is this large, well before the output buffer would flush by itself */
+    private static final int FLUSH_BYTES = OUTPUT_BUFFER_SIZE / 2;
+
+    private final Socket socket;
+    private final InputStream is;
+    private final OutputStream os;
+    private final String addr;
+    private final ThreadMode threadMode;
+    private final long flushDelayNanos;
+    private Sender sender;
+    private Thread senderThread;
+    private BusinessObjectReader reader;
+    private Thread readerThread;
+    private String name;
+
+    /** @param flushDelay microseconds to wait for more small packets before flushing, see {@link Sender} */
+    SocketTransport(Socket socket, ThreadMode threadMode, int flushDelay) throws IOException {
+        this.socket = socket;
+        this.threadMode = threadMode;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelay);
+        this.addr = socket.getRemoteSocketAddress().toString();
+        this.name = addr;
+        this.is = new BufferedInputStream(socket.getInputStream());
+        this.os = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return addr;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    @Override
+    public synchronized void startSending(SendQueue queue, SenderListener listener) {
+        sender = new Sender(queue, listener);
+        senderThread = threadMode.start("sender-" + name, sender);
+    }
+
+    @Override
+    public synchronized void startReading(BusinessObjectReader.Listener listener) {
+        reader = new BusinessObjectReader(is, listener, name);
+        readerThread = threadMode.start("reader-" + name, reader);
+    }
+
+    @Override
+    public void packetQueued() {
+        // sender thread is already waiting on the queue
+    }
+
+    @Override
+    public void requestStop() {
+        sender.queue.requestStop();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void flush() {
+        try {
+            os.flush();
+        }
+        catch (IOException e) {
+            // let's not bother to even log the exception at this stage
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // closing socket also closes streams if needed
+        socket.close();
+    }
+
+    @Override
+    public synchronized void setName(String name) {
+        this.name = name;
+        if (senderThread != null) {
+            senderThread.setName("sender-" + name);
+        }
+        if (reader != null) {
+            reader.setName("reader-" + name);
+            readerThread.setName("reader-" + name);
+        }
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /** 
+     * Writes packets from the queue until stopped. Small packets are gathered in the output buffer, to be flushed
+     * with a single write once there are {@link #FLUSH_BYTES} of them, before writing a bulk packet, or when nothing 
+     * more has been queued by the flush delay after the first of them; with no delay, as soon as the queue is empty.
+     * A bursty chat thus gets one write per burst instead of one per message, for at most the delay of latency.
+     */
+    private class Sender implements Runnable {
+        private final SendQueue queue;
+        private final SenderListener listener;
+        /** For writing stored payloads */
+        private WritableByteChannel out;
+        /** Small packets written to the output buffer since the last flush */
+        private int batchPackets;
+        private int batchBytes;
+        /** System.nanoTime() by which the batch is to be flushed */
+        private long batchDeadline;
+
+        Sender(SendQueue queue, SenderListener listener) {
+            this.queue = queue;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                OutboundPacket packet;
+                while ((packet = next()) != null) {
+                    if (packet.isUrgent()) {
+                        write(packet);
+                        if (batchPackets++ == 0) {
+                            batchDeadline = System.nanoTime() + flushDelayNanos;
+                        }
+                        batchBytes += packet.bufferedSize();
+                        if (batchBytes >= FLUSH_BYTES) {
+                            flushBatch(FlushReason.SIZE);
+                        }
+                        continue;
+                    }
+                    flushBatch(FlushReason.LARGE);
+                    if (packet.streamed != null) {
+                        writeStreamed(packet);
+                    }
+                    else if (packet.stored != null) {
+                        writeStored(packet);
+                    }
+                    else {
+                        write(packet);
+                    }
+                    os.flush();
+                }
+                flushBatch(FlushReason.IDLE);
+                os.flush();
+            }
+            catch (IOException e) {
+                log.error("Failed sending to " + name, e);
+            }
+            catch (InterruptedException e) {
+                log.error("Interrupted while sending to " + name);
+            }
+            queue.clear();
+            listener.senderFinished();
+        }
+
+        /** 
+         * Next packet to write; null once stopped. While there is a batch to flush, waits for more packets only 
+         * until the deadline of the batch (parking rather than waiting on the queue, which only has millisecond
+         * timeouts), then flushes it.
+         */
+        private OutboundPacket next() throws IOException, InterruptedException {
+            while (batchPackets > 0) {
+                OutboundPacket packet = queue.poll();
+                if (packet != null) {
+                    return packet;
+                }
+                long wait = batchDeadline - System.nanoTime();
+                if (wait <= 0 || queue.isStopRequested()) {
+                    flushBatch(FlushReason.IDLE);
+                    break;
+                }
+                LockSupport.parkNanos(wait);
+            }
+            return queue.take();
+        }
+
+        private void write(OutboundPacket packet) throws IOException {
+            os.write(packet.metadata);
+            os.write(0);
+            if (packet.payload != null) {
+                os.write(packet.payload);
+            }
+        }
+
+        private void flushBatch(FlushReason reason) throws IOException {
+            if (batchPackets == 0) {
+                return;
+            }
+            os.flush();
+            listener.batchWritten(batchPackets, batchBytes, reason);
+            batchPackets = 0;
+            batchBytes = 0;
+        }
+
+        /** Write payload as it arrives, flushing whenever waiting for more */
+        private void writeStreamed(OutboundPacket packet) throws IOException, InterruptedException {
+            StreamedPayload.Cursor cursor = packet.streamed.open();
+            try {
+                os.write(packet.metadata);
+                os.write(0);
+                while (!cursor.isDone()) {
+                    ByteBuffer chunk = cursor.poll(null);
+                    if (chunk == null) {
+                        os.flush();
+                        chunk = cursor.take();
+                    }
+                    os.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+
+        /** 
+         * Write payload from the payload store. Not zero-copy: a socket of the classic transport has no channel, so 
+         * the JDK copies the payload to the stream through a heap buffer, a chunk at a time.
+         */
+        private void writeStored(OutboundPacket packet) throws IOException {
+            StoredPayload stored = packet.stored;
+            try {
+                os.write(packet.metadata);
+                os.write(0);
+                if (out == null) {
+                    out = Channels.newChannel(os);
+                }
+                long position = 0;
+                while (position < stored.length) {
+                    position += stored.transferTo(position, stored.length - position, out);
+                }
+            }
+            finally {
+                stored.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.bm3k.abboe.server;
+
+import java.nio.ByteBuffer;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectEventType;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+
+import com.google.common.net.MediaType;
+
+/**
+ * An object whose payload has been moved off the heap to a {@link PayloadStore}. The payload is sent
+ * from the store by the transports; {@link #getPayload()} works, but copies the payload back to the heap.
+ */
+final class StoredObject implements BusinessObject {
+
+    private final BusinessObjectMetadata metadata;
+    final StoredPayload payload;
+
+    StoredObject(BusinessObjectMetadata metadata, StoredPayload payload) {
+        this.metadata = metadata;
+        this.payload = payload;
+    }
+
+    @Override
+    public BusinessObjectMetadata getMetadata() {
+        return metadata;
+    }
+
+    /** A fresh copy of the payload, so better avoided */
+    @Override
+    public byte[] getPayload() {
+        return payload.toBytes();
+    }
+
+    @Override
+    public byte[] toBytes() {
+        byte[] json = metadata.toBytes();
+        byte[] bytes = new byte[json.length + 1 + payload.length];
+        System.arraycopy(json, 0, bytes, 0, json.length);
+        payload.copyTo(bytes, json.length + 1);
+        return bytes;
+    }
+
+    @Override
+    public ByteBuffer[] toByteBuffers() {
+        return new ByteBuffer[] { ByteBuffer.wrap(metadata.toBytes()).asReadOnlyBuffer(),
+                                  ByteBuffer.wrap(OutboundPacket.NULL_BYTE).asReadOnlyBuffer(),
+                                  ByteBuffer.wrap(payload.toBytes()).asReadOnlyBuffer() };
+    }
+
+    @Override
+    public boolean hasNature(String nature) {
+        return metadata.hasNature(nature);
+    }
+
+    @Override
+    public boolean isEvent() {
+        return metadata.isEvent();
+    }
+
+    @Override
+    public boolean isEvent(BusinessObjectEventType type) {
+        return type == metadata.getKnownEvent();
+    }
+
+    @Override
+    public MediaType getType() {
+        return metadata.getOfficialType();
+    }
+
+    public String toString() {
+        return metadata.toString() + " <" + payload + ">";
+    }
+}
@@ -0,0 +1,63 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A payload in a memory-mapped segment of a {@link PayloadStore}, reference counted across the send queues
+ * it is put into: each queue retains it when the packet is queued, and releases it once the packet has been
+ * sent or dropped. The segment can go once all payloads in it have been released.
+ */
+final class StoredPayload {
+
+    private final PayloadStore.Segment segment;
+    private final int offset;
+    final int length;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    StoredPayload(PayloadStore.Segment segment, int offset, int length) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        segment.retain();
+    }
+
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            segment.release();
+        }
+    }
+
+    /**
+     * Write bytes of the payload starting at position, without copying them to the heap if target is
+     * a socket channel (or a file).
+     *
+     * @return number of bytes written; less than count if target is non-blocking and could not take more.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return segment.channel.transferTo(offset + position, Math.min(count, length - position), target);
+    }
+
+    /** A copy of the payload on the heap */
+    byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    void copyTo(byte[] dst, int dstOffset) {
+        ByteBuffer buf = segment.map.duplicate();
+        buf.position(offset);
+        buf.get(dst, dstOffset, length);
+    }
+
+    public String toString() {
+        return "spooled payload of " + length + " bytes";
+    }
+}
@@ -0,0 +1,70 @@
+package org.bm3k.abboe.server;
+
+import java.nio.ByteBuffer;
+
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectEventType;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+
+import com.google.common.net.MediaType;
+
+/**
+ * An object being forwarded cut-through: metadata has been received, but the payload is still arriving,
+ * and is only available to the transports through the {@link StreamedPayload}. The size in metadata
+ * is the declared size of the payload.
+ */
+final class StreamedObject implements BusinessObject {
+
+    private final BusinessObjectMetadata metadata;
+    final StreamedPayload payload;
+
+    StreamedObject(BusinessObjectMetadata metadata, StreamedPayload payload) {
+        this.metadata = metadata;
+        this.payload = payload;
+    }
+
+    @Override
+    public BusinessObjectMetadata getMetadata() {
+        return metadata;
+    }
+
+    /** Not available, the payload is never in memory at once */
+    @Override
+    public byte[] getPayload() {
+        return null;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        throw new UnsupportedOperationException("Payload of a streamed object cannot be encoded");
+    }
+
+    @Override
+    public ByteBuffer[] toByteBuffers() {
+        throw new UnsupportedOperationException("Payload of a streamed object cannot be encoded");
+    }
+
+    @Override
+    public boolean hasNature(String nature) {
+        return metadata.hasNature(nature);
+    }
+
+    @Override
+    public boolean isEvent() {
+        return metadata.isEvent();
+    }
+
+    @Override
+    public boolean isEvent(BusinessObjectEventType type) {
+        return type == metadata.getKnownEvent();
+    }
+
+    @Override
+    public MediaType getType() {
+        return metadata.getOfficialType();
+    }
+
+    public String toString() {
+        return metadata.toString() + " <" + payload + ">";
+    }
+}
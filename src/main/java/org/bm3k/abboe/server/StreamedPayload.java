@@ -0,0 +1,346 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bm3k.abboe.common.BusinessObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Payload of an object being forwarded cut-through: written chunk by chunk by the reader of the source neighbor
+ * while the transports of the destinations read it, each through its own {@link Cursor}, as soon as it arrives.
+ *
+ * Bytes are kept in memory in blocks of {@link #BLOCK_SIZE}, released once every destination has sent them.
+ * When a slow destination (or one still busy with the objects queued before this one) would make this
+ * exceed {@link #MAX_BUFFERED_BYTES}, the payload is spilled to a temporary file, and read from there
+ * from then on; the file is deleted once every destination is done with it.
+ *
+ * Each send queue the payload is put into counts as a pending reader ({@link #retain()}), until the transport
+ * either opens a cursor for it ({@link #open()}), or the packet is dropped ({@link #discard()}). All the queueing
+ * must happen before the first chunk is written; bytes written when no one is interested any more are
+ * simply discarded.
+ *
+ * If the source fails before the whole payload has been received, the rest is sent as zeros, so that the
+ * destinations can still find the beginning of the next object.
+ *
+ * Guarded by a {@link ReentrantLock} rather than the monitor, so that senders waiting in {@link Cursor#take()} on
+ * virtual threads do not pin their carriers (JDK 21 to 23).
+ */
+final class StreamedPayload implements BusinessObjectReader.PayloadSink {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamedPayload.class);
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final long MAX_BUFFERED_BYTES = 8L * 1024 * 1024;
+
+    /** Source of padding for a truncated payload; never to be modified */
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+    final int size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when more bytes arrive, or the source fails */
+    private final Condition moreBytes = lock.newCondition();
+
+    /** Block i holds bytes starting at i * BLOCK_SIZE; null once released or spilled */
+    private final ArrayList<byte[]> blocks = new ArrayList<>();
+    /** Index of first block not yet released */
+    private int firstBlock;
+    private long received;
+    /** Source failed; the rest of the payload reads as zeros */
+    private boolean truncated;
+    /** Non-null once spilled */
+    private FileChannel file;
+
+    /** Packets queued, but not started */
+    private int pending;
+    private final List<Cursor> cursors = new ArrayList<>();
+    /** Waiting for more bytes to arrive, see {@link Cursor#poll(Runnable)} */
+    private List<Runnable> waiters = new ArrayList<>();
+
+    StreamedPayload(int size) {
+        this.size = size;
+    }
+
+    /** A packet with this payload has been queued for sending */
+    void retain() {
+        lock.lock();
+        try {
+            pending++;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** A queued packet with this payload has been dropped without being sent */
+    void discard() {
+        lock.lock();
+        try {
+            pending--;
+            release();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Start sending a queued packet with this payload */
+    Cursor open() {
+        lock.lock();
+        try {
+            pending--;
+            Cursor cursor = new Cursor();
+            cursors.add(cursor);
+            return cursor;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        List<Runnable> wakeUps;
+        lock.lock();
+        try {
+            int n = chunk.remaining();
+            if (pending == 0 && cursors.isEmpty()) {
+                // no one is interested
+                received += n;
+                return;
+            }
+
+            if (file != null) {
+                writeFully(chunk, received);
+                received += n;
+            }
+            else {
+                while (chunk.hasRemaining()) {
+                    int offset = (int)(received % BLOCK_SIZE);
+                    if (offset == 0) {
+                        blocks.add(new byte[(int)Math.min(BLOCK_SIZE, size - received)]);
+                    }
+                    byte[] block = blocks.get(blocks.size() - 1);
+                    int len = Math.min(block.length - offset, chunk.remaining());
+                    chunk.get(block, offset, len);
+                    received += len;
+                }
+                if (received - (long)firstBlock * BLOCK_SIZE > MAX_BUFFERED_BYTES) {
+                    spill();
+                }
+            }
+            wakeUps = takeWaiters();
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Runnable wakeUp: wakeUps) {
+            wakeUp.run();
+        }
+    }
+
+    @Override
+    public void failed() {
+        List<Runnable> wakeUps;
+        lock.lock();
+        try {
+            log.warn("Payload truncated at {} bytes, sending the remaining {} bytes as zeros", received, size - received);
+            truncated = true;
+            wakeUps = takeWaiters();
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Runnable wakeUp: wakeUps) {
+            wakeUp.run();
+        }
+    }
+
+    private List<Runnable> takeWaiters() {
+        moreBytes.signalAll();
+        if (waiters.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Runnable> wakeUps = waiters;
+        waiters = new ArrayList<>();
+        return wakeUps;
+    }
+
+    private void spill() throws IOException {
+        Path path = Files.createTempFile("abboe-payload-", ".tmp");
+        log.info("Destinations falling behind, spilling payload of {} bytes to {}", size, path);
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        for (int i = firstBlock; i < blocks.size(); i++) {
+            long start = (long)i * BLOCK_SIZE;
+            writeFully(ByteBuffer.wrap(blocks.get(i), 0, (int)Math.min(BLOCK_SIZE, received - start)), start);
+            blocks.set(i, null);
+        }
+        firstBlock = blocks.size();
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += file.write(buf, position);
+        }
+    }
+
+    /** Release blocks already sent by all cursors; everything if no one is interested any more */
+    private void release() {
+        if (pending == 0 && cursors.isEmpty()) {
+            blocks.clear();
+            firstBlock = 0;
+            if (file != null) {
+                try {
+                    file.close();
+                }
+                catch (IOException e) {
+                    log.warn("Failed closing spilled payload", e);
+                }
+            }
+            return;
+        }
+        if (pending > 0 || file != null) {
+            // whoever is pending will start from the beginning
+            return;
+        }
+        long min = received;
+        for (Cursor cursor: cursors) {
+            min = Math.min(min, cursor.position);
+        }
+        int last = (int)(min / BLOCK_SIZE);
+        for (; firstBlock < last; firstBlock++) {
+            blocks.set(firstBlock, null);
+        }
+    }
+
+    public String toString() {
+        return "streamed payload of " + size + " bytes";
+    }
+
+    /**
+     * Position of a single destination within the payload. Used by a single thread at a time; chunks returned
+     * are valid until the next call.
+     */
+    final class Cursor {
+        private long position;
+        private boolean closed;
+        /** For reading from the spill file */
+        private ByteBuffer fileBuffer;
+
+        /** Everything has been read */
+        boolean isDone() {
+            return position == size;
+        }
+
+        /**
+         * Next bytes of the payload, if any have arrived.
+         *
+         * @param wakeUp called (in the thread writing the payload) when more bytes arrive, if none available now;
+         * null not to be called.
+         * @return null if nothing available now, or everything has been read already.
+         */
+        ByteBuffer poll(Runnable wakeUp) throws IOException {
+            long available;
+            long arrived;
+            byte[] block;
+            FileChannel spilled;
+            lock.lock();
+            try {
+                if (position == size) {
+                    return null;
+                }
+                available = (truncated ? size : received) - position;
+                if (available == 0) {
+                    if (wakeUp != null) {
+                        waiters.add(wakeUp);
+                    }
+                    return null;
+                }
+                arrived = Math.max(0, received - position);
+                spilled = file;
+                block = arrived > 0 && spilled == null ? blocks.get((int)(position / BLOCK_SIZE)) : null;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            ByteBuffer chunk;
+            if (arrived == 0) {
+                // truncated
+                chunk = ByteBuffer.wrap(ZEROS, 0, (int)Math.min(BLOCK_SIZE, available));
+            }
+            else if (block != null) {
+                int offset = (int)(position % BLOCK_SIZE);
+                chunk = ByteBuffer.wrap(block, offset, (int)Math.min(block.length - offset, arrived));
+            }
+            else {
+                if (fileBuffer == null) {
+                    fileBuffer = ByteBuffer.allocate(BLOCK_SIZE);
+                }
+                fileBuffer.clear();
+                fileBuffer.limit((int)Math.min(BLOCK_SIZE, arrived));
+                while (fileBuffer.hasRemaining()) {
+                    if (spilled.read(fileBuffer, position + fileBuffer.position()) < 0) {
+                        throw new IOException("Unexpected end of spilled payload");
+                    }
+                }
+                fileBuffer.flip();
+                chunk = fileBuffer;
+            }
+
+            lock.lock();
+            try {
+                position += chunk.remaining();
+                release();
+            }
+            finally {
+                lock.unlock();
+            }
+            return chunk;
+        }
+
+        /**
+         * Wait until more bytes of the payload have arrived.
+         *
+         * @return null if everything has been read already.
+         */
+        ByteBuffer take() throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                while (position == received && !truncated && position < size) {
+                    moreBytes.await();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            return poll(null);
+        }
+
+        /** Done with the payload, whether all of it was sent or not */
+        void close() {
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    cursors.remove(this);
+                    release();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
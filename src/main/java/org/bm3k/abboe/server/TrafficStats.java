@@ -0,0 +1,128 @@
+package org.bm3k.abboe.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bm3k.abboe.server.NeighborTransport.FlushReason;
+import org.json.JSONObject;
+
+/**
+ * Traffic counters of a single neighbor, or of the whole server when summed up by a parent. Updated by any number
+ * of reader and sender threads without locking; a snapshot taken by {@link #toJSON()} is therefore not necessarily
+ * consistent between counters.
+ *
+ * Bytes are payload bytes only, as metadata of received objects is not necessarily encoded at all.
+ */
+final class TrafficStats {
+
+    /** Also updated for everything counted here; null for the totals */
+    private final TrafficStats parent;
+
+    private final LongAdder objectsIn = new LongAdder();
+    private final LongAdder payloadBytesIn = new LongAdder();
+    /** Handed over to the send queue */
+    private final LongAdder objectsOut = new LongAdder();
+    private final LongAdder payloadBytesOut = new LongAdder();
+    /** Dropped from the send queue (or never put there) due to the overload policy */
+    private final LongAdder droppedObjects = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+    /** Time spent routing received objects to the send queues of their destinations */
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardNanos = new LongAdder();
+    private final LongAccumulator maxForwardNanos = new LongAccumulator(Math::max, 0);
+    /** Small packets written out together; bytes are whole packets here */
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedPackets = new LongAdder();
+    private final LongAdder batchedBytes = new LongAdder();
+    private final LongAccumulator maxBatchPackets = new LongAccumulator(Math::max, 0);
+    /** Indexed by FlushReason.ordinal() */
+    private final LongAdder[] flushes = new LongAdder[FlushReason.values().length];
+
+    TrafficStats(TrafficStats parent) {
+        this.parent = parent;
+        for (int i = 0; i < flushes.length; i++) {
+            flushes[i] = new LongAdder();
+        }
+    }
+
+    void received(int payloadBytes) {
+        objectsIn.increment();
+        payloadBytesIn.add(payloadBytes);
+        if (parent != null) {
+            parent.received(payloadBytes);
+        }
+    }
+
+    void queued(OutboundPacket packet) {
+        objectsOut.increment();
+        payloadBytesOut.add(packet.payloadSize());
+        if (parent != null) {
+            parent.queued(packet);
+        }
+    }
+
+    void dropped(OutboundPacket packet) {
+        droppedObjects.increment();
+        droppedBytes.add(packet.payloadSize());
+        if (parent != null) {
+            parent.dropped(packet);
+        }
+    }
+
+    /** @param nanos time taken by {@link ABBOEServer#forward} for an object received */
+    void forwarded(long nanos) {
+        forwarded.increment();
+        forwardNanos.add(nanos);
+        maxForwardNanos.accumulate(nanos);
+        if (parent != null) {
+            parent.forwarded(nanos);
+        }
+    }
+
+    /** @see NeighborTransport.SenderListener#batchWritten */
+    void batchWritten(int packets, int bytes, FlushReason reason) {
+        batches.increment();
+        batchedPackets.add(packets);
+        batchedBytes.add(bytes);
+        maxBatchPackets.accumulate(packets);
+        flushes[reason.ordinal()].increment();
+        if (parent != null) {
+            parent.batchWritten(packets, bytes, reason);
+        }
+    }
+
+    /**
+     * Counters since start, with forward latency in microseconds. Current queue lengths are for the caller to add,
+     * as they are not tracked here.
+     */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("objects-in", objectsIn.sum());
+        json.put("payload-bytes-in", payloadBytesIn.sum());
+        json.put("objects-out", objectsOut.sum());
+        json.put("payload-bytes-out", payloadBytesOut.sum());
+        json.put("dropped-objects", droppedObjects.sum());
+        json.put("dropped-payload-bytes", droppedBytes.sum());
+        long n = forwarded.sum();
+        JSONObject latency = new JSONObject();
+        latency.put("count", n);
+        latency.put("mean", n > 0 ? TimeUnit.NANOSECONDS.toMicros(forwardNanos.sum() / n) : 0);
+        latency.put("max", TimeUnit.NANOSECONDS.toMicros(maxForwardNanos.get()));
+        json.put("forward-latency-us", latency);
+        long b = batches.sum();
+        JSONObject batchJSON = new JSONObject();
+        batchJSON.put("count", b);
+        batchJSON.put("packets", batchedPackets.sum());
+        batchJSON.put("bytes", batchedBytes.sum());
+        batchJSON.put("mean-packets", b > 0 ? batchedPackets.sum() / b : 0);
+        batchJSON.put("max-packets", maxBatchPackets.get());
+        JSONObject reasons = new JSONObject();
+        for (FlushReason reason: FlushReason.values()) {
+            reasons.put(reason.name().toLowerCase(), flushes[reason.ordinal()].sum());
+        }
+        batchJSON.put("flush-reasons", reasons);
+        json.put("write-batches", batchJSON);
+        return json;
+    }
+}
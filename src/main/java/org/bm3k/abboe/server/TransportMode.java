@@ -0,0 +1,53 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+/** How an {@link ABBOEServer} does its I/O with neighbors. */
+enum TransportMode {
+    /** {@link SocketTransport}: two dedicated threads for each neighbor */
+    CLASSIC("classic", null),
+    /** {@link NioTransport}: all neighbors multiplexed over a small pool of selector threads */
+    NIO("nio", null),
+    /** Netty event loops with pooled buffers; needs the abboe-netty module (subproject netty) on the class path */
+    NETTY("netty", "org.bm3k.abboe.server.NettyAcceptor");
+    
+    String name;
+    /** For transports from a separate module, class implementing {@link NeighborAcceptor}; null for the built-in ones */
+    String acceptorClass;
+    
+    TransportMode(String name, String acceptorClass) {
+        this.name = name;
+        this.acceptorClass = acceptorClass;
+    }
+    
+    /** @return {@link #CLASSIC} for null name */
+    static TransportMode byName(String name) {
+        if (name == null) {
+            return CLASSIC;
+        }
+        for (TransportMode mode: values()) {
+            if (mode.name.equals(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown transport: " + name);
+    }
+    
+    /** Only for modes with an {@link #acceptorClass} */
+    NeighborAcceptor newAcceptor() throws IOException {
+        try {
+            return (NeighborAcceptor)Class.forName(acceptorClass).getDeclaredConstructor().newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Transport " + name + " not available; is its module on the class path?", e);
+        }
+        catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+            throw new IOException("Failed initializing transport " + name, e);
+        }
+    }
+    
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,218 @@
+package org.bm3k.abboe.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bm3k.abboe.common.ThreadMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed wheel timer shared by everything in the server that needs to happen after a delay (subscription deadlines,
+ * delayed closes, peer reconnect backoff and such), instead of a sleeping thread for each: scheduling and cancelling
+ * are constant-time, which matters when thousands of neighbors connect at once.
+ *
+ * A single thread advances the wheel one tick at a time, and runs the tasks that have expired; tasks should
+ * therefore be quick, and must not block. Timing is only as accurate as the tick.
+ */
+final class WheelTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(WheelTimer.class);
+
+    /** Timeouts moved from {@link #pending} to the wheel per tick at most, so that a burst cannot stall expiry */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    /** Scheduled but not yet in the wheel; the wheel itself is only touched by the timer thread */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    /** Cancelled timeouts, to be removed from their buckets by the timer thread if already in the wheel */
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * Start the timer thread.
+     * @param wheelSize rounded up to a power of two; delays up to tick * wheelSize need no further rounds of the wheel
+     */
+    WheelTimer(long tick, TimeUnit unit, int wheelSize, ThreadMode threadMode) {
+        this.tickNanos = unit.toNanos(tick);
+        int n = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        this.wheel = new Bucket[Math.max(n, 1)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.startTime = System.nanoTime();
+        this.thread = threadMode.newThread("timer", () -> run());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Run task after delay in the timer thread, unless cancelled before that or the timer has been stopped */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(delay) - startTime);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /** Pending tasks will never be run */
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!stopped) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException e) {
+                    // stopped, or spurious
+                }
+                continue;
+            }
+            removeCancelled();
+            transferPending(tick);
+            wheel[(int)(tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPending(long tick) {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() != Timeout.WAITING) {
+                continue;
+            }
+            long expiryTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            // already late ones go to the current bucket
+            wheel[(int)(Math.max(expiryTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    /** A scheduled task; see {@link #cancel()} */
+    static final class Timeout {
+        private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final WheelTimer timer;
+        private final Runnable task;
+        /** Nanos since start of the timer */
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        /** Accessed by the timer thread only */
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev, next;
+
+        private Timeout(WheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Make sure task will not be run. Safe to call any number of times, from any thread.
+         * @return false if already run (or running), or cancelled earlier
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /** Doubly linked list of timeouts; accessed by the timer thread only */
+    private final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+            if (timeout.isCancelled()) {
+                // cancelled after the check in transferPending; the entry in cancelled may already have been handled
+                remove(timeout);
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            else {
+                tail = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /** Run all timeouts of this round with deadline no later than the given one */
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        }
+                        catch (RuntimeException e) {
+                            log.error("Timer task failed", e);
+                        }
+                    }
+                }
+                else if (timeout.isCancelled()) {
+                    remove(timeout);
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.bm3k.abboe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+import org.bm3k.abboe.objects.MetadataCodec;
+import org.json.JSONObject;
+
+/**
+ * Check that metadata parsed by the streaming codec behaves exactly as metadata parsed by org.json,
+ * both as is and after modifications, including documents that only org.json accepts or that nobody should.
+ */
+public class MetadataCodecTest {
+
+    static final String[] DOCUMENTS = {
+        "{}",
+        " { } ",
+        "{\"event\":\"ping\"}",
+        "{\"type\":\"text/plain\",\"size\":5,\"natures\":[\"message\",\"chat\"],\"route\":[\"a\",\"b\"],\"x\":{\"y\":[1,2.5e3,true,null]}}",
+        "{\"nature\":\"x\",\"natures\":[\"n\"]}",
+        "{\"nature\":[\"q\"],\"natures\":[\"n\"]}",
+        "{\"to\":\"c\\u00e4\\n\",\"event\":null}",
+        "{\"size\":-1}",
+        "{\"size\":12345678901}",
+        "{\"\u00e4\":\"\u00f6\" , \"route\" : [ ] }\n",
+        "{\"natures\":[1]}",
+        "{\"a\":1,\"a\":2}",
+        "{a:b}",
+        "{\"s\":\"\\'\"}",
+        "{\"x\":01}",
+        "{\"x\":1}garbage",
+        "[1]",
+        "",
+    };
+
+    static final String[] KEYS = { "event", "type", "to", "size", "route", "natures", "nature", "x", "\u00e4", "missing" };
+
+    public static void main(String[] args) throws Exception {
+        for (String doc: DOCUMENTS) {
+            byte[] bytes = doc.getBytes(StandardCharsets.UTF_8);
+            Object streaming = result(() -> MetadataCodec.STREAMING.decode(bytes));
+            Object json = result(() -> MetadataCodec.JSON.decode(bytes));
+            if (!(streaming instanceof BusinessObjectMetadata) || !(json instanceof BusinessObjectMetadata)) {
+                check(streaming, json, doc);
+                continue;
+            }
+
+            BusinessObjectMetadata m1 = (BusinessObjectMetadata)streaming;
+            BusinessObjectMetadata m2 = (BusinessObjectMetadata)json;
+            for (String key: KEYS) {
+                check(result(() -> m1.getString(key)), result(() -> m2.getString(key)), doc + ", getString " + key);
+                check(result(() -> m1.getInteger(key)), result(() -> m2.getInteger(key)), doc + ", getInteger " + key);
+                check(result(() -> m1.getList(key)), result(() -> m2.getList(key)), doc + ", getList " + key);
+                check(m1.hasKey(key), m2.hasKey(key), doc + ", hasKey " + key);
+            }
+            check(result(() -> new ArrayList<String>(m1.getNatures())), result(() -> new ArrayList<String>(m2.getNatures())), doc + ", natures");
+            check(m1.isEvent(), m2.isEvent(), doc + ", isEvent");
+
+            BusinessObjectMetadata c1 = m1.clone();
+            BusinessObjectMetadata c2 = m2.clone();
+            for (BusinessObjectMetadata m: new BusinessObjectMetadata[] {c1, c2}) {
+                m.putStringArray("route", "r1", "r2");
+                m.put("to", "t");
+                m.remove("event");
+                m.put("size", 7);
+                m.addNature("new");
+            }
+            check(normalize(c1.toString()), normalize(c2.toString()), doc + ", modified");
+            check(c1.asJSON().toString(), c2.asJSON().toString(), doc + ", modified asJSON");
+            check(normalize(m1.toString()), normalize(m2.toString()), doc);
+        }
+
+        byte[] bytes = "{\"type\":\"text/plain\",\"size\":3}".getBytes(StandardCharsets.UTF_8);
+        BusinessObject bo = BOB.newBuilder().metadata(MetadataCodec.STREAMING.decode(bytes)).payload(new byte[3]).build();
+        if (bo.getMetadata().toBytes() != bytes) {
+            throw new RuntimeException("Unmodified metadata not emitted verbatim");
+        }
+        bo = BOB.newBuilder().metadata(MetadataCodec.STREAMING.decode(bytes)).payload(new byte[4]).build();
+        check(bo.getMetadata().toString(), "{\"type\":\"text/plain\",\"size\":4}", "size of actual payload");
+
+        System.out.println("OK: " + DOCUMENTS.length + " documents");
+    }
+
+    /** Same json in the same key order, as org.json orders keys by hash */
+    private static String normalize(String json) {
+        return new JSONObject(json).toString();
+    }
+
+    /** Value, or name of the exception thrown */
+    private static Object result(Callable<Object> c) {
+        try {
+            return c.call();
+        }
+        catch (Exception e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+
+    private static void check(Object actual, Object expected, String what) {
+        if (!Objects.equals(actual, expected)) {
+            throw new RuntimeException(what + ": " + actual + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.bm3k.abboe;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectEventType;
+import org.bm3k.abboe.objects.PacketDecoder;
+
+/**
+ * Feed a stream of objects to a {@link PacketDecoder} in randomly sized chunks, using a deliberately tiny
+ * initial buffer, and check that the same objects come out; also with every other large payload streamed.
+ */
+public class PacketDecoderTest {
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<String>();
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            BusinessObject bo;
+            if (i % 3 == 0) {
+                bo = BOB.newBuilder().event(BusinessObjectEventType.ROUTING_SUBSCRIPTION).build();
+            }
+            else {
+                StringBuilder text = new StringBuilder();
+                int len = random.nextInt(i % 10 == 1 ? 300000 : 50);
+                for (int j = 0; j < len; j++) {
+                    text.append((char)('a' + random.nextInt(26)));
+                }
+                bo = BOB.newBuilder().payload(text).build();
+            }
+            bytes.write(bo.toBytes());
+            expected.add(bo.toString());
+            payloads.add(bo.getPayload());
+        }
+        byte[] data = bytes.toByteArray();
+
+        for (int mode = 0; mode < 3; mode++) {
+            boolean direct = mode == 1;
+            boolean streaming = mode == 2;
+            PacketDecoder decoder = new PacketDecoder(16);
+            if (streaming) {
+                decoder.setStreamingThreshold(100000);
+            }
+            ByteBuffer buf = direct ? ByteBuffer.allocateDirect(16) : ByteBuffer.allocate(16);
+            buf.flip();
+            int pos = 0;
+            int received = 0;
+            int pending = 0;
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            while (true) {
+                while (true) {
+                    if (decoder.isStreamingPayload()) {
+                        ByteBuffer chunk = decoder.nextPayloadChunk(buf);
+                        if (chunk == null) {
+                            break;
+                        }
+                        while (chunk.hasRemaining()) {
+                            payload.write(chunk.get());
+                        }
+                        if (!decoder.isStreamingPayload()) {
+                            if (!Arrays.equals(payload.toByteArray(), payloads.get(received))) {
+                                throw new RuntimeException("Streamed payload of object " + received + " differs");
+                            }
+                            payload.reset();
+                            received++;
+                        }
+                        continue;
+                    }
+                    PacketDecoder.Packet packet = decoder.next(buf);
+                    if (packet == null) {
+                        break;
+                    }
+                    if (packet.isPayloadPending()) {
+                        if (pending++ % 2 == 0) {
+                            decoder.streamPayload();
+                        }
+                        else {
+                            decoder.bufferPayload();
+                        }
+                        continue;
+                    }
+                    String bo = packet.toBusinessObject().toString();
+                    if (!bo.equals(expected.get(received))) {
+                        throw new RuntimeException("Object " + received + " differs: " + bo);
+                    }
+                    received++;
+                }
+                buf = decoder.prepareForReading(buf);
+                int n = Math.min(Math.min(buf.remaining(), 1 + random.nextInt(70000)), data.length - pos);
+                buf.put(data, pos, n);
+                pos += n;
+                buf.flip();
+                if (pos == data.length && n == 0) {
+                    decoder.endOfStream(buf);
+                    break;
+                }
+            }
+            if (received != expected.size()) {
+                throw new RuntimeException("Received " + received + " objects, expected " + expected.size());
+            }
+            if (streaming && pending == 0) {
+                throw new RuntimeException("Nothing streamed");
+            }
+            System.out.println("OK: " + received + " objects, direct buffer: " + direct + ", " + pending + " payloads offered for streaming");
+        }
+    }
+}
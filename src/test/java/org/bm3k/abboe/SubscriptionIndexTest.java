@@ -0,0 +1,105 @@
+package org.bm3k.abboe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.bm3k.abboe.common.SubscriptionIndex;
+import org.bm3k.abboe.common.Subscriptions;
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectMetadata;
+
+/**
+ * Check that a {@link SubscriptionIndex} passes exactly the same objects to each subscriber as
+ * {@link Subscriptions#pass(BusinessObject)}, over random rule lists mixing exact and prefix wildcard rules
+ * (patterns that are prefixes of each other included), negations, and the plain wildcards.
+ */
+public class SubscriptionIndexTest {
+
+    static final String[] NATURES = { "a", "ab", "abc", "b", "message", "messages", "" };
+    static final String[] EVENTS = { "ping", "pong", "routing/subscribe", "routing/subscribe/reply", "routing/disconnect", "p" };
+    static final String[] TYPES = { "text/plain", "text/html", "image/jpeg", "image/png", "application/json" };
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        int checked = 0;
+        for (int round = 0; round < 200; round++) {
+            List<Subscriptions> subscribers = new ArrayList<Subscriptions>();
+            int n = 1 + random.nextInt(20);
+            for (int i = 0; i < n; i++) {
+                subscribers.add(randomSubscriptions(random));
+            }
+            SubscriptionIndex<Subscriptions> index = new SubscriptionIndex<Subscriptions>(subscribers, Function.identity());
+            for (int j = 0; j < 50; j++) {
+                BusinessObject bo = randomObject(random);
+                List<Subscriptions> expected = new ArrayList<Subscriptions>();
+                for (Subscriptions subscriptions: subscribers) {
+                    if (subscriptions.pass(bo)) {
+                        expected.add(subscriptions);
+                    }
+                }
+                List<Subscriptions> actual = index.match(bo);
+                if (!actual.equals(expected)) {
+                    throw new RuntimeException("Index differs for " + bo.getMetadata() + ": " + actual + ", expected " + expected);
+                }
+                checked++;
+            }
+        }
+        System.out.println("OK: " + checked + " objects matched against random subscriptions");
+    }
+
+    static Subscriptions randomSubscriptions(Random random) {
+        int n = random.nextInt(6);
+        List<String> rules = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            rules.add(randomRule(random));
+        }
+        return new Subscriptions(rules);
+    }
+
+    static String randomRule(Random random) {
+        StringBuilder rule = new StringBuilder();
+        if (random.nextInt(3) == 0) {
+            rule.append('!');
+        }
+        String[] values;
+        switch (random.nextInt(3)) {
+            case 0: rule.append('#'); values = NATURES; break;
+            case 1: rule.append('@'); values = EVENTS; break;
+            default: values = TYPES;
+        }
+        String value = values[random.nextInt(values.length)];
+        if (random.nextBoolean()) {
+            // a prefix, possibly empty
+            value = value.substring(0, random.nextInt(value.length() + 1));
+            rule.append(value).append('*');
+        }
+        else {
+            rule.append(value);
+        }
+        return rule.toString();
+    }
+
+    static BusinessObject randomObject(Random random) {
+        BusinessObject bo = BOB.newBuilder().build();
+        BusinessObjectMetadata meta = bo.getMetadata();
+        List<String> natures = new ArrayList<String>();
+        for (String nature: NATURES) {
+            if (random.nextInt(4) == 0) {
+                natures.add(nature);
+            }
+        }
+        if (!natures.isEmpty()) {
+            meta.setNatures(natures);
+        }
+        if (random.nextBoolean()) {
+            meta.setEvent(EVENTS[random.nextInt(EVENTS.length)]);
+        }
+        if (random.nextBoolean()) {
+            meta.setType(TYPES[random.nextInt(TYPES.length)]);
+        }
+        return bo;
+    }
+}
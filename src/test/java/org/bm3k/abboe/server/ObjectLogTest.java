@@ -0,0 +1,162 @@
+package org.bm3k.abboe.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+
+/**
+ * Append objects to an {@link ObjectLog}, read them back by offset and by time, and check that a log whose data
+ * files lost their tail (as after a power loss, with the index having reached the disk first) still opens, with
+ * only the objects whose data is all there.
+ */
+public class ObjectLogTest {
+
+    static final int N = 100;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("objectlogtest");
+        try {
+            List<byte[]> expected = new ArrayList<byte[]>();
+            long since;
+            ObjectLog objectLog = new ObjectLog(dir, Long.MAX_VALUE, 60000);
+            try {
+                for (int i = 0; i < N / 2; i++) {
+                    append(objectLog, expected, i);
+                }
+                Thread.sleep(5);
+                since = System.currentTimeMillis();
+                for (int i = N / 2; i < N; i++) {
+                    append(objectLog, expected, i);
+                }
+
+                check(objectLog.readFrom(30), expected, 30, N, "readFrom(30)");
+                check(objectLog.readFrom(-1), expected, 0, N, "readFrom(-1)");
+                check(objectLog.readFrom(N), expected, N, N, "readFrom(N)");
+                check(objectLog.readSince(since), expected, N / 2, N, "readSince");
+                check(objectLog.readSince(0), expected, 0, N, "readSince(0)");
+                check(objectLog.readSince(Long.MAX_VALUE), expected, N, N, "readSince(future)");
+            }
+            finally {
+                objectLog.close();
+            }
+            System.out.println("OK: read " + N + " objects by offset and by time");
+
+            // the last object loses half of its data
+            Path data = dir.resolve(String.format("%020d", 0) + ".log");
+            truncate(data, Files.size(data) - expected.get(N - 1).length / 2);
+            objectLog = new ObjectLog(dir, Long.MAX_VALUE, 60000);
+            try {
+                if (objectLog.nextOffset() != N - 1) {
+                    throw new RuntimeException("Next offset after truncating last segment: " + objectLog.nextOffset());
+                }
+                check(objectLog.readFrom(0), expected, 0, N - 1, "readFrom(0) after truncating last segment");
+                expected.remove(N - 1);
+                append(objectLog, expected, N - 1);
+                check(objectLog.readFrom(0), expected, 0, N, "readFrom(0) after appending again");
+            }
+            finally {
+                objectLog.close();
+            }
+            System.out.println("OK: recovered truncated last segment");
+
+            // a copy as a later segment makes the original one not the last; then lose the tail of the original
+            Path idx = dir.resolve(String.format("%020d", 0) + ".idx");
+            Files.copy(data, dir.resolve(String.format("%020d", N) + ".log"));
+            Files.copy(idx, dir.resolve(String.format("%020d", N) + ".idx"));
+            long keep = 0;
+            for (int i = 0; i < N - 10; i++) {
+                keep += expected.get(i).length;
+            }
+            truncate(data, keep + 1);
+            objectLog = new ObjectLog(dir, Long.MAX_VALUE, 60000);
+            try {
+                if (objectLog.nextOffset() != 2 * N) {
+                    throw new RuntimeException("Next offset after truncating earlier segment: " + objectLog.nextOffset());
+                }
+                List<byte[]> both = new ArrayList<byte[]>(expected.subList(0, N - 10));
+                both.addAll(expected);
+                ObjectLog.Reader reader = objectLog.readFrom(0);
+                try {
+                    int n = 0;
+                    ObjectLog.Record record;
+                    while ((record = reader.next()) != null) {
+                        long expectedOffset = n < N - 10 ? n : N + n - (N - 10);
+                        if (record.offset != expectedOffset || !Arrays.equals(record.bytes, both.get(n))) {
+                            throw new RuntimeException("Object " + n + " differs after truncating earlier segment, offset " + record.offset);
+                        }
+                        n++;
+                    }
+                    if (n != both.size()) {
+                        throw new RuntimeException("Read " + n + " objects after truncating earlier segment, expected " + both.size());
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            finally {
+                objectLog.close();
+            }
+            System.out.println("OK: recovered truncated earlier segment");
+        }
+        finally {
+            delete(dir);
+        }
+    }
+
+    private static void append(ObjectLog objectLog, List<byte[]> expected, int i) throws IOException {
+        StringBuilder text = new StringBuilder("object " + i);
+        for (int j = 0; j < i % 7 * 100; j++) {
+            text.append('x');
+        }
+        BusinessObject bo = BOB.newBuilder().payload(text.toString()).build();
+        long offset = objectLog.append(bo);
+        if (offset != expected.size()) {
+            throw new RuntimeException("Appended object " + i + " at offset " + offset);
+        }
+        expected.add(bo.toBytes());
+    }
+
+    private static void check(ObjectLog.Reader reader, List<byte[]> expected, int from, int to, String what) throws IOException {
+        try {
+            int n = from;
+            ObjectLog.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.offset != n || !Arrays.equals(record.bytes, expected.get(n))) {
+                    throw new RuntimeException(what + ": object " + n + " differs, offset " + record.offset);
+                }
+                n++;
+            }
+            if (n != to) {
+                throw new RuntimeException(what + ": read up to " + n + ", expected " + to);
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path path: files) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+}
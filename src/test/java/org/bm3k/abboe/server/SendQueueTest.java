@@ -0,0 +1,169 @@
+package org.bm3k.abboe.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bm3k.abboe.objects.BOB;
+import org.bm3k.abboe.objects.BusinessObject;
+import org.bm3k.abboe.objects.BusinessObjectEventType;
+
+/**
+ * Fill {@link SendQueue}s with objects of mixed priorities beyond their bounds, and check that what the queue
+ * drops is what it counts and what it reports to its listener, and that nothing is dropped in vain when the new
+ * object is rejected after all. Only small known events bypass the bounds.
+ */
+public class SendQueueTest {
+
+    public static void main(String[] args) throws Exception {
+        dropByPriority();
+        dropOldest();
+        control();
+        awaitHalfEmpty();
+    }
+
+    private static void dropByPriority() {
+        RecordingListener listener = new RecordingListener();
+        OutboundPacket low = packet(1000);
+        OutboundPacket high1 = packet(1000, "error");
+        OutboundPacket high2 = packet(1000, "error");
+        SendQueue queue = new SendQueue(100, low.bufferedSize() + high1.bufferedSize() + high2.bufferedSize() + 100,
+                                        OverloadPolicy.DROP_BY_PRIORITY, listener);
+        offer(queue, low, true);
+        offer(queue, high1, true);
+        offer(queue, high2, true);
+
+        // would need to drop low and one of the more important ones: only the new one goes
+        OutboundPacket big = packet(2500, "message");
+        offer(queue, big, false);
+        check(queue, listener, 3, Arrays.asList(big));
+
+        // dropping low is enough
+        OutboundPacket mid = packet(1000, "warning");
+        offer(queue, mid, true);
+        check(queue, listener, 3, Arrays.asList(big, low));
+
+        // everything queued is more important
+        OutboundPacket low2 = packet(1000);
+        offer(queue, low2, false);
+        check(queue, listener, 3, Arrays.asList(big, low, low2));
+        System.out.println("OK: drop-by-priority");
+    }
+
+    private static void dropOldest() {
+        RecordingListener listener = new RecordingListener();
+        OutboundPacket first = packet(1000, "error");
+        OutboundPacket second = packet(1000);
+        OutboundPacket third = packet(1000, "message");
+        SendQueue queue = new SendQueue(100, first.bufferedSize() + second.bufferedSize() + third.bufferedSize() + 100,
+                                        OverloadPolicy.DROP_OLDEST, listener);
+        offer(queue, first, true);
+        offer(queue, second, true);
+        offer(queue, third, true);
+
+        OutboundPacket big = packet(1900);
+        offer(queue, big, true);
+        check(queue, listener, 2, Arrays.asList(first, second));
+        System.out.println("OK: drop-oldest");
+    }
+
+    private static void control() {
+        RecordingListener listener = new RecordingListener();
+        SendQueue queue = new SendQueue(1, 100000, OverloadPolicy.DROP_NEWEST, listener);
+        offer(queue, packet(1000), true);
+
+        OutboundPacket ping = OutboundPacket.encode(BOB.newBuilder().event(BusinessObjectEventType.PING).build());
+        offer(queue, ping, true);
+        check(queue, listener, 2, new ArrayList<OutboundPacket>());
+
+        BusinessObject unknownEvent = BOB.newBuilder().payload(text(1000)).build();
+        unknownEvent.getMetadata().setEvent("my/event");
+        OutboundPacket unknown = OutboundPacket.encode(unknownEvent);
+        offer(queue, unknown, false);
+        OutboundPacket large = OutboundPacket.encode(BOB.newBuilder().event(BusinessObjectEventType.SERVICES_REPLY)
+                                                        .payload(text(OutboundPacket.MAX_CONTROL_PAYLOAD_BYTES + 1)).build());
+        offer(queue, large, false);
+        check(queue, listener, 2, Arrays.asList(unknown, large));
+        System.out.println("OK: control events");
+    }
+
+    private static void awaitHalfEmpty() throws InterruptedException {
+        final SendQueue queue = new SendQueue(10, 100000, OverloadPolicy.DROP_NEWEST, new RecordingListener());
+        for (int i = 0; i < 10; i++) {
+            offer(queue, packet(100), true);
+        }
+        final int[] sizeSeen = { -1 };
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    if (queue.awaitHalfEmpty()) {
+                        sizeSeen[0] = queue.size();
+                    }
+                }
+                catch (InterruptedException e) {
+                    // sizeSeen stays -1
+                }
+            }
+        };
+        waiter.start();
+        while (queue.poll() != null) {
+            Thread.sleep(5);
+        }
+        waiter.join(1000);
+        if (sizeSeen[0] < 0 || sizeSeen[0] > 5) {
+            throw new RuntimeException("awaitHalfEmpty returned at queue size " + sizeSeen[0]);
+        }
+        System.out.println("OK: awaitHalfEmpty");
+    }
+
+    private static String text(int bytes) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < bytes; i++) {
+            text.append('x');
+        }
+        return text.toString();
+    }
+
+    private static OutboundPacket packet(int payloadBytes, String... natures) {
+        BOB builder = BOB.newBuilder().payload(text(payloadBytes));
+        if (natures.length > 0) {
+            builder.natures(natures);
+        }
+        return OutboundPacket.encode(builder.build());
+    }
+
+    private static void offer(SendQueue queue, OutboundPacket packet, boolean expected) {
+        if (queue.offer(packet) != expected) {
+            throw new RuntimeException("Offer of " + packet.bo + " returned " + !expected);
+        }
+    }
+
+    private static void check(SendQueue queue, RecordingListener listener, int size, List<OutboundPacket> dropped) {
+        if (queue.size() != size) {
+            throw new RuntimeException("Queue size " + queue.size() + ", expected " + size);
+        }
+        if (!listener.dropped.equals(dropped)) {
+            throw new RuntimeException("Listener got " + listener.dropped.size() + " dropped packets, expected " + dropped.size());
+        }
+        long bytes = 0;
+        for (OutboundPacket p: dropped) {
+            bytes += p.size();
+        }
+        if (queue.getDroppedObjects() != dropped.size() || queue.getDroppedBytes() != bytes) {
+            throw new RuntimeException("Counted " + queue.getDroppedObjects() + " objects, " + queue.getDroppedBytes()
+                                       + " bytes dropped, expected " + dropped.size() + " objects, " + bytes + " bytes");
+        }
+    }
+
+    private static class RecordingListener implements SendQueue.Listener {
+        final List<OutboundPacket> dropped = new ArrayList<OutboundPacket>();
+
+        public void dropped(OutboundPacket packet) {
+            dropped.add(packet);
+        }
+
+        public void overflow() {
+            throw new RuntimeException("Overflow with a dropping policy");
+        }
+    }
+}